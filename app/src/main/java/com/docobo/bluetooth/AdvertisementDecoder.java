@@ -0,0 +1,185 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Decoder for measurements broadcast in Bluetooth LE advertisements, allowing a reading to be taken without
+ * connecting to the device.
+ * <p>
+ * Decoding is split in two steps so that repeated advertisements of the same reading can be discarded before anything
+ * is allocated: {@link #find(ScanRecordParser)} locates the advertising data structure carrying the measurement and
+ * {@link #decode(ScanRecordParser)} formats it.
+ *
+ * @see BluetoothLeService#startAdvertisementIngestion(AdvertisementDecoder...)
+ */
+public abstract class AdvertisementDecoder
+{
+	private final LeScanFilter deviceFilter;
+
+	/**
+	 * @param deviceFilter - filter identifying the devices the decoder applies to, or null to apply to any device
+	 */
+	protected AdvertisementDecoder(LeScanFilter deviceFilter)
+	{
+		this.deviceFilter = deviceFilter;
+	}
+
+	/**
+	 * @param device - the device the advertisement was received from
+	 * @param parser - parser already reset to the scan record of the advertisement
+	 * @return true if the decoder applies to the device
+	 */
+	boolean matches(BluetoothDevice device, ScanRecordParser parser)
+	{
+		return this.deviceFilter == null || this.deviceFilter.matches(device, parser);
+	}
+
+	/**
+	 * Find the measurement in the advertisement.
+	 *
+	 * @param parser - parser reset to the scan record of the advertisement
+	 * @return true if the advertisement carries a measurement, leaving the parser cursor on the structure containing it
+	 */
+	public abstract boolean find(ScanRecordParser parser);
+
+	/**
+	 * Decode the measurement found by {@link #find(ScanRecordParser)}.
+	 *
+	 * @param parser - parser with the cursor left on the structure containing the measurement
+	 * @return the measurement, formatted as the {@link BluetoothLeService#EXTRA_DATA} of
+	 * {@link BluetoothLeService#ACTION_DATA_AVAILABLE}, or null if the measurement is invalid
+	 */
+	public abstract String decode(ScanRecordParser parser);
+
+	public LeScanFilter getDeviceFilter()
+	{
+		return deviceFilter;
+	}
+
+	/**
+	 * @return filter matching a superset of the advertisements carrying a measurement for this decoder, used to
+	 * filter the scan, or null if the advertisements cannot be filtered
+	 */
+	public LeScanFilter getScanFilter()
+	{
+		return deviceFilter;
+	}
+
+	/**
+	 * Decoder for a Temperature Measurement broadcast as Health Thermometer service data.
+	 *
+	 * @param deviceFilter - filter identifying the thermometers, or null to apply to any device
+	 * @return the decoder
+	 */
+	public static AdvertisementDecoder forHealthThermometer(LeScanFilter deviceFilter)
+	{
+		return new ServiceDataDecoder(deviceFilter, GattAttributes.HEALTH_THERMOMETER_SERVICE)
+		{
+			@Override
+			String decodePayload(ScanRecordParser parser, int offset, int length)
+			{
+				// Flags, then the temperature as an IEEE-11073 32 bit FLOAT
+				if (length < 5)
+				{
+					return null;
+				}
+
+				int flags = parser.uint8(offset);
+				int mantissa = (int) parser.uint32(offset + 1) << 8 >> 8;
+				int exponent = parser.getRecord()[offset + 4];
+				if (mantissa >= 0x7FFFFE || mantissa <= -0x7FFFFE)
+				{
+					// Special values (NaN, NRes, +/- infinity)
+					return null;
+				}
+
+				double temperature = mantissa * Math.pow(10, exponent);
+				return String.format(Locale.US, "Temperature: %.1f %s", temperature, (flags & 0x01) != 0 ? "F" : "C");
+			}
+		};
+	}
+
+	/**
+	 * Decoder for a Weight Measurement broadcast as Body Weight service data.
+	 *
+	 * @param deviceFilter - filter identifying the scales, or null to apply to any device
+	 * @return the decoder
+	 */
+	public static AdvertisementDecoder forWeightScale(LeScanFilter deviceFilter)
+	{
+		return new ServiceDataDecoder(deviceFilter, GattAttributes.GATT_SERVICE_BODY_WEIGHT)
+		{
+			@Override
+			String decodePayload(ScanRecordParser parser, int offset, int length)
+			{
+				// Flags, then the weight as a uint16 in units of 0.005kg or 0.01lb
+				if (length < 3)
+				{
+					return null;
+				}
+
+				int flags = parser.uint8(offset);
+				int weight = parser.uint16(offset + 1);
+				if (weight == 0xFFFF)
+				{
+					// Measurement unsuccessful
+					return null;
+				}
+
+				if ((flags & 0x01) != 0)
+				{
+					return String.format(Locale.US, "Weight: %.2f lb", weight * 0.01);
+				}
+				return String.format(Locale.US, "Weight: %.2f kg", weight * 0.005);
+			}
+		};
+	}
+
+	/**
+	 * Decoder for measurements broadcast as the service data of a GATT service, using the format of the service's
+	 * measurement characteristic.
+	 */
+	private static abstract class ServiceDataDecoder extends AdvertisementDecoder
+	{
+		private final UUID serviceUuid;
+
+		private final LeScanFilter scanFilter;
+
+		ServiceDataDecoder(LeScanFilter deviceFilter, String serviceUuid)
+		{
+			super(deviceFilter);
+			this.serviceUuid = UUID.fromString(serviceUuid);
+			this.scanFilter = deviceFilter == null ? LeScanFilter.forServiceData(serviceUuid) : deviceFilter.withServiceData(serviceUuid);
+		}
+
+		@Override
+		public LeScanFilter getScanFilter()
+		{
+			return this.scanFilter;
+		}
+
+		@Override
+		public boolean find(ScanRecordParser parser)
+		{
+			return parser.findServiceData(this.serviceUuid) && parser.getPayloadLength() > 0;
+		}
+
+		@Override
+		public String decode(ScanRecordParser parser)
+		{
+			return decodePayload(parser, parser.getPayloadOffset(), parser.getPayloadLength());
+		}
+
+		abstract String decodePayload(ScanRecordParser parser, int offset, int length);
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+/**
+ * Fixed size Bloom filter over 64 bit keys.
+ * <p>
+ * The filter is sized for roughly 1% false positives at its capacity. Bit positions are derived from a single mixed
+ * hash by double hashing, so a lookup costs one hash and {@link #HASH_COUNT} probes whatever the number of entries.
+ * Keys cannot be removed, the filter has to be rebuilt instead.
+ * <p>
+ * Lookups may run concurrently with {@link #add(long)}, a key being added may not be reported until the add completes.
+ */
+final class BloomFilter
+{
+	/** Number of bit positions per key, optimal for the number of bits per entry */
+	static final int HASH_COUNT = 7;
+	private static final int BITS_PER_ENTRY = 10;
+	private static final int MAX_BITS = 1 << 30;
+
+	private final long[] bits;
+	private final int mask;
+	private final int capacity;
+
+	/**
+	 * @param capacity - number of keys the filter is sized for
+	 */
+	BloomFilter(int capacity)
+	{
+		this.capacity = Math.max(capacity, 1);
+
+		// Round up to a power of two so bit positions can be masked rather than divided
+		long requiredBits = (long) this.capacity * BITS_PER_ENTRY;
+		int bitCount = 64;
+		while (bitCount < requiredBits && bitCount < MAX_BITS)
+		{
+			bitCount <<= 1;
+		}
+
+		this.bits = new long[bitCount >>> 6];
+		this.mask = bitCount - 1;
+	}
+
+	void add(long key)
+	{
+		long hash = mix(key);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32) | 1;
+		for (int index = 0; index < HASH_COUNT; index++)
+		{
+			int bit = (hash1 + index * hash2) & this.mask;
+			this.bits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return false if the key was definitely not added, true if it probably was
+	 */
+	boolean mightContain(long key)
+	{
+		long hash = mix(key);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32) | 1;
+		for (int index = 0; index < HASH_COUNT; index++)
+		{
+			int bit = (hash1 + index * hash2) & this.mask;
+			if ((this.bits[bit >>> 6] & (1L << bit)) == 0)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the number of keys the filter is sized for
+	 */
+	int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/**
+	 * 64 bit FNV-1a hash of a byte range, used to turn identifiers into keys without allocating.
+	 *
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return the hash
+	 */
+	static long hash(byte[] data, int offset, int length)
+	{
+		long hash = 0xCBF29CE484222325L;
+		for (int index = offset; index < offset + length; index++)
+		{
+			hash ^= data[index] & 0xFF;
+			hash *= 0x100000001B3L;
+		}
+		return hash;
+	}
+
+	/*
+	 * Finalisation step of MurmurHash3, spreading keys with few varying bits (such as addresses sharing an OUI) over the
+	 * whole hash.
+	 */
+	private static long mix(long key)
+	{
+		key ^= key >>> 33;
+		key *= 0xFF51AFD7ED558CCDL;
+		key ^= key >>> 33;
+		key *= 0xC4CEB9FE1A85EC53L;
+		key ^= key >>> 33;
+		return key;
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+/**
+ * Conversion between the "00:11:22:AA:BB:CC" string form of a Bluetooth device address and a packed 48 bit value,
+ * which is cheaper to store, hash and compare.
+ */
+public final class BluetoothAddress
+{
+	/** Value returned by {@link #toLong(String)} for an invalid address */
+	public static final long INVALID = -1;
+
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+	private BluetoothAddress()
+	{
+	}
+
+	/**
+	 * Pack a Bluetooth device address into a long without allocating.
+	 *
+	 * @param address - address in the form "00:11:22:AA:BB:CC" (upper or lower case)
+	 * @return the 48 bit address value or {@link #INVALID}
+	 */
+	public static long toLong(String address)
+	{
+		if (address == null || address.length() != 17)
+		{
+			return INVALID;
+		}
+
+		long value = 0;
+		for (int index = 0; index < 17; index++)
+		{
+			char c = address.charAt(index);
+			if (index % 3 == 2)
+			{
+				if (c != ':')
+				{
+					return INVALID;
+				}
+				continue;
+			}
+
+			int digit = Character.digit(c, 16);
+			if (digit < 0)
+			{
+				return INVALID;
+			}
+			value = value << 4 | digit;
+		}
+
+		return value;
+	}
+
+	/**
+	 * @param address - packed 48 bit address value
+	 * @return the address in the form "00:11:22:AA:BB:CC"
+	 */
+	public static String toString(long address)
+	{
+		char[] chars = new char[17];
+		for (int index = 0, shift = 44; index < 17; index += 3, shift -= 8)
+		{
+			chars[index] = HEX_DIGITS[(int) (address >>> shift) & 0x0F];
+			chars[index + 1] = HEX_DIGITS[(int) (address >>> (shift - 4)) & 0x0F];
+			if (index + 2 < 17)
+			{
+				chars[index + 2] = ':';
+			}
+		}
+		return new String(chars);
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import com.docobo.device.PlatformInfo;
+import com.docobo.logger.Logger;
+
+import java.lang.reflect.Method;
+
+/**
+ * Bluetooth capabilities of the platform: which of the hidden or version dependent methods accessed by reflection
+ * exist, and whether Bluetooth LE is supported.
+ * <p>
+ * The capabilities only change with the firmware, so they are probed once and persisted along with the build
+ * fingerprint. Later starts on the same build reuse them without any reflection. The methods themselves are only
+ * resolved the first time they are used.
+ *
+ * @see LocalBluetoothManager#getCapabilities()
+ */
+public final class BluetoothCapabilities
+{
+	private static final String TAG = "BluetoothCapabilities";
+
+	/*
+	 * Methods accessed by reflection
+	 */
+	/** {@link BluetoothAdapter} setScanMode(int) */
+	public static final int SET_SCAN_MODE = 0;
+	/** {@link BluetoothAdapter} setScanMode(int, int) */
+	public static final int SET_SCAN_MODE_AND_DURATION = 1;
+	/** {@link BluetoothAdapter} getDiscoverableTimeout() */
+	public static final int GET_DISCOVERABLE_TIMEOUT = 2;
+	/** {@link BluetoothAdapter} setDiscoverableTimeout(int) */
+	public static final int SET_DISCOVERABLE_TIMEOUT = 3;
+	/** {@link BluetoothDevice} connectGatt(Context, boolean, BluetoothGattCallback) */
+	public static final int CONNECT_GATT = 4;
+	/** {@link BluetoothAdapter} startLeScan(LeScanCallback) */
+	public static final int START_LE_SCAN = 5;
+	/** {@link BluetoothAdapter} stopLeScan(LeScanCallback) */
+	public static final int STOP_LE_SCAN = 6;
+	/** {@link BluetoothAdapter} GATTRestart(), HH3 firmware only */
+	public static final int HH3_GATT_RESTART = 7;
+	/** {@link BluetoothAdapter} isGATTReady(), HH3 firmware only */
+	public static final int HH3_IS_GATT_READY = 8;
+	/** {@link BluetoothGatt} listen(boolean, int), HH3 firmware only */
+	public static final int HH3_LISTEN = 9;
+
+	private static final int METHOD_COUNT = 10;
+
+	/*
+	 * Persisted probe
+	 */
+	private static final String PREFERENCES_NAME = "com.docobo.bluetooth.capabilities";
+	private static final String KEY_VERSION = "version";
+	private static final String KEY_FINGERPRINT = "fingerprint";
+	private static final String KEY_METHODS = "methods";
+	private static final String KEY_BLE_SUPPORTED = "bleSupported";
+	/** Increased whenever the probed methods change, so older probes are discarded */
+	private static final int VERSION = 1;
+
+	private static BluetoothCapabilities instance = null;
+
+	private final boolean docoboDevice;
+	private final boolean bluetoothLESupported;
+	/** Bit set of the methods available, indexed by method */
+	private int availableMethods;
+	private final Method[] methods = new Method[METHOD_COUNT];
+
+	private BluetoothCapabilities(boolean docoboDevice, int availableMethods, boolean bluetoothLESupported)
+	{
+		this.docoboDevice = docoboDevice;
+		this.availableMethods = availableMethods;
+		this.bluetoothLESupported = bluetoothLESupported;
+	}
+
+	/**
+	 * Get the capabilities of the platform, probing them if they have not been persisted for the current build.
+	 *
+	 * @param context
+	 * @return the capabilities
+	 */
+	public static synchronized BluetoothCapabilities getInstance(Context context)
+	{
+		if (instance == null)
+		{
+			SharedPreferences preferences = context.getApplicationContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+			instance = load(preferences);
+			if (instance == null)
+			{
+				instance = probe(context);
+				preferences.edit()
+						.putInt(KEY_VERSION, VERSION)
+						.putString(KEY_FINGERPRINT, Build.FINGERPRINT)
+						.putInt(KEY_METHODS, instance.availableMethods)
+						.putBoolean(KEY_BLE_SUPPORTED, instance.bluetoothLESupported)
+						.apply();
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * @return true if running on a Docobo HH3 firmware
+	 */
+	public boolean isDocoboDevice()
+	{
+		return docoboDevice;
+	}
+
+	/**
+	 * @return true if Bluetooth LE is supported
+	 * @see LocalBluetoothManager#isBluetoothLESupported(Context)
+	 */
+	public boolean isBluetoothLESupported()
+	{
+		return bluetoothLESupported;
+	}
+
+	/**
+	 * @param method - one of the method constants
+	 * @return true if the method is available
+	 */
+	public synchronized boolean hasMethod(int method)
+	{
+		return (this.availableMethods & (1 << method)) != 0;
+	}
+
+	/**
+	 * Get a method, resolving it the first time it is requested.
+	 *
+	 * @param method - one of the method constants
+	 * @return the method or null if it is not available
+	 */
+	public synchronized Method getMethod(int method)
+	{
+		if (this.methods[method] == null && hasMethod(method))
+		{
+			this.methods[method] = lookup(method);
+			if (this.methods[method] == null)
+			{
+				// Only expected if the probe was persisted by a different build with the same fingerprint
+				Logger.w(TAG, "Method %d probed as available but could not be resolved", method);
+				this.availableMethods &= ~(1 << method);
+			}
+		}
+		return this.methods[method];
+	}
+
+	private static BluetoothCapabilities load(SharedPreferences preferences)
+	{
+		if (preferences.getInt(KEY_VERSION, 0) != VERSION || !Build.FINGERPRINT.equals(preferences.getString(KEY_FINGERPRINT, null)))
+		{
+			return null;
+		}
+
+		BluetoothCapabilities capabilities = new BluetoothCapabilities(PlatformInfo.isDocoboDevice(),
+				preferences.getInt(KEY_METHODS, 0), preferences.getBoolean(KEY_BLE_SUPPORTED, false));
+		Logger.df(TAG, 15, "Loaded capabilities for %s: methods 0x%x, BLE supported %b", Build.FINGERPRINT,
+				capabilities.availableMethods, capabilities.bluetoothLESupported);
+		return capabilities;
+	}
+
+	private static BluetoothCapabilities probe(Context context)
+	{
+		boolean docoboDevice = PlatformInfo.isDocoboDevice();
+		boolean jellyBeanMr2 = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+
+		BluetoothCapabilities capabilities = new BluetoothCapabilities(docoboDevice, 0, probeBluetoothLESupported(context, docoboDevice));
+		for (int method = 0; method < METHOD_COUNT; method++)
+		{
+			boolean applicable;
+			switch (method)
+			{
+				case CONNECT_GATT:
+				case START_LE_SCAN:
+				case STOP_LE_SCAN:
+					applicable = docoboDevice || jellyBeanMr2;
+					break;
+				case HH3_GATT_RESTART:
+				case HH3_IS_GATT_READY:
+				case HH3_LISTEN:
+					applicable = docoboDevice;
+					break;
+				default:
+					applicable = true;
+					break;
+			}
+
+			if (applicable)
+			{
+				// Keep the method resolved, it is likely to be used
+				capabilities.methods[method] = lookup(method);
+				if (capabilities.methods[method] != null)
+				{
+					capabilities.availableMethods |= 1 << method;
+				}
+			}
+		}
+
+		Logger.df(TAG, 15, "Probed capabilities for %s: methods 0x%x, BLE supported %b", Build.FINGERPRINT,
+				capabilities.availableMethods, capabilities.bluetoothLESupported);
+		return capabilities;
+	}
+
+	private static boolean probeBluetoothLESupported(Context context, boolean docoboDevice)
+	{
+		try
+		{
+			if (docoboDevice)
+			{
+				return lookup(CONNECT_GATT) != null;
+			}
+			return context.getPackageManager().hasSystemFeature(LocalBluetoothManager.FEATURE_BLUETOOTH_LE);
+		}
+		catch (NoClassDefFoundError e)
+		{
+			// This means the bluetoothGattCallback classes are not available on this device.
+			// Hence Bluetooth LE is not supported.
+			return false;
+		}
+	}
+
+	private static Method lookup(int method)
+	{
+		try
+		{
+			switch (method)
+			{
+				case SET_SCAN_MODE:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "setScanMode", int.class);
+				case SET_SCAN_MODE_AND_DURATION:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "setScanMode", int.class, int.class);
+				case GET_DISCOVERABLE_TIMEOUT:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "getDiscoverableTimeout");
+				case SET_DISCOVERABLE_TIMEOUT:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "setDiscoverableTimeout", int.class);
+				case CONNECT_GATT:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothDevice.class, "connectGatt", Context.class, boolean.class, BluetoothGattCallback.class);
+				case START_LE_SCAN:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "startLeScan", LeScanCallbackInterface.getInterface());
+				case STOP_LE_SCAN:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "stopLeScan", LeScanCallbackInterface.getInterface());
+				case HH3_GATT_RESTART:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "GATTRestart");
+				case HH3_IS_GATT_READY:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothAdapter.class, "isGATTReady");
+				case HH3_LISTEN:
+					return LocalBluetoothManager.getMethod(TAG, BluetoothGatt.class, "listen", boolean.class, int.class);
+				default:
+					throw new IllegalArgumentException("Unknown method " + method);
+			}
+		}
+		catch (NoClassDefFoundError e)
+		{
+			// The method signature refers to classes missing from this platform
+			return null;
+		}
+	}
+}
@@ -0,0 +1,466 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.docobo.logger.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Registry of known Bluetooth devices, caching the device attributes that would otherwise require an IPC call into the
+ * Bluetooth service every time they are read ({@link BluetoothDevice#getName()}, {@link BluetoothDevice#getType()},
+ * {@link BluetoothDevice#getBondState()} and {@link BluetoothDevice#getBluetoothClass()}).
+ * <p>
+ * The cached attributes are refreshed from the broadcasts received by the {@link BluetoothEventRedirector}. Names, types
+ * and classes are persisted to a compact binary file so they are available immediately after a restart. Bond states are
+ * only cached in memory, as they can change while the application is not running.
+ * <p>
+ * The registry holds at most {@link #MAX_DEVICES} devices. Every LE device seen gets a record, including those using
+ * rotating random addresses, so the least recently used devices are evicted beyond that.
+ */
+public class BluetoothDeviceRegistry
+{
+	private static final String TAG = "BluetoothDeviceRegistry";
+
+	/** Value returned for an attribute that is not known */
+	public static final int UNKNOWN = -1;
+
+	private static final String FILE_NAME = "bluetooth_device_registry.dat";
+	private static final int FILE_MAGIC = 0x44425231; // DBR1
+	private static final int FILE_VERSION = 1;
+	/** Delay before pending changes are written, so that bursts of updates are persisted once */
+	private static final long SAVE_DELAY = 5000;
+	/** Period after which an unknown name is requested from the device again */
+	private static final long NAME_RETRY_INTERVAL = 30000;
+	/** Number of devices kept, the least recently used devices are evicted beyond this */
+	public static final int MAX_DEVICES = 256;
+
+	private static class Record
+	{
+		String name;
+		long nameRequestTime = -1;
+		int type = UNKNOWN;
+		int deviceClass = UNKNOWN;
+		int bondState = UNKNOWN;
+	}
+
+	/** Records in access order, least recently used first */
+	private final LinkedHashMap<Long, Record> records = new LinkedHashMap<Long, Record>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Record> eldest)
+		{
+			return size() > MAX_DEVICES;
+		}
+	};
+	private final File file;
+	private final Handler handler;
+	private final Runnable saveRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			save();
+		}
+	};
+	private boolean savePending = false;
+
+	/**
+	 * @param directory - directory the registry is persisted in, or null to keep the registry in memory only
+	 * @param handler - handler used to persist changes
+	 */
+	BluetoothDeviceRegistry(File directory, Handler handler)
+	{
+		this.file = directory == null ? null : new File(directory, FILE_NAME);
+		this.handler = handler;
+	}
+
+	/**
+	 * Get the name of the device, requesting it from the device only if it is not cached.
+	 *
+	 * @param device
+	 * @return the device name or null if not known
+	 */
+	public String getName(BluetoothDevice device)
+	{
+		Record record;
+		long now = SystemClock.elapsedRealtime();
+		synchronized (this.records)
+		{
+			record = getRecord(device.getAddress());
+			if (record.name != null || (record.nameRequestTime >= 0 && now - record.nameRequestTime < NAME_RETRY_INTERVAL))
+			{
+				return record.name;
+			}
+			record.nameRequestTime = now;
+		}
+
+		String name = device.getName();
+		if (name != null)
+		{
+			setName(device, name);
+		}
+		return name;
+	}
+
+	/**
+	 * Get the name of the device only if it is cached, without requesting it from the device.
+	 *
+	 * @param address
+	 * @return the device name or null if not cached
+	 */
+	public String getCachedName(String address)
+	{
+		synchronized (this.records)
+		{
+			Record record = this.records.get(BluetoothAddress.toLong(address));
+			return record == null ? null : record.name;
+		}
+	}
+
+	/**
+	 * Get the type of the device, requesting it from the device only if it is not cached.
+	 *
+	 * @param device
+	 * @return the device type ({@link BluetoothDevice#DEVICE_TYPE_CLASSIC}, {@link BluetoothDevice#DEVICE_TYPE_LE},
+	 * {@link BluetoothDevice#DEVICE_TYPE_DUAL}) or {@link BluetoothDevice#DEVICE_TYPE_UNKNOWN}
+	 */
+	public int getType(BluetoothDevice device)
+	{
+		synchronized (this.records)
+		{
+			Record record = getRecord(device.getAddress());
+			if (record.type != UNKNOWN)
+			{
+				return record.type;
+			}
+		}
+
+		if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2)
+		{
+			return BluetoothDevice.DEVICE_TYPE_UNKNOWN;
+		}
+
+		int type = device.getType();
+		if (type != BluetoothDevice.DEVICE_TYPE_UNKNOWN)
+		{
+			synchronized (this.records)
+			{
+				getRecord(device.getAddress()).type = type;
+			}
+			scheduleSave();
+		}
+		return type;
+	}
+
+	/**
+	 * Get the bond state of the device, requesting it from the device only if it is not cached.
+	 *
+	 * @param device
+	 * @return {@link BluetoothDevice#BOND_NONE}, {@link BluetoothDevice#BOND_BONDING} or {@link BluetoothDevice#BOND_BONDED}
+	 */
+	public int getBondState(BluetoothDevice device)
+	{
+		synchronized (this.records)
+		{
+			Record record = getRecord(device.getAddress());
+			if (record.bondState != UNKNOWN)
+			{
+				return record.bondState;
+			}
+		}
+
+		int bondState = device.getBondState();
+		setBondState(device, bondState);
+		return bondState;
+	}
+
+	/**
+	 * Get the bluetooth class of the device, as received in the discovery or class changed broadcasts.
+	 *
+	 * @param address
+	 * @return the device class ({@link BluetoothClass#getDeviceClass()}) or {@link #UNKNOWN}
+	 */
+	public int getDeviceClass(String address)
+	{
+		synchronized (this.records)
+		{
+			Record record = this.records.get(BluetoothAddress.toLong(address));
+			return record == null ? UNKNOWN : record.deviceClass;
+		}
+	}
+
+	/**
+	 * @return the number of devices in the registry
+	 */
+	public int size()
+	{
+		synchronized (this.records)
+		{
+			return this.records.size();
+		}
+	}
+
+	/**
+	 * @param address
+	 * @return true if the device is known to the registry
+	 */
+	public boolean contains(String address)
+	{
+		synchronized (this.records)
+		{
+			return this.records.containsKey(BluetoothAddress.toLong(address));
+		}
+	}
+
+	/**
+	 * Remove a device from the registry
+	 *
+	 * @param address
+	 */
+	public void forget(String address)
+	{
+		synchronized (this.records)
+		{
+			this.records.remove(BluetoothAddress.toLong(address));
+		}
+		scheduleSave();
+	}
+
+	/*
+	 * Updates from the broadcasts received by the BluetoothEventRedirector
+	 */
+	void setName(BluetoothDevice device, String name)
+	{
+		if (name == null)
+		{
+			return;
+		}
+
+		boolean changed;
+		synchronized (this.records)
+		{
+			Record record = getRecord(device.getAddress());
+			changed = !name.equals(record.name);
+			record.name = name;
+		}
+
+		if (changed)
+		{
+			scheduleSave();
+		}
+	}
+
+	void setBluetoothClass(BluetoothDevice device, BluetoothClass bluetoothClass)
+	{
+		if (bluetoothClass == null)
+		{
+			return;
+		}
+
+		boolean changed;
+		synchronized (this.records)
+		{
+			Record record = getRecord(device.getAddress());
+			changed = record.deviceClass != bluetoothClass.getDeviceClass();
+			record.deviceClass = bluetoothClass.getDeviceClass();
+		}
+
+		if (changed)
+		{
+			scheduleSave();
+		}
+	}
+
+	void setBondState(BluetoothDevice device, int bondState)
+	{
+		if (bondState == BluetoothDevice.ERROR)
+		{
+			return;
+		}
+
+		synchronized (this.records)
+		{
+			getRecord(device.getAddress()).bondState = bondState;
+		}
+	}
+
+	/**
+	 * Load the persisted registry, replacing any cached names, types and classes.
+	 */
+	void load()
+	{
+		if (this.file == null || !this.file.exists())
+		{
+			return;
+		}
+
+		DataInputStream input = null;
+		try
+		{
+			input = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+			if (input.readInt() != FILE_MAGIC || input.readInt() != FILE_VERSION)
+			{
+				Logger.w(TAG, "Ignoring registry file with unexpected format");
+				return;
+			}
+
+			// Devices are saved least recently used first, so loading them in order restores the eviction order
+			int count = input.readInt();
+			synchronized (this.records)
+			{
+				for (int index = 0; index < count; index++)
+				{
+					long address = input.readLong();
+					Record record = this.records.get(address);
+					if (record == null)
+					{
+						record = new Record();
+						this.records.put(address, record);
+					}
+
+					String name = input.readBoolean() ? input.readUTF() : null;
+					if (name != null)
+					{
+						record.name = name;
+					}
+					record.type = input.readByte();
+					record.deviceClass = input.readInt();
+				}
+			}
+
+			Logger.df(TAG, 15, "Loaded %d devices", count);
+		}
+		catch (IOException e)
+		{
+			Logger.ex(TAG, "Error loading device registry", e);
+		}
+		finally
+		{
+			closeQuietly(input);
+		}
+	}
+
+	/**
+	 * Persist the cached names, types and classes.
+	 */
+	void save()
+	{
+		synchronized (this.records)
+		{
+			this.savePending = false;
+		}
+
+		if (this.file == null)
+		{
+			return;
+		}
+
+		File tempFile = new File(this.file.getPath() + ".tmp");
+		DataOutputStream output = null;
+		try
+		{
+			output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			output.writeInt(FILE_MAGIC);
+			output.writeInt(FILE_VERSION);
+
+			synchronized (this.records)
+			{
+				output.writeInt(this.records.size());
+				for (Map.Entry<Long, Record> entry : this.records.entrySet())
+				{
+					Record record = entry.getValue();
+					output.writeLong(entry.getKey());
+					output.writeBoolean(record.name != null);
+					if (record.name != null)
+					{
+						output.writeUTF(record.name);
+					}
+					output.writeByte(record.type);
+					output.writeInt(record.deviceClass);
+				}
+			}
+
+			output.close();
+			output = null;
+
+			if (!tempFile.renameTo(this.file))
+			{
+				Logger.w(TAG, "Unable to replace device registry file");
+			}
+		}
+		catch (IOException e)
+		{
+			Logger.ex(TAG, "Error saving device registry", e);
+		}
+		finally
+		{
+			closeQuietly(output);
+		}
+	}
+
+	private Record getRecord(String address)
+	{
+		long key = BluetoothAddress.toLong(address);
+		Record record = this.records.get(key);
+		if (record == null)
+		{
+			record = new Record();
+			this.records.put(key, record);
+		}
+		return record;
+	}
+
+	private void scheduleSave()
+	{
+		if (this.file == null || this.handler == null)
+		{
+			return;
+		}
+
+		synchronized (this.records)
+		{
+			if (this.savePending)
+			{
+				return;
+			}
+			this.savePending = true;
+		}
+		this.handler.postDelayed(this.saveRunnable, SAVE_DELAY);
+	}
+
+	private static void closeQuietly(java.io.Closeable closeable)
+	{
+		if (closeable != null)
+		{
+			try
+			{
+				closeable.close();
+			}
+			catch (IOException e)
+			{
+				// Ignore
+			}
+		}
+	}
+}
@@ -0,0 +1,941 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import static android.bluetooth.BluetoothAdapter.STATE_OFF;
+import static android.bluetooth.BluetoothAdapter.STATE_ON;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.docobo.logger.Logger;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches Bluetooth events to the {@link BluetoothEventListener}s subscribed to them.
+ * <p>
+ * Listeners subscribe to a set of event types and, optionally, a single device address. The subscriptions are compiled
+ * into an immutable array of subscribers per event type, replaced whenever the subscriptions change, so dispatching an
+ * event only iterates the listeners interested in it and never blocks on registration. Listeners are weakly referenced
+ * and pruned once garbage collected.
+ * <p>
+ * Events are delivered on the thread they are dispatched from, unless the listener subscribed to receive them on the
+ * main thread. New subscribers first receive the current state from the {@link BluetoothStateSnapshot}, replayed on the
+ * event thread. State events dispatched before the replay are not delivered to them, as the replayed state already
+ * includes them.
+ * <p>
+ * Listeners registered through {@link LocalBluetoothManager#registerBluetoothEventListener(BluetoothEventListener)}
+ * are subscribed to {@link #EVENT_ALL} for all devices.
+ *
+ * @see LocalBluetoothManager#getEventBus()
+ */
+public class BluetoothEventBus
+{
+	private static final String TAG = "BluetoothEventBus";
+
+	/*
+	 * Event types
+	 */
+	/** {@link BluetoothEventListener#onBluetoothStateChanged(boolean)} */
+	public static final int EVENT_BLUETOOTH_STATE    = 0x0001;
+	/** {@link BluetoothEventListener#onDiscoveryStateChanged(boolean)} */
+	public static final int EVENT_DISCOVERY_STATE    = 0x0002;
+	/** {@link BluetoothEventListener#onScanModeChanged(int)} */
+	public static final int EVENT_SCAN_MODE          = 0x0004;
+	/** {@link BluetoothEventListener#onDeviceFound(BluetoothDevice, int, boolean)} and {@link BluetoothEventListener#onDevicesFound(List)} */
+	public static final int EVENT_DEVICE_FOUND       = 0x0008;
+	/** {@link BluetoothEventListener#onDeviceInfoChanged(BluetoothDevice, int)} */
+	public static final int EVENT_DEVICE_INFO        = 0x0010;
+	/** {@link BluetoothEventListener#onDeviceDisappeared(BluetoothDevice)} */
+	public static final int EVENT_DEVICE_DISAPPEARED = 0x0020;
+	/** {@link BluetoothEventListener#onDeviceConnectionStateChanged(BluetoothDevice, int)} */
+	public static final int EVENT_CONNECTION_STATE   = 0x0040;
+	/** {@link BluetoothEventListener#onBondingStateChanged(BluetoothDevice, int, int)} */
+	public static final int EVENT_BOND_STATE         = 0x0080;
+	/** {@link BluetoothEventListener#onPairingEventOccurred(BluetoothDevice, boolean, int)} */
+	public static final int EVENT_PAIRING            = 0x0100;
+	/** {@link BluetoothEventListener#onGattServiceStateChanged(boolean)} */
+	public static final int EVENT_GATT_SERVICE_STATE = 0x0200;
+	public static final int EVENT_ALL                = 0x03FF;
+
+	private static final int EVENT_TYPE_COUNT = Integer.bitCount(EVENT_ALL);
+
+	/** Default time a listener may take to handle an event, in milliseconds */
+	public static final long DEFAULT_LATENCY_BUDGET = 20;
+
+	/** Number of deliveries over the latency budget after which a listener is flagged as slow */
+	private static final int SLOW_LISTENER_THRESHOLD = 3;
+
+	private static final String[] EVENT_NAMES = {
+			"BluetoothState", "DiscoveryState", "ScanMode", "DeviceFound", "DeviceInfo",
+			"DeviceDisappeared", "ConnectionState", "BondState", "Pairing", "GattServiceState",
+	};
+
+	/** Event types whose current state is replayed to new subscribers */
+	private static final int REPLAYED_EVENTS = EVENT_BLUETOOTH_STATE | EVENT_DISCOVERY_STATE | EVENT_SCAN_MODE
+			| EVENT_CONNECTION_STATE | EVENT_BOND_STATE | EVENT_GATT_SERVICE_STATE;
+
+	private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+	private static class Subscription
+	{
+		final WeakReference<BluetoothEventListener> listenerRef;
+		final int events;
+		/** {@link BluetoothAddress#INVALID} for all devices */
+		final long address;
+		final boolean mainThread;
+		final String listenerName;
+		final AtomicInteger overBudgetCount = new AtomicInteger();
+		volatile boolean slow = false;
+		/** Set once the state has been replayed, guarded by {@link #heldDeliveries} */
+		volatile boolean replayed = false;
+		/** State events dispatched before the state has been replayed, delivered after it */
+		final ArrayList<Runnable> heldDeliveries = new ArrayList<>();
+		/** Deliveries queued while the listener is isolated, run one at a time */
+		final ArrayDeque<Runnable> isolatedDeliveries = new ArrayDeque<>();
+		/** Set while isolated deliveries are queued or running, guarded by {@link #isolatedDeliveries} */
+		volatile boolean isolated = false;
+
+		Subscription(BluetoothEventListener listener, int events, long address, boolean mainThread)
+		{
+			this.listenerRef = new WeakReference<>(listener);
+			this.events = events;
+			this.address = address;
+			this.mainThread = mainThread;
+			this.listenerName = listener.getClass().getName();
+		}
+
+		boolean matches(long deviceAddress)
+		{
+			return this.address == BluetoothAddress.INVALID || this.address == deviceAddress;
+		}
+	}
+
+	private final Handler mainHandler;
+	/** Thread the state events are dispatched on, and replayed on */
+	private volatile Handler eventHandler = null;
+	private final Object lock = new Object();
+	private final ArrayList<Subscription> subscriptions = new ArrayList<>();
+	/** Subscribers indexed by event type bit, replaced on subscription changes */
+	private volatile Subscription[][] subscribers = newSubscribers();
+	private volatile BluetoothStateSnapshot stateSnapshot = BluetoothStateSnapshot.EMPTY;
+
+	private volatile long latencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_LATENCY_BUDGET);
+	private volatile boolean slowListenerIsolation = false;
+	/** Runs the queues of the isolated slow listeners, created on first use */
+	private ExecutorService isolationExecutor = null;
+	private final DispatchMetrics.Counter[] eventCounters = new DispatchMetrics.Counter[EVENT_TYPE_COUNT];
+	private final ConcurrentHashMap<String, DispatchMetrics.Counter> listenerCounters = new ConcurrentHashMap<>();
+
+	public BluetoothEventBus()
+	{
+		this(new Handler(Looper.getMainLooper()));
+	}
+
+	/**
+	 * @param mainHandler - handler of the main thread
+	 */
+	BluetoothEventBus(Handler mainHandler)
+	{
+		this.mainHandler = mainHandler;
+		for (int eventIndex = 0; eventIndex < EVENT_TYPE_COUNT; eventIndex++)
+		{
+			this.eventCounters[eventIndex] = new DispatchMetrics.Counter();
+		}
+	}
+
+	/**
+	 * Subscribe a listener to events of all devices. Replaces any previous subscription of the listener for all devices.
+	 *
+	 * @param listener
+	 * @param events - event types to receive, combination of the EVENT_ flags
+	 */
+	public void subscribe(BluetoothEventListener listener, int events)
+	{
+		subscribe(listener, events, null);
+	}
+
+	/**
+	 * Subscribe a listener to the events of a device. Replaces any previous subscription of the listener for the same
+	 * device. Events which do not relate to a device are delivered to all subscribers of the event type.
+	 *
+	 * @param listener
+	 * @param events - event types to receive, combination of the EVENT_ flags
+	 * @param address - device address in the form "00:11:22:AA:BB:CC", or null for all devices
+	 */
+	public void subscribe(BluetoothEventListener listener, int events, String address)
+	{
+		subscribe(listener, events, address, false);
+	}
+
+	/**
+	 * Subscribe a listener to the events of a device. Replaces any previous subscription of the listener for the same
+	 * device.
+	 *
+	 * @param listener
+	 * @param events - event types to receive, combination of the EVENT_ flags
+	 * @param address - device address in the form "00:11:22:AA:BB:CC", or null for all devices
+	 * @param mainThread - true to receive the events on the main thread, false to receive them on the thread they are
+	 *                   dispatched from (the Bluetooth event thread or, for LE scan results, the event executor).
+	 *                   Pairing events are always received on the Bluetooth event thread.
+	 */
+	public void subscribe(BluetoothEventListener listener, int events, String address, boolean mainThread)
+	{
+		if (listener == null)
+		{
+			throw new IllegalArgumentException("Listener cannot be null");
+		}
+
+		long deviceAddress = BluetoothAddress.INVALID;
+		if (address != null)
+		{
+			deviceAddress = BluetoothAddress.toLong(address);
+			if (deviceAddress == BluetoothAddress.INVALID)
+			{
+				throw new IllegalArgumentException("Invalid address " + address);
+			}
+		}
+
+		Subscription subscription = null;
+		synchronized (this.lock)
+		{
+			removeSubscriptions(listener, deviceAddress, false);
+			if ((events & EVENT_ALL) != 0)
+			{
+				subscription = new Subscription(listener, events & EVENT_ALL, deviceAddress, mainThread);
+				this.subscriptions.add(subscription);
+			}
+			rebuild();
+		}
+
+		if (subscription != null)
+		{
+			replayState(subscription);
+		}
+	}
+
+	/**
+	 * Remove all subscriptions of a listener.
+	 *
+	 * @param listener
+	 */
+	public void unsubscribe(BluetoothEventListener listener)
+	{
+		synchronized (this.lock)
+		{
+			removeSubscriptions(listener, BluetoothAddress.INVALID, true);
+			rebuild();
+		}
+	}
+
+	/**
+	 * Remove all subscriptions.
+	 */
+	public void clear()
+	{
+		synchronized (this.lock)
+		{
+			for (Subscription subscription : this.subscriptions)
+			{
+				synchronized (subscription.isolatedDeliveries)
+				{
+					subscription.isolatedDeliveries.clear();
+				}
+				synchronized (subscription.heldDeliveries)
+				{
+					subscription.heldDeliveries.clear();
+				}
+			}
+			this.subscriptions.clear();
+			rebuild();
+
+			if (this.isolationExecutor != null)
+			{
+				this.isolationExecutor.shutdown();
+				this.isolationExecutor = null;
+			}
+		}
+	}
+
+	/**
+	 * @param latencyBudget - time in milliseconds a listener may take to handle an event. Listeners exceeding it
+	 *                      repeatedly are flagged as slow.
+	 */
+	public void setLatencyBudget(long latencyBudget)
+	{
+		this.latencyBudgetNanos = TimeUnit.MILLISECONDS.toNanos(latencyBudget);
+	}
+
+	public long getLatencyBudget()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(this.latencyBudgetNanos);
+	}
+
+	/**
+	 * @param isolate - true to deliver the events of listeners flagged as slow asynchronously on their own queue, so
+	 *                they do not delay the other listeners, nor each other. Listeners receiving their events on the
+	 *                main thread and pairing events are not affected.
+	 */
+	public void setSlowListenerIsolation(boolean isolate)
+	{
+		this.slowListenerIsolation = isolate;
+	}
+
+	public boolean isSlowListenerIsolation()
+	{
+		return slowListenerIsolation;
+	}
+
+	/**
+	 * @return the delivery times recorded since the last {@link #resetDispatchMetrics()}
+	 */
+	public DispatchMetrics getDispatchMetrics()
+	{
+		ArrayList<DispatchMetrics.Stats> eventStats = new ArrayList<>(EVENT_TYPE_COUNT);
+		for (int eventIndex = 0; eventIndex < EVENT_TYPE_COUNT; eventIndex++)
+		{
+			eventStats.add(this.eventCounters[eventIndex].snapshot(EVENT_NAMES[eventIndex]));
+		}
+
+		ArrayList<DispatchMetrics.Stats> listenerStats = new ArrayList<>(this.listenerCounters.size());
+		for (Map.Entry<String, DispatchMetrics.Counter> entry : this.listenerCounters.entrySet())
+		{
+			listenerStats.add(entry.getValue().snapshot(entry.getKey()));
+		}
+
+		ArrayList<String> slowListeners = new ArrayList<>();
+		synchronized (this.lock)
+		{
+			for (Subscription subscription : this.subscriptions)
+			{
+				if (subscription.slow && !slowListeners.contains(subscription.listenerName))
+				{
+					slowListeners.add(subscription.listenerName);
+				}
+			}
+		}
+
+		return new DispatchMetrics(this.latencyBudgetNanos, eventStats, listenerStats, slowListeners);
+	}
+
+	/**
+	 * Reset the delivery times recorded and the slow listener flags.
+	 */
+	public void resetDispatchMetrics()
+	{
+		for (DispatchMetrics.Counter counter : this.eventCounters)
+		{
+			counter.reset();
+		}
+		this.listenerCounters.clear();
+
+		synchronized (this.lock)
+		{
+			for (Subscription subscription : this.subscriptions)
+			{
+				subscription.slow = false;
+				subscription.overBudgetCount.set(0);
+			}
+		}
+	}
+
+	/**
+	 * @param eventHandler - handler of the thread the state events are dispatched on, the state is replayed to new
+	 *                     subscribers on it. Without it, the state is replayed on the subscribing thread.
+	 */
+	void setEventHandler(Handler eventHandler)
+	{
+		this.eventHandler = eventHandler;
+	}
+
+	/**
+	 * @return the current Bluetooth state
+	 */
+	public BluetoothStateSnapshot getStateSnapshot()
+	{
+		return stateSnapshot;
+	}
+
+	void setStateSnapshot(BluetoothStateSnapshot stateSnapshot)
+	{
+		this.stateSnapshot = stateSnapshot;
+	}
+
+	/**
+	 * @param eventType - one of the EVENT_ flags
+	 * @return true if any listener is subscribed to the event type
+	 */
+	public boolean hasSubscribers(int eventType)
+	{
+		return getSubscribers(eventType).length > 0;
+	}
+
+	/*
+	 * Event dispatch methods
+	 */
+	void dispatchBluetoothStateChanged(boolean enable)
+	{
+		dispatch(EVENT_BLUETOOTH_STATE, null, enable ? 1 : 0, 0, null);
+	}
+
+	void dispatchDiscoveryStateChanged(boolean searching)
+	{
+		dispatch(EVENT_DISCOVERY_STATE, null, searching ? 1 : 0, 0, null);
+	}
+
+	void dispatchScanModeChanged(int scanMode)
+	{
+		dispatch(EVENT_SCAN_MODE, null, scanMode, 0, null);
+	}
+
+	void dispatchDeviceFound(BluetoothDevice device, int signalStrength, boolean bluetoothLEDevice)
+	{
+		dispatch(EVENT_DEVICE_FOUND, device, signalStrength, bluetoothLEDevice ? 1 : 0, null);
+	}
+
+	void dispatchDevicesFound(List<FoundDevice> devices)
+	{
+		dispatch(EVENT_DEVICE_FOUND, null, 0, 0, devices);
+	}
+
+	void dispatchDeviceInfoChanged(BluetoothDevice device, int updateType)
+	{
+		dispatch(EVENT_DEVICE_INFO, device, updateType, 0, null);
+	}
+
+	void dispatchDeviceDisappeared(BluetoothDevice device)
+	{
+		dispatch(EVENT_DEVICE_DISAPPEARED, device, 0, 0, null);
+	}
+
+	void dispatchConnectionStateChanged(BluetoothDevice device, int connectionState)
+	{
+		dispatch(EVENT_CONNECTION_STATE, device, connectionState, 0, null);
+	}
+
+	void dispatchBondingStateChanged(BluetoothDevice device, int previousBondState, int newBondState)
+	{
+		dispatch(EVENT_BOND_STATE, device, previousBondState, newBondState, null);
+	}
+
+	/**
+	 * Pairing events are delivered on the calling thread to all subscribers, as the result is needed straight away.
+	 *
+	 * @return true if a listener processed the pairing event, in which case it is not dispatched to the remaining listeners
+	 */
+	boolean dispatchPairingEvent(BluetoothDevice device, boolean requestedOrCancelled, int pairingVariant)
+	{
+		Subscription[] subscribers = getSubscribers(EVENT_PAIRING);
+		if (subscribers.length == 0)
+		{
+			return false;
+		}
+
+		// A cancel without a device only matches the subscriptions for all devices
+		long address = device != null ? BluetoothAddress.toLong(device.getAddress()) : BluetoothAddress.INVALID;
+		for (Subscription subscription : subscribers)
+		{
+			BluetoothEventListener listener = subscription.listenerRef.get();
+			if (listener == null || !subscription.matches(address))
+			{
+				continue;
+			}
+
+			long start = System.nanoTime();
+			boolean processed = listener.onPairingEventOccurred(device, requestedOrCancelled, pairingVariant);
+			recordDelivery(subscription, EVENT_PAIRING, System.nanoTime() - start);
+			if (processed)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	void dispatchGattServiceStateChanged(boolean bluetoothGattReady)
+	{
+		dispatch(EVENT_GATT_SERVICE_STATE, null, bluetoothGattReady ? 1 : 0, 0, null);
+	}
+
+	/*
+	 * Deliver an event to its subscribers. The event arguments are passed as primitives so nothing is allocated unless
+	 * the event has to be posted to the main thread.
+	 */
+	private void dispatch(int eventType, BluetoothDevice device, int arg1, int arg2, List<FoundDevice> devices)
+	{
+		Subscription[] subscribers = getSubscribers(eventType);
+		if (subscribers.length == 0)
+		{
+			return;
+		}
+
+		long address = device != null ? BluetoothAddress.toLong(device.getAddress()) : BluetoothAddress.INVALID;
+		for (final Subscription subscription : subscribers)
+		{
+			if (device != null && !subscription.matches(address))
+			{
+				continue;
+			}
+
+			if (!subscription.replayed && (eventType & REPLAYED_EVENTS) != 0
+					&& holdUntilReplayed(subscription, eventType, device, arg1, arg2, devices))
+			{
+				continue;
+			}
+
+			route(subscription, eventType, device, arg1, arg2, devices);
+		}
+	}
+
+	/*
+	 * Deliver an event to a subscriber on the main thread, on an isolated queue or directly
+	 */
+	private void route(Subscription subscription, int eventType, BluetoothDevice device, int arg1, int arg2,
+			List<FoundDevice> devices)
+	{
+		if (subscription.mainThread)
+		{
+			this.mainHandler.post(createDelivery(subscription, eventType, device, arg1, arg2, devices));
+		}
+		else if ((subscription.slow && this.slowListenerIsolation) || subscription.isolated)
+		{
+			// Also while deliveries are still queued, so the events stay in order
+			deliverIsolated(subscription, createDelivery(subscription, eventType, device, arg1, arg2, devices));
+		}
+		else
+		{
+			deliver(subscription, eventType, device, arg1, arg2, devices);
+		}
+	}
+
+	/*
+	 * Hold a state event dispatched before the state has been replayed to the subscriber, so a change queued on the
+	 * event thread ahead of the replay is not lost. Returns false if the state has been replayed in the meantime.
+	 */
+	private boolean holdUntilReplayed(final Subscription subscription, final int eventType, final BluetoothDevice device,
+			final int arg1, final int arg2, final List<FoundDevice> devices)
+	{
+		synchronized (subscription.heldDeliveries)
+		{
+			if (subscription.replayed)
+			{
+				return false;
+			}
+
+			subscription.heldDeliveries.add(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					route(subscription, eventType, device, arg1, arg2, devices);
+				}
+			});
+			return true;
+		}
+	}
+
+	/*
+	 * Mark the state as replayed and take the events held until then
+	 */
+	private List<Runnable> takeHeldDeliveries(Subscription subscription)
+	{
+		synchronized (subscription.heldDeliveries)
+		{
+			subscription.replayed = true;
+			if (subscription.heldDeliveries.isEmpty())
+			{
+				return Collections.emptyList();
+			}
+
+			List<Runnable> heldDeliveries = new ArrayList<>(subscription.heldDeliveries);
+			subscription.heldDeliveries.clear();
+			return heldDeliveries;
+		}
+	}
+
+	private Runnable createDelivery(final Subscription subscription, final int eventType, final BluetoothDevice device,
+			final int arg1, final int arg2, final List<FoundDevice> devices)
+	{
+		return new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				deliver(subscription, eventType, device, arg1, arg2, devices);
+			}
+		};
+	}
+
+	/*
+	 * Queue a delivery to an isolated listener. Each listener has its own queue, drained by one pooled thread at a time,
+	 * so a listener blocking only holds up its own events.
+	 */
+	private void deliverIsolated(final Subscription subscription, Runnable delivery)
+	{
+		synchronized (subscription.isolatedDeliveries)
+		{
+			subscription.isolatedDeliveries.add(delivery);
+			if (subscription.isolated)
+			{
+				return;
+			}
+			subscription.isolated = true;
+		}
+
+		try
+		{
+			getIsolationExecutor().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					drainIsolatedDeliveries(subscription);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Cleared
+			synchronized (subscription.isolatedDeliveries)
+			{
+				subscription.isolatedDeliveries.clear();
+				subscription.isolated = false;
+			}
+		}
+	}
+
+	private void drainIsolatedDeliveries(Subscription subscription)
+	{
+		while (true)
+		{
+			Runnable delivery;
+			synchronized (subscription.isolatedDeliveries)
+			{
+				delivery = subscription.isolatedDeliveries.poll();
+				if (delivery == null)
+				{
+					subscription.isolated = false;
+					return;
+				}
+			}
+
+			try
+			{
+				delivery.run();
+			}
+			catch (Exception e)
+			{
+				// Keep delivering the listener's later events
+				Logger.ex(TAG, "Error delivering event to " + subscription.listenerName, e);
+			}
+		}
+	}
+
+	private ExecutorService getIsolationExecutor()
+	{
+		synchronized (this.lock)
+		{
+			if (this.isolationExecutor == null)
+			{
+				this.isolationExecutor = Executors.newCachedThreadPool(new ThreadFactory()
+				{
+					private final AtomicInteger threadCount = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable runnable)
+					{
+						Thread thread = new Thread(runnable, "BluetoothSlowListener-" + this.threadCount.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+			}
+			return this.isolationExecutor;
+		}
+	}
+
+	private void deliver(Subscription subscription, int eventType, BluetoothDevice device, int arg1, int arg2, List<FoundDevice> devices)
+	{
+		BluetoothEventListener listener = subscription.listenerRef.get();
+		if (listener == null)
+		{
+			return;
+		}
+
+		long start = System.nanoTime();
+		invoke(subscription, listener, eventType, device, arg1, arg2, devices);
+		recordDelivery(subscription, eventType, System.nanoTime() - start);
+	}
+
+	private void recordDelivery(Subscription subscription, int eventType, long nanos)
+	{
+		boolean overBudget = nanos > this.latencyBudgetNanos;
+		this.eventCounters[Integer.numberOfTrailingZeros(eventType)].record(nanos, overBudget);
+
+		DispatchMetrics.Counter counter = this.listenerCounters.get(subscription.listenerName);
+		if (counter == null)
+		{
+			DispatchMetrics.Counter newCounter = new DispatchMetrics.Counter();
+			counter = this.listenerCounters.putIfAbsent(subscription.listenerName, newCounter);
+			if (counter == null)
+			{
+				counter = newCounter;
+			}
+		}
+		counter.record(nanos, overBudget);
+
+		if (overBudget && subscription.overBudgetCount.incrementAndGet() >= SLOW_LISTENER_THRESHOLD && !subscription.slow)
+		{
+			subscription.slow = true;
+			Logger.w(TAG, "Slow listener %s took %d ms to handle %s", subscription.listenerName,
+					TimeUnit.NANOSECONDS.toMillis(nanos), EVENT_NAMES[Integer.numberOfTrailingZeros(eventType)]);
+		}
+	}
+
+	private static void invoke(Subscription subscription, BluetoothEventListener listener, int eventType, BluetoothDevice device,
+			int arg1, int arg2, List<FoundDevice> devices)
+	{
+		switch (eventType)
+		{
+			case EVENT_BLUETOOTH_STATE:
+				listener.onBluetoothStateChanged(arg1 != 0);
+				break;
+			case EVENT_DISCOVERY_STATE:
+				listener.onDiscoveryStateChanged(arg1 != 0);
+				break;
+			case EVENT_SCAN_MODE:
+				listener.onScanModeChanged(arg1);
+				break;
+			case EVENT_DEVICE_FOUND:
+				if (devices == null)
+				{
+					listener.onDeviceFound(device, arg1, arg2 != 0);
+				}
+				else
+				{
+					deliverDevicesFound(subscription, listener, devices);
+				}
+				break;
+			case EVENT_DEVICE_INFO:
+				listener.onDeviceInfoChanged(device, arg1);
+				break;
+			case EVENT_DEVICE_DISAPPEARED:
+				listener.onDeviceDisappeared(device);
+				break;
+			case EVENT_CONNECTION_STATE:
+				listener.onDeviceConnectionStateChanged(device, arg1);
+				break;
+			case EVENT_BOND_STATE:
+				listener.onBondingStateChanged(device, arg1, arg2);
+				break;
+			case EVENT_GATT_SERVICE_STATE:
+				listener.onGattServiceStateChanged(arg1 != 0);
+				break;
+		}
+	}
+
+	private static void deliverDevicesFound(Subscription subscription, BluetoothEventListener listener, List<FoundDevice> devices)
+	{
+		if (subscription.address == BluetoothAddress.INVALID)
+		{
+			listener.onDevicesFound(devices);
+			return;
+		}
+
+		// A device appears at most once per batch
+		for (int index = 0; index < devices.size(); index++)
+		{
+			FoundDevice foundDevice = devices.get(index);
+			if (BluetoothAddress.toLong(foundDevice.getDevice().getAddress()) == subscription.address)
+			{
+				listener.onDeviceFound(foundDevice.getDevice(), foundDevice.getSignalStrength(), foundDevice.isBluetoothLEDevice());
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Deliver the current state to a new subscriber: the adapter, scan mode, discovery and GATT service states once
+	 * known, the connection state of the devices which are not disconnected and the bond state of the devices bonding.
+	 * The replay runs on the event thread, so it is serialised with the state events dispatched there and never
+	 * delivered after a newer one.
+	 */
+	private void replayState(final Subscription subscription)
+	{
+		Handler eventHandler = this.eventHandler;
+		if (eventHandler == null || eventHandler.getLooper() == Looper.myLooper())
+		{
+			replayStateNow(subscription);
+			return;
+		}
+
+		boolean posted = eventHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				replayStateNow(subscription);
+			}
+		});
+		if (!posted)
+		{
+			// Event thread stopped
+			for (Runnable delivery : takeHeldDeliveries(subscription))
+			{
+				delivery.run();
+			}
+		}
+	}
+
+	/*
+	 * The events held until now are delivered after the state, they end on the state of the snapshot and so never
+	 * leave the subscriber with an older one
+	 */
+	private void replayStateNow(final Subscription subscription)
+	{
+		List<Runnable> heldDeliveries = takeHeldDeliveries(subscription);
+		final BluetoothStateSnapshot snapshot = this.stateSnapshot;
+		if (subscription.mainThread)
+		{
+			// Posted before any later event, which is posted to the main thread too
+			this.mainHandler.post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					replayState(subscription, snapshot);
+				}
+			});
+		}
+		else
+		{
+			replayState(subscription, snapshot);
+		}
+
+		for (Runnable delivery : heldDeliveries)
+		{
+			delivery.run();
+		}
+	}
+
+	private void replayState(Subscription subscription, BluetoothStateSnapshot snapshot)
+	{
+		int events = subscription.events;
+		int adapterState = snapshot.getAdapterState();
+		if ((events & EVENT_BLUETOOTH_STATE) != 0 && (adapterState == STATE_ON || adapterState == STATE_OFF))
+		{
+			deliver(subscription, EVENT_BLUETOOTH_STATE, null, adapterState == STATE_ON ? 1 : 0, 0, null);
+		}
+		if ((events & EVENT_SCAN_MODE) != 0 && snapshot.getScanMode() != BluetoothStateSnapshot.UNKNOWN)
+		{
+			deliver(subscription, EVENT_SCAN_MODE, null, snapshot.getScanMode(), 0, null);
+		}
+		if ((events & EVENT_DISCOVERY_STATE) != 0 && (snapshot.isDiscovering() || snapshot.isLeScanning()))
+		{
+			deliver(subscription, EVENT_DISCOVERY_STATE, null, 1, 0, null);
+		}
+		if ((events & EVENT_GATT_SERVICE_STATE) != 0 && snapshot.isGattReadyKnown())
+		{
+			deliver(subscription, EVENT_GATT_SERVICE_STATE, null, snapshot.isGattReady() ? 1 : 0, 0, null);
+		}
+
+		if ((events & (EVENT_CONNECTION_STATE | EVENT_BOND_STATE)) == 0)
+		{
+			return;
+		}
+		for (BluetoothStateSnapshot.DeviceState deviceState : snapshot.getDeviceStates())
+		{
+			BluetoothDevice device = deviceState.getDevice();
+			if (!subscription.matches(BluetoothAddress.toLong(device.getAddress())))
+			{
+				continue;
+			}
+
+			int connectionState = deviceState.getConnectionState();
+			if ((events & EVENT_CONNECTION_STATE) != 0 && connectionState != BluetoothStateSnapshot.UNKNOWN
+					&& connectionState != LocalBluetoothManager.STATE_DISCONNECTED)
+			{
+				deliver(subscription, EVENT_CONNECTION_STATE, device, connectionState, 0, null);
+			}
+			if ((events & EVENT_BOND_STATE) != 0 && deviceState.getBondState() == BluetoothDevice.BOND_BONDING)
+			{
+				deliver(subscription, EVENT_BOND_STATE, device, BluetoothDevice.BOND_NONE, BluetoothDevice.BOND_BONDING, null);
+			}
+		}
+	}
+
+	private Subscription[] getSubscribers(int eventType)
+	{
+		return this.subscribers[Integer.numberOfTrailingZeros(eventType)];
+	}
+
+	/*
+	 * Must be called holding the lock. Also prunes the listeners which have been garbage collected.
+	 */
+	private void removeSubscriptions(BluetoothEventListener listener, long address, boolean allAddresses)
+	{
+		for (int index = this.subscriptions.size() - 1; index >= 0; index--)
+		{
+			Subscription subscription = this.subscriptions.get(index);
+			BluetoothEventListener existing = subscription.listenerRef.get();
+			if (existing == null
+					|| (existing.equals(listener) && (allAddresses || subscription.address == address)))
+			{
+				this.subscriptions.remove(index);
+			}
+		}
+	}
+
+	/*
+	 * Must be called holding the lock
+	 */
+	private void rebuild()
+	{
+		Subscription[][] subscribers = new Subscription[EVENT_TYPE_COUNT][];
+		ArrayList<Subscription> eventSubscribers = new ArrayList<>(this.subscriptions.size());
+		for (int eventIndex = 0; eventIndex < EVENT_TYPE_COUNT; eventIndex++)
+		{
+			eventSubscribers.clear();
+			for (Subscription subscription : this.subscriptions)
+			{
+				if ((subscription.events & (1 << eventIndex)) != 0)
+				{
+					eventSubscribers.add(subscription);
+				}
+			}
+			subscribers[eventIndex] = eventSubscribers.isEmpty()
+					? NO_SUBSCRIPTIONS
+					: eventSubscribers.toArray(new Subscription[eventSubscribers.size()]);
+		}
+		this.subscribers = subscribers;
+	}
+
+	private static Subscription[][] newSubscribers()
+	{
+		Subscription[][] subscribers = new Subscription[EVENT_TYPE_COUNT][];
+		for (int eventIndex = 0; eventIndex < EVENT_TYPE_COUNT; eventIndex++)
+		{
+			subscribers[eventIndex] = NO_SUBSCRIPTIONS;
+		}
+		return subscribers;
+	}
+}
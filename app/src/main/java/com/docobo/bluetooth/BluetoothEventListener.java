@@ -10,6 +10,8 @@ package com.docobo.bluetooth;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
+import java.util.List;
+
 public abstract class BluetoothEventListener
 {
 	/**
@@ -53,6 +55,23 @@ public abstract class BluetoothEventListener
 	{	
 	}
 
+	/**
+	 * Callback triggered with the devices found during a batching period, when device found batching is enabled.
+	 * <p>
+	 * The default implementation calls {@link #onDeviceFound(BluetoothDevice, int, boolean)} for each device.
+	 *
+	 * @param devices - devices found, in the order they were found. This list cannot be modified.
+	 * @see LocalBluetoothManager#setDeviceFoundBatching(long, int)
+	 */
+	public void onDevicesFound(List<FoundDevice> devices)
+	{
+		for (int index = 0; index < devices.size(); index++)
+		{
+			FoundDevice foundDevice = devices.get(index);
+			onDeviceFound(foundDevice.getDevice(), foundDevice.getSignalStrength(), foundDevice.isBluetoothLEDevice());
+		}
+	}
+
 	/**
 	 * Callback trigger when device information is updated.
 	 * 
@@ -66,7 +85,8 @@ public abstract class BluetoothEventListener
 	/**
 	 * Callback when a device has disappeared.
 	 * <br>
-	 * <i>Note: Not quite sure when this would get called!</i>
+	 * Called once a device has not been seen over classic discovery or Bluetooth LE scanning for the
+	 * {@link DiscoveryCache#getTimeToLive() time to live} of the discovery cache.
 	 * @param device
 	 */
 	public void onDeviceDisappeared(BluetoothDevice device)
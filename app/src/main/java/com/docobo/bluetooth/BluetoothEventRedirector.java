@@ -14,13 +14,20 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import com.docobo.device.PlatformInfo;
 import com.docobo.logger.Logger;
 
-import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
 
 public class BluetoothEventRedirector
 {
@@ -32,20 +39,80 @@ public class BluetoothEventRedirector
 		@Override
 		public void onReceive(Context context, Intent intent)
 		{
-			String action = intent.getAction();
-			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-			
-			if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_STARTED))
+			BroadcastRecorder recorder = broadcastRecorder;
+			if (recorder != null)
 			{
-				Logger.df(TAG, 15,"Bluetooth2.0 discorvery started");
-				localBluetoothManager.dispatchBluetoothScanningStateChanged(true);
+				recorder.record(intent);
 			}
-			else if (action.equals(BluetoothAdapter.ACTION_DISCOVERY_FINISHED))
+			
+			ActionHandler handler = actionHandlers.get(intent.getAction());
+			if (handler != null)
 			{
-				Logger.df(TAG, 15,"Bluetooth2.0 discorvery finished");
-				localBluetoothManager.dispatchBluetoothScanningStateChanged(false);
+				handler.onReceive(this, intent);
 			}
-			else if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED))
+		}
+	}
+	
+	/*
+	 * Handles one broadcast action, reading only the extras the action carries
+	 */
+	private abstract class ActionHandler
+	{
+		abstract void onReceive(BroadcastReceiver receiver, Intent intent);
+	}
+	
+	private class AclHandler extends ActionHandler
+	{
+		private final String description;
+		private final int connectionState;
+		
+		AclHandler(String description, int connectionState)
+		{
+			this.description = description;
+			this.connectionState = connectionState;
+		}
+		
+		@Override
+		void onReceive(BroadcastReceiver receiver, Intent intent)
+		{
+			BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			Logger.df(TAG, DEBUG_LEVEL, "%s: %s [%s]", this.description, deviceRegistry.getName(device), device.getAddress());
+			
+			dispatchDeviceConnectionStateChanged(device, this.connectionState);
+		}
+	}
+	
+	private class GattServiceHandler extends ActionHandler
+	{
+		private final String description;
+		private final boolean bluetoothGattReady;
+		
+		GattServiceHandler(String description, boolean bluetoothGattReady)
+		{
+			this.description = description;
+			this.bluetoothGattReady = bluetoothGattReady;
+		}
+		
+		@Override
+		void onReceive(BroadcastReceiver receiver, Intent intent)
+		{
+			Logger.df(TAG, DEBUG_LEVEL, this.description);
+			dispatchGATTServiceStateChangedEvent(this.bluetoothGattReady);
+		}
+	}
+	
+	/*
+	 * Build the handlers of the broadcast actions received, from which the receiver intent filter is built
+	 */
+	private HashMap<String, ActionHandler> createActionHandlers()
+	{
+		HashMap<String, ActionHandler> handlers = new HashMap<>();
+		
+		// Bluetooth hardware state broadcast (on/off and discovery state)
+		handlers.put(BluetoothAdapter.ACTION_STATE_CHANGED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
 				int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
 				int previousState = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_STATE, BluetoothAdapter.ERROR);
@@ -73,129 +140,155 @@ public class BluetoothEventRedirector
 					}
 				}
 			}
-			else if (action.equals(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED))
+		});
+		handlers.put(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
 				int mode = intent.getIntExtra(BluetoothAdapter.EXTRA_SCAN_MODE, -1);
 				int previousMode = intent.getIntExtra(BluetoothAdapter.EXTRA_PREVIOUS_SCAN_MODE, -1);
-	
+				
 				Logger.df(TAG, DEBUG_LEVEL,"Bluetooth Scan Mode Changed [%s --> %s]", 
 						getBluetothAdapterStateString(previousMode), 
 						getBluetothAdapterStateString(mode)
 						);
 				
+				localBluetoothManager.updateScanMode(mode);
 				dispatchScanModeChangedEvent(mode);
 			}
-			else if (action.equals(BluetoothDevice.ACTION_ACL_CONNECTED))
-			{
-				Logger.df(TAG, DEBUG_LEVEL, "Connected: %s [%s]", device.getName(), device.getAddress());
-	
-				dispatchDeviceConnectionStateChanged(device, LocalBluetoothManager.STATE_CONNECTED);
-			}
-			else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED))
-			{
-				Logger.df(TAG, DEBUG_LEVEL, "Disconnect Request: %s [%s]", device.getName(), device.getAddress());
-	
-				dispatchDeviceConnectionStateChanged(device, LocalBluetoothManager.STATE_DISCONNECTING);
-			}
-			else if (action.equals(BluetoothDevice.ACTION_ACL_DISCONNECTED))
+		});
+		
+		// Device discovery broadcast
+		handlers.put(BluetoothAdapter.ACTION_DISCOVERY_STARTED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				Logger.df(TAG, DEBUG_LEVEL, "Disconnected: %s [%s]", device.getName(), device.getAddress());
-	
-				dispatchDeviceConnectionStateChanged(device, LocalBluetoothManager.STATE_DISCONNECTED);
+				Logger.df(TAG, 15,"Bluetooth2.0 discorvery started");
+				localBluetoothManager.updateDiscovering(true);
+				localBluetoothManager.dispatchBluetoothScanningStateChanged(true);
 			}
-			else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED))
+		});
+		handlers.put(BluetoothAdapter.ACTION_DISCOVERY_FINISHED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
-				int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
-				int reason = intent.getIntExtra(LocalBluetoothManager.EXTRA_BLUETOOTH_DEVICE_REASON, BluetoothDevice.ERROR);
-				
-				Logger.df(TAG, DEBUG_LEVEL, "Bond State Changed for %1$s (%2$s) [Reason: %5$d]: %3$s --> %4$s", 
-						device.getName(), 
-						device.getAddress(), 
-						getBluetothDeviceStateString(previousBondState), 
-						getBluetothDeviceStateString(bondState), 
-						reason);
-				
-				dispatchBondingStateChanged(device, previousBondState, bondState);
+				Logger.df(TAG, 15,"Bluetooth2.0 discorvery finished");
+				localBluetoothManager.updateDiscovering(false);
+				localBluetoothManager.dispatchBluetoothScanningStateChanged(false);
 			}
-			else if (action.equals(BluetoothDevice.ACTION_FOUND))
+		});
+		handlers.put(BluetoothDevice.ACTION_FOUND, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 				String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+				short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+				BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+				String cachedName = deviceRegistry.getCachedName(device.getAddress());
+				deviceRegistry.setName(device, name);
+				deviceRegistry.setBluetoothClass(device, btClass);
 				if (name == null)
 				{
-					name = device.getName();
+					name = deviceRegistry.getName(device);
 				}
-				short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
-				BluetoothClass btClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
 				
 				Logger.df(TAG, DEBUG_LEVEL, "Device Found: %s [%s] (Name: %s, RSSI: %d, Class: %s)", 
-						device.getName(), device.getAddress(), name, rssi, btClass);
+						cachedName, device.getAddress(), name, rssi, btClass);
 				
-				dispatchDeviceFoundEvent(device, rssi, false);
+				updateDiscoveryCache(device, DiscoveryCache.TRANSPORT_CLASSIC, rssi == Short.MIN_VALUE ? DiscoveryCache.RSSI_UNKNOWN : rssi);
+				dispatchDeviceFoundEvent(device, rssi, false, null);
 			}
-			else if (action.equals(BluetoothDevice.ACTION_NAME_CHANGED))
+		});
+		handlers.put(BluetoothDevice.ACTION_NAME_CHANGED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 				String name = intent.getStringExtra(BluetoothDevice.EXTRA_NAME);
+				deviceRegistry.setName(device, name);
 				if (name == null)
 				{
-					name = device.getName();
+					name = deviceRegistry.getName(device);
 				}
-	
-				Logger.df(TAG, DEBUG_LEVEL, "Device Name Update: %s [%s] (Name: %s)", device.getName(), device.getAddress(), name);
 				
-				dispatchDeviceInfoUpdatedEvent(device, UPDATE_TYPE_NAME);
-			}
-			else if (action.equals(BluetoothDevice.ACTION_CLASS_CHANGED))
-			{
-				BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
-				Logger.df(TAG, DEBUG_LEVEL, "Device Class Update: %s[%s] (Class: %s)", device.getName(), device.getAddress(), bluetoothClass);
+				Logger.df(TAG, DEBUG_LEVEL, "Device Name Update: %s [%s] (Name: %s)", name, device.getAddress(), name);
 				
-				dispatchDeviceInfoUpdatedEvent(device, UPDATE_TYPE_BLUETOOTH_DEVICE_CLASS);
+				dispatchDeviceInfoUpdatedEvent(device, UPDATE_TYPE_NAME);
 			}
-			else if (action.equals(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_DISAPPEARED))
+		});
+		handlers.put(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_DISAPPEARED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				Logger.df(TAG, DEBUG_LEVEL, "Device Disappeared: %s[%s]", device.getName(), device.getAddress());
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 				
-				dispatchDeviceDisappeared(device);
-			}
-			else if (action.equals(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_PAIRING_CANCEL))
-			{
-				if (device != null)
+				// Only reported once the device has disappeared from both transports
+				if (discoveryCache.remove(device, DiscoveryCache.TRANSPORT_CLASSIC))
 				{
-					Logger.df(TAG, DEBUG_LEVEL, "Device Pairing Cancel: %s[%s]", device.getName(), device.getAddress());
+					Logger.df(TAG, DEBUG_LEVEL, "Device Disappeared: %s[%s]", deviceRegistry.getName(device), device.getAddress());
+					
+					dispatchDeviceDisappeared(device);
 				}
 				else
 				{
-					Logger.df(TAG, DEBUG_LEVEL, "Device Pairing Cancel: NULL");
+					Logger.df(TAG, DEBUG_LEVEL, "Device Disappeared from classic discovery: %s[%s]", deviceRegistry.getName(device), device.getAddress());
 				}
-				
-				dispatchPairingEvent(device, false, -1);
 			}
-			else if (action.equals(LocalBluetoothManager.ACTION_CONNECTION_STATE_CHANGED))
+		});
+		
+		// Device connection state changed broadcasts
+		handlers.put(BluetoothDevice.ACTION_ACL_CONNECTED, new AclHandler("Connected", LocalBluetoothManager.STATE_CONNECTED));
+		handlers.put(BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED, new AclHandler("Disconnect Request", LocalBluetoothManager.STATE_DISCONNECTING));
+		handlers.put(BluetoothDevice.ACTION_ACL_DISCONNECTED, new AclHandler("Disconnected", LocalBluetoothManager.STATE_DISCONNECTED));
+		
+		// Pairing state changed broadcast
+		handlers.put(BluetoothDevice.ACTION_BOND_STATE_CHANGED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				int connState = intent.getIntExtra(LocalBluetoothManager.EXTRA_CONNECTION_STATE, BluetoothDevice.ERROR);
-				int previousConnState = intent.getIntExtra(LocalBluetoothManager.EXTRA_PREVIOUS_CONNECTION_STATE, BluetoothDevice.ERROR);
-				Logger.df(TAG, DEBUG_LEVEL, "BluetoothProfile Connection State: %s[%s] [%s --> %s]", 
-						device.getName(), 
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.ERROR);
+				int previousBondState = intent.getIntExtra(BluetoothDevice.EXTRA_PREVIOUS_BOND_STATE, BluetoothDevice.ERROR);
+				int reason = intent.getIntExtra(LocalBluetoothManager.EXTRA_BLUETOOTH_DEVICE_REASON, BluetoothDevice.ERROR);
+				deviceRegistry.setBondState(device, bondState);
+				localBluetoothManager.updateBondState(device, bondState);
+				
+				Logger.df(TAG, DEBUG_LEVEL, "Bond State Changed for %1$s (%2$s) [Reason: %5$d]: %3$s --> %4$s", 
+						deviceRegistry.getName(device), 
 						device.getAddress(), 
-						getBluetothAdapterStateString(connState), 
-						getBluetothAdapterStateString(previousConnState)
-						);
+						getBluetothDeviceStateString(previousBondState), 
+						getBluetothDeviceStateString(bondState), 
+						reason);
+				
+				dispatchBondingStateChanged(device, previousBondState, bondState);
 			}
-			else if (action.equals(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_PAIRING_REQUEST))
+		});
+		handlers.put(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_PAIRING_REQUEST, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 				int pairingVariant = intent.getIntExtra(LocalBluetoothManager.EXTRA_BLUETOOTH_DEVICE_PAIRING_VARIANT, BluetoothDevice.ERROR);
-				Logger.df(TAG, DEBUG_LEVEL, "Device Pairing Requested: %s[%s] (Variant: %d)", device.getName(), device.getAddress(), pairingVariant);
+				Logger.df(TAG, DEBUG_LEVEL, "Device Pairing Requested: %s[%s] (Variant: %d)", deviceRegistry.getName(device), device.getAddress(), pairingVariant);
 				
 				if (dispatchPairingEvent(device, true, pairingVariant))
 				{
 					Logger.df(TAG, DEBUG_LEVEL, "Pairing request has been processed by an event listener");
-					if (isOrderedBroadcast())
+					if (receiver.isOrderedBroadcast())
 					{
 						Logger.df(TAG, DEBUG_LEVEL, "Aborting pairing request broadcast");
 						try
 						{
-							abortBroadcast();
+							receiver.abortBroadcast();
 						}
 						catch (Exception e)
 						{
@@ -204,29 +297,98 @@ public class BluetoothEventRedirector
 					}
 				}
 			}
-			else if (action.equals(LocalBluetoothManager.ACTION_GATT_CONNECTED))
+		});
+		handlers.put(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_PAIRING_CANCEL, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				Logger.df(TAG, DEBUG_LEVEL, "GATT Service connected");
-				dispatchGATTServiceStateChangedEvent(true);
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				if (device != null)
+				{
+					Logger.df(TAG, DEBUG_LEVEL, "Device Pairing Cancel: %s[%s]", deviceRegistry.getName(device), device.getAddress());
+				}
+				else
+				{
+					Logger.df(TAG, DEBUG_LEVEL, "Device Pairing Cancel: NULL");
+				}
+				
+				dispatchPairingEvent(device, false, -1);
 			}
-			else if (action.equals(LocalBluetoothManager.ACTION_GATT_DISCONNECTED))
+		});
+		
+		handlers.put(BluetoothDevice.ACTION_CLASS_CHANGED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				Logger.df(TAG, DEBUG_LEVEL, "GATT Service disconnected");
-				dispatchGATTServiceStateChangedEvent(false);
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				BluetoothClass bluetoothClass = intent.getParcelableExtra(BluetoothDevice.EXTRA_CLASS);
+				deviceRegistry.setBluetoothClass(device, bluetoothClass);
+				Logger.df(TAG, DEBUG_LEVEL, "Device Class Update: %s[%s] (Class: %s)", deviceRegistry.getName(device), device.getAddress(), bluetoothClass);
+				
+				dispatchDeviceInfoUpdatedEvent(device, UPDATE_TYPE_BLUETOOTH_DEVICE_CLASS);
 			}
-			else if (action.equals(LocalBluetoothManager.ACTION_GATT_NOT_SUPPORTED))
+		});
+		handlers.put(LocalBluetoothManager.ACTION_CONNECTION_STATE_CHANGED, new ActionHandler()
+		{
+			@Override
+			void onReceive(BroadcastReceiver receiver, Intent intent)
 			{
-				Logger.df(TAG, DEBUG_LEVEL, "GATT Service not supported");
-				dispatchGATTServiceStateChangedEvent(false);
+				BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+				int connState = intent.getIntExtra(LocalBluetoothManager.EXTRA_CONNECTION_STATE, BluetoothDevice.ERROR);
+				int previousConnState = intent.getIntExtra(LocalBluetoothManager.EXTRA_PREVIOUS_CONNECTION_STATE, BluetoothDevice.ERROR);
+				Logger.df(TAG, DEBUG_LEVEL, "BluetoothProfile Connection State: %s[%s] [%s --> %s]", 
+						deviceRegistry.getName(device), 
+						device.getAddress(), 
+						getBluetothAdapterStateString(connState), 
+						getBluetothAdapterStateString(previousConnState)
+						);
 			}
-		}
+		});
+		
+		// Bluetooth GATT State changes
+		handlers.put(LocalBluetoothManager.ACTION_GATT_CONNECTED, new GattServiceHandler("GATT Service connected", true));
+		handlers.put(LocalBluetoothManager.ACTION_GATT_DISCONNECTED, new GattServiceHandler("GATT Service disconnected", false));
+		handlers.put(LocalBluetoothManager.ACTION_GATT_NOT_SUPPORTED, new GattServiceHandler("GATT Service not supported", false));
+		
+		return handlers;
 	}
 	
 	private class BluetoothLeScanCallback extends LeScanCallbackInterface
 	{
+		// Scan results are delivered on the lanes of the event executor, each lane reuses its own parser
+		private final ThreadLocal<ScanRecordParser> scanRecordParsers = new ThreadLocal<ScanRecordParser>()
+		{
+			@Override
+			protected ScanRecordParser initialValue()
+			{
+				return new ScanRecordParser();
+			}
+		};
+		
 		@Override
 		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord)
 		{
+			// Results from devices which are not enrolled have already been rejected by the shared scan
+			ScanRecordParser scanRecordParser = scanRecordParsers.get();
+			if (!LeScanFilter.matchesAny(localBluetoothManager.getLeScanFilters(), device, scanRecord, scanRecordParser))
+			{
+				return;
+			}
+			
+			localBluetoothManager.getLeScanScheduler().onDeviceFound(device.getAddress());
+			localBluetoothManager.getDeviceClassifier().classify(device, scanRecord, scanRecordParser);
+			updateDiscoveryCache(device, DiscoveryCache.TRANSPORT_LE, rssi);
+			
+			ScanResultAggregator.Entry entry = scanResultAggregator.update(device, rssi, scanRecord, SystemClock.elapsedRealtime());
+			if (entry == null)
+			{
+				// Nothing significant has changed since this device was last reported
+				return;
+			}
+			rssi = entry.getSmoothedRssi();
+			
 			String scanRecordString = "";
 			if (scanRecord != null && scanRecord.length > 0)
 			{
@@ -238,14 +400,14 @@ public class BluetoothEventRedirector
 			}
 			
 			Logger.df(TAG, DEBUG_LEVEL, "BluetoothLE Device Found: %s [%s] (RSSI: %d, Scan Record: %s)", 
-					device.getName(), device.getAddress(), rssi, scanRecordString);
+					deviceRegistry.getName(device), device.getAddress(), rssi, scanRecordString);
 
 			//
 			// Temp - check type
 			//
-			Logger.d(TAG, "---- getType returned " + device.getType());
+			Logger.d(TAG, "---- getType returned " + deviceRegistry.getType(device));
 			
-			dispatchDeviceFoundEvent(device, rssi, true);
+			dispatchDeviceFoundEvent(device, rssi, true, scanRecord);
 		}
 	}
 	
@@ -254,9 +416,36 @@ public class BluetoothEventRedirector
 	public static final int UPDATE_TYPE_BLUETOOTH_DEVICE_CLASS = 2;
 	
 	private final LocalBluetoothManager localBluetoothManager;
+	private final BluetoothDeviceRegistry deviceRegistry;
 	private BluetoothBroadcastReceiver broadcastReceiver = null;
+	private final HashMap<String, ActionHandler> actionHandlers = createActionHandlers();
+	private volatile BroadcastRecorder broadcastRecorder = null;
+	/** Receiver the replayed broadcasts are delivered through, they are never ordered */
+	private final BluetoothBroadcastReceiver replayReceiver = new BluetoothBroadcastReceiver();
 	private BluetoothLeScanCallback bluetoothScanCallBack = null;
-	private final ArrayList<WeakReference<BluetoothEventListener>> bluetoothEventListeners;
+	private final ScanResultAggregator scanResultAggregator = new ScanResultAggregator();
+	private final LinkedHashMap<String, FoundDevice> pendingFoundDevices = new LinkedHashMap<>();
+	private final Runnable flushFoundDevicesRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			flushFoundDevices();
+		}
+	};
+	private final DiscoveryCache discoveryCache = new DiscoveryCache();
+	private boolean discoveryCacheSweepScheduled = false;
+	private final Runnable sweepDiscoveryCacheRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			sweepDiscoveryCache();
+		}
+	};
+	private volatile long deviceFoundBatchInterval = 0;
+	private volatile int deviceFoundBatchSize = Integer.MAX_VALUE;
+	private final BluetoothEventBus eventBus;
 	
 	public BluetoothEventRedirector(LocalBluetoothManager localBluetoothManager)
 	{
@@ -266,46 +455,23 @@ public class BluetoothEventRedirector
 		}
 		
 		this.localBluetoothManager = localBluetoothManager;
-		this.bluetoothEventListeners = localBluetoothManager.getBluetoothEventListeners();
+		this.deviceRegistry = localBluetoothManager.getDeviceRegistry();
+		this.eventBus = localBluetoothManager.getEventBus();
 	}
 	
 	synchronized void startRedirector()
 	{
 		if (this.broadcastReceiver == null)
 		{
+			// Receive exactly the actions there is a handler for
 			IntentFilter filter = new IntentFilter();
-			
-			// Bluetooth hardware state broadcast (on/off and discovery state)
-			filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
-			filter.addAction(BluetoothAdapter.ACTION_SCAN_MODE_CHANGED);
-			
-			// Device discovery broadcast
-			filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_STARTED);
-			filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-			filter.addAction(BluetoothDevice.ACTION_FOUND);
-			filter.addAction(BluetoothDevice.ACTION_NAME_CHANGED);
-			filter.addAction(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_DISAPPEARED);
-			
-			// Device connection state changed broadcasts
-			filter.addAction(BluetoothDevice.ACTION_ACL_CONNECTED);
-			filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECT_REQUESTED);
-			filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
-			
-			// Pairing state changed broadcast
-			filter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
-			filter.addAction(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_PAIRING_REQUEST);
-			filter.addAction(LocalBluetoothManager.ACTION_BLUETOOTH_DEVICE_PAIRING_CANCEL);
-			
-			filter.addAction(BluetoothDevice.ACTION_CLASS_CHANGED);
-			filter.addAction(LocalBluetoothManager.ACTION_CONNECTION_STATE_CHANGED);
-			
-			// Bluetooth GATT State changes
-			filter.addAction(LocalBluetoothManager.ACTION_GATT_CONNECTED);
-			filter.addAction(LocalBluetoothManager.ACTION_GATT_DISCONNECTED);
-			filter.addAction(LocalBluetoothManager.ACTION_GATT_NOT_SUPPORTED);
+			for (String action : this.actionHandlers.keySet())
+			{
+				filter.addAction(action);
+			}
 			
 			this.broadcastReceiver = new BluetoothBroadcastReceiver();
-			this.localBluetoothManager.getContext().registerReceiver(this.broadcastReceiver, filter);
+			this.localBluetoothManager.getContext().registerReceiver(this.broadcastReceiver, filter, null, this.localBluetoothManager.getEventHandler());
 		}
 		
 		if (this.bluetoothScanCallBack == null && this.localBluetoothManager.isBluetooth40Supported())
@@ -325,116 +491,244 @@ public class BluetoothEventRedirector
 		this.bluetoothScanCallBack = null;
 	}
 	
-	public BluetoothLeScanCallback getBluetoothScanCallBack()
+	/**
+	 * @param broadcastRecorder - recorder of the broadcasts received, or null to stop recording
+	 */
+	void setBroadcastRecorder(BroadcastRecorder broadcastRecorder)
 	{
-		return bluetoothScanCallBack;
+		this.broadcastRecorder = broadcastRecorder;
 	}
 	
-	/*
-	 * Event dispatch methods
+	/**
+	 * Handle a broadcast played back from a recording. It is posted to the event thread, like the broadcasts received.
+	 *
+	 * @param intent
 	 */
-	private void dispatchScanModeChangedEvent(int scanMode)
+	void replayBroadcast(final Intent intent)
 	{
-		synchronized (this.bluetoothEventListeners)
+		final ActionHandler handler = this.actionHandlers.get(intent.getAction());
+		if (handler != null)
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
+			this.localBluetoothManager.getEventHandler().post(new Runnable()
 			{
-				if (callback.get() != null)
-					callback.get().onScanModeChanged(scanMode);
-			}
+				@Override
+				public void run()
+				{
+					handler.onReceive(replayReceiver, intent);
+				}
+			});
 		}
 	}
 	
-	private void dispatchDeviceFoundEvent(BluetoothDevice device, int signalStrength, boolean bluetoothLEDevice)
+	/**
+	 * Wait until the broadcasts replayed so far have been handled. Returns straight away on the event thread.
+	 *
+	 * @throws InterruptedException
+	 */
+	void awaitReplayedBroadcasts() throws InterruptedException
 	{
-		synchronized (this.bluetoothEventListeners)
+		Handler eventHandler = this.localBluetoothManager.getEventHandler();
+		if (eventHandler == null || eventHandler.getLooper() == Looper.myLooper())
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
+			return;
+		}
+		
+		final CountDownLatch handled = new CountDownLatch(1);
+		boolean posted = eventHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				if (callback.get() != null)
-					callback.get().onDeviceFound(device, signalStrength, bluetoothLEDevice);
+				handled.countDown();
 			}
+		});
+		if (posted)
+		{
+			handled.await();
 		}
 	}
 	
-	private void dispatchDeviceInfoUpdatedEvent(BluetoothDevice device, int updateType)
+	public BluetoothLeScanCallback getBluetoothScanCallBack()
+	{
+		return bluetoothScanCallBack;
+	}
+	
+	public ScanResultAggregator getScanResultAggregator()
+	{
+		return scanResultAggregator;
+	}
+	
+	public DiscoveryCache getDiscoveryCache()
+	{
+		return discoveryCache;
+	}
+	
+	private void updateDiscoveryCache(BluetoothDevice device, int transport, int rssi)
 	{
-		synchronized (this.bluetoothEventListeners)
+		this.discoveryCache.update(device, transport, rssi, SystemClock.elapsedRealtime());
+		scheduleDiscoveryCacheSweep();
+	}
+	
+	private void scheduleDiscoveryCacheSweep()
+	{
+		synchronized (this.discoveryCache)
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
+			if (this.discoveryCacheSweepScheduled)
 			{
-				if (callback.get() != null)
-					callback.get().onDeviceInfoChanged(device, updateType);
+				return;
 			}
+			this.discoveryCacheSweepScheduled = true;
 		}
+		
+		long sweepInterval = Math.max(this.discoveryCache.getTimeToLive() / 4, 1000);
+		this.localBluetoothManager.getEventHandler().postDelayed(this.sweepDiscoveryCacheRunnable, sweepInterval);
 	}
 	
-	private void dispatchDeviceDisappeared(BluetoothDevice device)
+	private void sweepDiscoveryCache()
 	{
-		synchronized (this.bluetoothEventListeners)
+		synchronized (this.discoveryCache)
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
-			{
-				if (callback.get() != null)
-					callback.get().onDeviceDisappeared(device);
-			}
+			this.discoveryCacheSweepScheduled = false;
+		}
+		
+		List<BluetoothDevice> disappeared = this.discoveryCache.evictExpired(SystemClock.elapsedRealtime());
+		for (BluetoothDevice device : disappeared)
+		{
+			Logger.df(TAG, DEBUG_LEVEL, "Device Expired: %s[%s]", deviceRegistry.getName(device), device.getAddress());
+			
+			dispatchDeviceDisappeared(device);
+		}
+		
+		if (this.discoveryCache.size() > 0)
+		{
+			scheduleDiscoveryCacheSweep();
 		}
 	}
 	
-	private void dispatchDeviceConnectionStateChanged(BluetoothDevice device, int connectionState)
+	/*
+	 * Event dispatch methods
+	 */
+	private void dispatchScanModeChangedEvent(int scanMode)
+	{
+		this.eventBus.dispatchScanModeChanged(scanMode);
+	}
+	
+	private void dispatchDeviceFoundEvent(final BluetoothDevice device, final int signalStrength, final boolean bluetoothLEDevice, byte[] scanRecord)
 	{
-		synchronized (this.bluetoothEventListeners)
+		if (!this.eventBus.hasSubscribers(BluetoothEventBus.EVENT_DEVICE_FOUND))
+		{
+			return;
+		}
+		
+		if (this.deviceFoundBatchInterval > 0)
+		{
+			queueDeviceFoundEvent(new FoundDevice(device, signalStrength, bluetoothLEDevice, scanRecord, SystemClock.elapsedRealtime()));
+			return;
+		}
+		
+		Handler eventHandler = this.localBluetoothManager.getEventHandler();
+		if (eventHandler == null || eventHandler.getLooper() == Looper.myLooper())
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
+			this.eventBus.dispatchDeviceFound(device, signalStrength, bluetoothLEDevice);
+			return;
+		}
+		
+		// LE results arrive on the lane of their device, dispatch on the event thread like the other events
+		eventHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
 			{
-				if (callback.get() != null)
-					callback.get().onDeviceConnectionStateChanged(device, connectionState);
+				eventBus.dispatchDeviceFound(device, signalStrength, bluetoothLEDevice);
 			}
-		}
+		});
 	}
 	
-	private void dispatchBondingStateChanged(BluetoothDevice device, int previousBondState, int newBondingState)
+	private void queueDeviceFoundEvent(FoundDevice foundDevice)
 	{
-		synchronized (this.bluetoothEventListeners)
+		Handler eventHandler = this.localBluetoothManager.getEventHandler();
+		synchronized (this.pendingFoundDevices)
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
+			// Only the latest result for each device is kept within a batch
+			if (this.pendingFoundDevices.put(foundDevice.getDevice().getAddress(), foundDevice) == null && this.pendingFoundDevices.size() == 1)
+			{
+				eventHandler.postDelayed(this.flushFoundDevicesRunnable, this.deviceFoundBatchInterval);
+			}
+			
+			if (this.pendingFoundDevices.size() >= this.deviceFoundBatchSize)
 			{
-				if (callback.get() != null)
-					callback.get().onBondingStateChanged(device, previousBondState, newBondingState);
+				// Dispatch on the event thread rather than the lane the result was delivered on
+				eventHandler.removeCallbacks(this.flushFoundDevicesRunnable);
+				eventHandler.post(this.flushFoundDevicesRunnable);
 			}
 		}
 	}
 	
-	private boolean dispatchPairingEvent(BluetoothDevice device, boolean requestedOrCancelled, int pairingVariant)
+	private void flushFoundDevices()
 	{
-		boolean processed = false;
-		synchronized (this.bluetoothEventListeners)
+		List<FoundDevice> devices;
+		synchronized (this.pendingFoundDevices)
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
+			if (this.pendingFoundDevices.isEmpty())
 			{
-				if (callback.get() != null && callback.get().onPairingEventOccurred(device, requestedOrCancelled, pairingVariant))
-				{
-					// If the pairing request has been processed, stop firing events 
-					processed = true;
-					break;
-				}
+				return;
 			}
+			devices = Collections.unmodifiableList(new ArrayList<>(this.pendingFoundDevices.values()));
+			this.pendingFoundDevices.clear();
 		}
-		return processed;
+		
+		this.eventBus.dispatchDevicesFound(devices);
 	}
 	
-	private void dispatchGATTServiceStateChangedEvent(boolean bluetoothGattReady)
+	/**
+	 * Configure batching of device found events.
+	 *
+	 * @param interval - maximum period in milliseconds a found device is held before being dispatched, 0 to disable batching
+	 * @param maxCount - number of devices that causes a batch to be dispatched before the interval has elapsed
+	 */
+	void setDeviceFoundBatching(long interval, int maxCount)
 	{
-		synchronized (this.bluetoothEventListeners)
+		this.deviceFoundBatchSize = Math.max(1, maxCount);
+		this.deviceFoundBatchInterval = Math.max(0, interval);
+		if (interval <= 0)
 		{
-			for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
-			{
-				if (callback.get() != null)
-					callback.get().onGattServiceStateChanged(bluetoothGattReady);
-			}
+			// Deliver anything that was held back for the previous batch
+			this.localBluetoothManager.getEventHandler().removeCallbacks(this.flushFoundDevicesRunnable);
+			this.localBluetoothManager.getEventHandler().post(this.flushFoundDevicesRunnable);
 		}
 	}
 	
+	private void dispatchDeviceInfoUpdatedEvent(BluetoothDevice device, int updateType)
+	{
+		this.eventBus.dispatchDeviceInfoChanged(device, updateType);
+	}
+	
+	private void dispatchDeviceDisappeared(BluetoothDevice device)
+	{
+		this.eventBus.dispatchDeviceDisappeared(device);
+	}
+	
+	private void dispatchDeviceConnectionStateChanged(BluetoothDevice device, int connectionState)
+	{
+		this.localBluetoothManager.getStateCoalescer().stateChanged(StateCoalescer.DOMAIN_CONNECTION, device, connectionState);
+	}
+	
+	private void dispatchBondingStateChanged(BluetoothDevice device, int previousBondState, int newBondingState)
+	{
+		this.eventBus.dispatchBondingStateChanged(device, previousBondState, newBondingState);
+	}
+	
+	private boolean dispatchPairingEvent(BluetoothDevice device, boolean requestedOrCancelled, int pairingVariant)
+	{
+		// If the pairing request has been processed, the remaining listeners are not notified
+		return this.eventBus.dispatchPairingEvent(device, requestedOrCancelled, pairingVariant);
+	}
+	
+	private void dispatchGATTServiceStateChangedEvent(boolean bluetoothGattReady)
+	{
+		this.localBluetoothManager.getStateCoalescer().stateChanged(StateCoalescer.DOMAIN_GATT_SERVICE, null, bluetoothGattReady ? 1 : 0);
+	}
+	
 	private String getBluetothAdapterStateString(int bluetoothState)
 	{
 		String result = "";
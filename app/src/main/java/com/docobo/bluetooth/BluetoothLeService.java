@@ -32,12 +32,14 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.docobo.device.PlatformInfo;
 import com.docobo.logger.Logger;
 
 import java.util.Calendar;
+import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
 
@@ -96,7 +98,7 @@ public class BluetoothLeService extends Service {
                     BluetoothDevice device = (BluetoothDevice) msg.obj;
                     if (device != null && device.equals(mBluetoothDevice)) {
                         boolean discoverServices = mBluetoothGatt != null && mBluetoothGatt.discoverServices();
-                        Logger.d(TAG, "Device %s[%s] bonded successfully, starting service discovery: ", device.getName(), device.getAddress(), discoverServices);
+                        Logger.d(TAG, "Device %s[%s] bonded successfully, starting service discovery: ", mBluetoothManager.getDeviceRegistry().getName(device), device.getAddress(), discoverServices);
                     }
                     break;
                 }
@@ -127,133 +129,339 @@ public class BluetoothLeService extends Service {
     private LocalBluetoothManager mBluetoothManager;
     private BluetoothLeListener mBluetoothLeListener;
     private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothDevice mBluetoothDevice;
-    private BluetoothGatt mBluetoothGatt;
+    // Connection state, changed holding the service lock and read without it by the callbacks
+    private volatile BluetoothDevice mBluetoothDevice;
+    private volatile BluetoothGatt mBluetoothGatt;
     //private BluetoothDeviceHelper mBluetoothDeviceHelper;
     private BluetoothEventHandler mHandler;
     private boolean listening;
     private int mConnectionState = STATE_DISCONNECTED;
 
+    // Pending connectWhenFound() request
+    private final Object mConnectWhenFoundLock = new Object();
+    private LeScanSession mConnectWhenFoundSession;
+    private boolean mConnectWhenFoundPairWithDevice;
+    // Time the advertisement triggering the current connection was received, -1 if not connecting from a scan
+    private volatile long mAdvertisementTime = -1;
+    private volatile long mLastScanToConnectLatency = -1;
+
+    // Connectionless measurement ingestion
+    private static final long ADVERTISED_MEASUREMENT_REPEAT_PERIOD = 10000;
+    private final Object mAdvertisementIngestionLock = new Object();
+    private LeScanSession mAdvertisementIngestionSession;
+    private volatile AdvertisementDecoder[] mAdvertisementDecoders = new AdvertisementDecoder[0];
+    // Last measurement advertised by each device, keyed by packed address
+    private final HashMap<Long, AdvertisedMeasurement> mAdvertisedMeasurements = new HashMap<>();
+
+    private static class AdvertisedMeasurement {
+        long payloadHash;
+        long lastSeen;
+    }
+
     public final static String ACTION_GATT_SERVICES_DISCOVERED = "com.docobo.bluetooth.le.ACTION_GATT_SERVICES_DISCOVERED";
     public final static String ACTION_DATA_AVAILABLE = "com.docobo.bluetooth.le.ACTION_DATA_AVAILABLE";
     public final static String EXTRA_DATA = "com.docobo.bluetooth.le.EXTRA_DATA";
 
     // Implements callback methods for GATT events that the app cares about. For example,
-    // connection change and services discovered.
+    // connection change and services discovered. The events are handled on the device's executor
+    // lane, so they and the broadcasts they send stay in order without blocking the binder thread.
     private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            Log.i(TAG, "+++ onConnectionStateChange +++");
-
-            String intentAction;
-            if (newState == STATE_CONNECTED) {
-                intentAction = ACTION_GATT_CLIENT_CONNECTED;
-                setConnectionState(STATE_CONNECTED);
-                broadcastUpdate(intentAction);
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                //Log.i(TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
-                if (gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED) {
-                    mHandler.scheduleServiceDiscoveryStart(gatt.getDevice());
-                }
-            } else if (newState == STATE_DISCONNECTED) {
-                intentAction = ACTION_GATT_CLIENT_DISCONNECTED;
-                setConnectionState(STATE_DISCONNECTED);
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastUpdate(intentAction);
-            }
+        public void onConnectionStateChange(final BluetoothGatt gatt, int status, final int newState) {
+            final long callbackTime = SystemClock.elapsedRealtime();
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onConnectionStateChange +++");
+
+                    String intentAction;
+                    if (newState == STATE_CONNECTED) {
+                        intentAction = ACTION_GATT_CLIENT_CONNECTED;
+                        long advertisementTime = mAdvertisementTime;
+                        if (advertisementTime >= 0) {
+                            mAdvertisementTime = -1;
+                            mLastScanToConnectLatency = callbackTime - advertisementTime;
+                            Logger.df(TAG, 15, "Connected %d ms after advertisement", mLastScanToConnectLatency);
+                        }
+                        setConnectionState(STATE_CONNECTED);
+                        broadcastUpdate(intentAction);
+                        Log.i(TAG, "Connected to GATT server.");
+                        // Attempts to discover services after successful connection.
+                        //Log.i(TAG, "Attempting to start service discovery:" + mBluetoothGatt.discoverServices());
+                        if (mBluetoothManager.getDeviceRegistry().getBondState(gatt.getDevice()) == BluetoothDevice.BOND_BONDED) {
+                            mHandler.scheduleServiceDiscoveryStart(gatt.getDevice());
+                        }
+                    } else if (newState == STATE_DISCONNECTED) {
+                        intentAction = ACTION_GATT_CLIENT_DISCONNECTED;
+                        mAdvertisementTime = -1;
+                        setConnectionState(STATE_DISCONNECTED);
+                        Log.i(TAG, "Disconnected from GATT server.");
+                        broadcastUpdate(intentAction);
+                    }
 
-            Log.i(TAG, "--- onConnectionStateChange ---");
+                    Log.i(TAG, "--- onConnectionStateChange ---");
+                }
+            });
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.i(TAG, "+++ onServicesDiscovered +++");
-
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
-            } else {
-                Log.w(TAG, "onServicesDiscovered received: " + status);
-            }
+        public void onServicesDiscovered(BluetoothGatt gatt, final int status) {
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onServicesDiscovered +++");
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        broadcastUpdate(ACTION_GATT_SERVICES_DISCOVERED);
+                    } else {
+                        Log.w(TAG, "onServicesDiscovered received: " + status);
+                    }
 
-            Log.i(TAG, "--- onServicesDiscovered ---");
+                    Log.i(TAG, "--- onServicesDiscovered ---");
+                }
+            });
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.i(TAG, "+++ onCharacteristicRead +++");
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
-            }
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            // The value may be overwritten before the lane runs, decode a snapshot
+            final BluetoothGattCharacteristic snapshot = snapshot(characteristic);
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onCharacteristicRead +++");
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        broadcastUpdate(ACTION_DATA_AVAILABLE, snapshot);
+                    }
+                }
+            });
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            Log.i(TAG, "+++ onCharacteristicChanged +++");
-
-            broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+            // The value is overwritten by the next notification, decode a snapshot
+            final BluetoothGattCharacteristic snapshot = snapshot(characteristic);
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onCharacteristicChanged +++");
+                    broadcastUpdate(ACTION_DATA_AVAILABLE, snapshot);
+                }
+            });
         }
 
         @Override
-        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            Log.i(TAG, "+++ onDescriptorWrite +++");
+        public void onDescriptorWrite(BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onDescriptorWrite +++");
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, "onDescriptorWrite BluetoothGatt.GATT_SUCCESS");
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.i(TAG, "onDescriptorWrite BluetoothGatt.GATT_SUCCESS");
 
-                setListening(true);
+                        setListening(true);
 
-                handleDescriptorWriteSuccess(descriptor);
-            } else {
-                Log.i(TAG, String.format("onDescriptorWrite BluetoothGatt.GATT_FAILED (%d)", status));
-            }
+                        handleDescriptorWriteSuccess(descriptor);
+                    } else {
+                        Log.i(TAG, String.format("onDescriptorWrite BluetoothGatt.GATT_FAILED (%d)", status));
+                    }
+                }
+            });
         }
 
         @Override
-        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            Log.i(TAG, "+++ onCharacteristicWrite +++");
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, final int status) {
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onCharacteristicWrite +++");
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.i(TAG, "onCharacteristicWrite BluetoothGatt.GATT_SUCCESS");
+                    } else {
+                        Log.i(TAG, String.format("onCharacteristicWrite BluetoothGatt.GATT_FAILED (%d)", status));
+                    }
+                }
+            });
+        }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, "onCharacteristicWrite BluetoothGatt.GATT_SUCCESS");
-            } else {
-                Log.i(TAG, String.format("onCharacteristicWrite BluetoothGatt.GATT_FAILED (%d)", status));
-            }
+        @Override
+        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, final int status) {
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onDescriptorRead +++");
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.i(TAG, "onDescriptorRead BluetoothGatt.GATT_SUCCESS");
+                    } else {
+                        Log.i(TAG, String.format("onDescriptorRead BluetoothGatt.GATT_FAILED (%d)", status));
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onReadRemoteRssi(BluetoothGatt gatt, final int rssi, final int status) {
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onReadRemoteRssi +++");
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.i(TAG, String.format("onReadRemoteRssi BluetoothGatt.GATT_SUCCESS (RSSI: %d)", rssi));
+                    } else {
+                        Log.i(TAG, String.format("onReadRemoteRssi BluetoothGatt.GATT_FAILED (%d)", status));
+                    }
+                }
+            });
         }
 
         @Override
-        public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            Log.i(TAG, "+++ onDescriptorRead +++");
+        public void onReliableWriteCompleted(BluetoothGatt gatt, final int status) {
+            execute(gatt, new Runnable() {
+                @Override
+                public void run() {
+                    Log.i(TAG, "+++ onReliableWriteCompleted +++");
+
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        Log.i(TAG, "onReliableWriteCompleted BluetoothGatt.GATT_SUCCESS");
+                    } else {
+                        Log.i(TAG, String.format("onReliableWriteCompleted BluetoothGatt.GATT_FAILED (%d)", status));
+                    }
+                }
+            });
+        }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, "onDescriptorRead BluetoothGatt.GATT_SUCCESS");
-            } else {
-                Log.i(TAG, String.format("onDescriptorRead BluetoothGatt.GATT_FAILED (%d)", status));
-            }
+        private void execute(BluetoothGatt gatt, Runnable event) {
+            mBluetoothManager.getEventExecutor().execute(gatt.getDevice().getAddress(), event);
+        }
+
+        private BluetoothGattCharacteristic snapshot(BluetoothGattCharacteristic characteristic) {
+            BluetoothGattCharacteristic snapshot = new BluetoothGattCharacteristic(characteristic.getUuid(),
+                    characteristic.getProperties(), characteristic.getPermissions());
+            byte[] value = characteristic.getValue();
+            snapshot.setValue(value == null ? null : value.clone());
+            return snapshot;
         }
+    };
 
+    // Initiates the connection as soon as the first matching advertisement is received. The request is claimed on the
+    // executor lane delivering the scan result and the connection is made on the service handler thread.
+    private final LeScanCallbackInterface mConnectWhenFoundCallback = new LeScanCallbackInterface() {
         @Override
-        public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            Log.i(TAG, "+++ onReadRemoteRssi +++");
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            onLeScan(device, rssi, scanRecord, SystemClock.elapsedRealtime());
+        }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, String.format("onReadRemoteRssi BluetoothGatt.GATT_SUCCESS (RSSI: %d)", rssi));
-            } else {
-                Log.i(TAG, String.format("onReadRemoteRssi BluetoothGatt.GATT_FAILED (%d)", status));
+        @Override
+        public void onLeScan(final BluetoothDevice device, int rssi, byte[] scanRecord, final long receivedTime) {
+            LeScanSession session;
+            final boolean pairWithDevice;
+            synchronized (mConnectWhenFoundLock) {
+                session = mConnectWhenFoundSession;
+                if (session == null) {
+                    // Advertisement already handled or request cancelled
+                    return;
+                }
+                mConnectWhenFoundSession = null;
+                pairWithDevice = mConnectWhenFoundPairWithDevice;
             }
+
+            // Stops the scan unless another session still needs it, so it does not compete with the connection
+            session.close();
+
+            BluetoothEventHandler handler = mHandler;
+            if (handler == null) {
+                // Service destroyed
+                return;
+            }
+
+            Logger.df(TAG, 15, "Advertisement received from %s (RSSI: %d), connecting", device.getAddress(), rssi);
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    connectFoundDevice(device, pairWithDevice, receivedTime);
+                }
+            });
+        }
+    };
+
+    private synchronized void connectFoundDevice(BluetoothDevice device, boolean pairWithDevice, long advertisementTime) {
+        mAdvertisementTime = advertisementTime;
+        boolean connecting;
+        if (device.equals(mBluetoothDevice) && mBluetoothGatt != null) {
+            connecting = reconnect();
+        } else {
+            connecting = connect(device, pairWithDevice);
         }
 
+        if (!connecting) {
+            mAdvertisementTime = -1;
+            Logger.w(TAG, "Unable to connect to %s", device.getAddress());
+        }
+    }
+
+    // Decodes the measurements broadcast by the registered device types
+    private final LeScanCallbackInterface mAdvertisementIngestionCallback = new LeScanCallbackInterface() {
+        // Scan results are delivered on the lanes of the event executor, each lane reuses its own parser
+        private final ThreadLocal<ScanRecordParser> mParsers = new ThreadLocal<ScanRecordParser>() {
+            @Override
+            protected ScanRecordParser initialValue() {
+                return new ScanRecordParser();
+            }
+        };
+
         @Override
-        public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            Log.i(TAG, "+++ onReliableWriteCompleted +++");
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            if (scanRecord == null) {
+                return;
+            }
 
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                Log.i(TAG, "onReliableWriteCompleted BluetoothGatt.GATT_SUCCESS");
-            } else {
-                Log.i(TAG, String.format("onReliableWriteCompleted BluetoothGatt.GATT_FAILED (%d)", status));
+            ScanRecordParser parser = mParsers.get();
+            parser.reset(scanRecord);
+            for (AdvertisementDecoder decoder : mAdvertisementDecoders) {
+                if (decoder.matches(device, parser) && decoder.find(parser)) {
+                    handleAdvertisedMeasurement(device, decoder, parser);
+                    return;
+                }
             }
         }
     };
 
+    private void handleAdvertisedMeasurement(BluetoothDevice device, AdvertisementDecoder decoder, ScanRecordParser parser) {
+        long now = SystemClock.elapsedRealtime();
+        long payloadHash = BloomFilter.hash(parser.getRecord(), parser.getDataOffset(), parser.getDataLength());
+
+        // Devices repeat the same reading in every advertisement until the next measurement
+        synchronized (mAdvertisementIngestionLock) {
+            long address = BluetoothAddress.toLong(device.getAddress());
+            AdvertisedMeasurement measurement = mAdvertisedMeasurements.get(address);
+            if (measurement == null) {
+                measurement = new AdvertisedMeasurement();
+                mAdvertisedMeasurements.put(address, measurement);
+            } else if (measurement.payloadHash == payloadHash && now - measurement.lastSeen < ADVERTISED_MEASUREMENT_REPEAT_PERIOD) {
+                measurement.lastSeen = now;
+                return;
+            }
+            measurement.payloadHash = payloadHash;
+            measurement.lastSeen = now;
+        }
+
+        String value = decoder.decode(parser);
+        if (value == null) {
+            return;
+        }
+
+        Logger.df(TAG, 15, "Advertised measurement from %s: %s", device.getAddress(), value);
+        final Intent intent = new Intent(ACTION_DATA_AVAILABLE);
+        intent.setPackage(getPackageName());
+        intent.putExtra(EXTRA_DATA, value);
+        intent.putExtra(BluetoothDevice.EXTRA_DEVICE, device);
+        sendBroadcast(intent);
+    }
+
     private void broadcastUpdate(final String action) {
         final Intent intent = new Intent(action);
         intent.setPackage(getPackageName());
@@ -449,6 +657,9 @@ public class BluetoothLeService extends Service {
     public void onDestroy() {
         super.onDestroy();
 
+        cancelConnectWhenFound();
+        stopAdvertisementIngestion();
+
         if (mBluetoothManager != null && mBluetoothLeListener != null) {
             mBluetoothManager.unregisterBluetoothEventListener(mBluetoothLeListener);
             mBluetoothLeListener = null;
@@ -524,7 +735,7 @@ public class BluetoothLeService extends Service {
      * is reported asynchronously through the {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public boolean connect(final String address, boolean pairWithDevice) {
+    public synchronized boolean connect(final String address, boolean pairWithDevice) {
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
@@ -532,13 +743,7 @@ public class BluetoothLeService extends Service {
 
         // Previously connected device. Try to reconnect.
         if (mBluetoothDevice != null && address.equals(mBluetoothDevice.getAddress()) && mBluetoothGatt != null) {
-            Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
-            if (mBluetoothGatt.connect()) {
-                setConnectionState(STATE_CONNECTING);
-                return true;
-            } else {
-                return false;
-            }
+            return reconnect();
         }
 
         final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
@@ -547,6 +752,20 @@ public class BluetoothLeService extends Service {
             return false;
         }
 
+        return connect(device, pairWithDevice);
+    }
+
+    private boolean reconnect() {
+        Log.d(TAG, "Trying to use an existing mBluetoothGatt for connection.");
+        if (mBluetoothGatt.connect()) {
+            setConnectionState(STATE_CONNECTING);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean connect(final BluetoothDevice device, boolean pairWithDevice) {
 //        if (pairWithDevice && isANDBT40Device(device)) {
 //            boolean removeBondSuccess = mBluetoothDeviceHelper.removeBond(device);
 //            Log.d(TAG, "Removing bond state for device " + device.getName() + " successful: " + removeBondSuccess);
@@ -562,12 +781,147 @@ public class BluetoothLeService extends Service {
         return true;
     }
 
+    /**
+     * Connects to the GATT server hosted on the Bluetooth LE device as soon as an advertisement
+     * is received from it.
+     * <p>
+     * A filtered {@link LeScanSession} is opened on the shared scan and the connection is
+     * initiated from the scan result delivery for the first matching advertisement, after which
+     * the session is closed (stopping the scan if no other session needs it). Any pending
+     * {@code connectWhenFound} request is replaced.
+     * </p>
+     *
+     * @param address        The device address of the destination device.
+     * @param pairWithDevice Flag indicating whether this is a pairing process.
+     * @return Return true if the scan for the device was started.
+     */
+    public boolean connectWhenFound(final String address, boolean pairWithDevice) {
+        if (BluetoothAddress.toLong(address) == BluetoothAddress.INVALID) {
+            Log.w(TAG, "Invalid address " + address + ".  Unable to connect.");
+            return false;
+        }
+
+        return connectWhenFound(pairWithDevice, LeScanFilter.forAddressPrefix(address));
+    }
+
+    /**
+     * Connects to the first Bluetooth LE device whose advertisement matches any of the filters.
+     *
+     * @param pairWithDevice Flag indicating whether this is a pairing process.
+     * @param filters        Advertisement filters identifying the destination device.
+     * @return Return true if the scan for the device was started.
+     * @see #connectWhenFound(String, boolean)
+     */
+    public boolean connectWhenFound(boolean pairWithDevice, LeScanFilter... filters) {
+        if (mBluetoothAdapter == null || filters == null || filters.length == 0) {
+            Log.w(TAG, "BluetoothAdapter not initialized or unspecified device.");
+            return false;
+        }
+
+        cancelConnectWhenFound();
+
+        synchronized (mConnectWhenFoundLock) {
+            mConnectWhenFoundPairWithDevice = pairWithDevice;
+            mConnectWhenFoundSession = mBluetoothManager.openLeScanSession(mConnectWhenFoundCallback, 0, filters);
+            return mConnectWhenFoundSession != null;
+        }
+    }
+
+    /**
+     * Cancels a pending {@link #connectWhenFound(String, boolean)} request, stopping the scan if no
+     * other session needs it.
+     */
+    public void cancelConnectWhenFound() {
+        LeScanSession session;
+        synchronized (mConnectWhenFoundLock) {
+            session = mConnectWhenFoundSession;
+            mConnectWhenFoundSession = null;
+        }
+
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    /**
+     * @return true if a {@link #connectWhenFound(String, boolean)} request is waiting for an advertisement.
+     */
+    public boolean isWaitingToConnect() {
+        synchronized (mConnectWhenFoundLock) {
+            return mConnectWhenFoundSession != null;
+        }
+    }
+
+    /**
+     * @return the time in milliseconds from the advertisement triggering the last
+     * {@link #connectWhenFound(String, boolean)} connection to the device being connected, or -1
+     * if no such connection has completed.
+     */
+    public long getLastScanToConnectLatency() {
+        return mLastScanToConnectLatency;
+    }
+
+    /**
+     * Starts taking measurements from the advertisements of the registered device types, without
+     * connecting to them.
+     * <p>
+     * Each new measurement is broadcast as {@link #ACTION_DATA_AVAILABLE} with the value in
+     * {@link #EXTRA_DATA}, as for measurements read over GATT, and the device in
+     * {@link BluetoothDevice#EXTRA_DEVICE}. Repeated advertisements of the same reading are only
+     * reported once. Any previous decoders are replaced.
+     * </p>
+     *
+     * @param decoders Decoders for the device types to take measurements from.
+     * @return Return true if the scan for advertisements was started.
+     */
+    public boolean startAdvertisementIngestion(AdvertisementDecoder... decoders) {
+        if (mBluetoothManager == null || decoders == null || decoders.length == 0) {
+            Log.w(TAG, "BluetoothManager not initialized or no decoders specified.");
+            return false;
+        }
+
+        stopAdvertisementIngestion();
+
+        // Filter the scan on the advertisements the decoders apply to, so it can stay filtered by the controller
+        LeScanFilter[] filters = new LeScanFilter[decoders.length];
+        for (int index = 0; index < decoders.length; index++) {
+            filters[index] = decoders[index].getScanFilter();
+            if (filters[index] == null) {
+                Log.w(TAG, "Decoder without a scan filter, ingesting from all advertisements.");
+                filters = new LeScanFilter[0];
+                break;
+            }
+        }
+
+        synchronized (mAdvertisementIngestionLock) {
+            mAdvertisementDecoders = decoders.clone();
+            mAdvertisementIngestionSession = mBluetoothManager.openLeScanSession(mAdvertisementIngestionCallback, 0, filters);
+            return mAdvertisementIngestionSession != null;
+        }
+    }
+
+    /**
+     * Stops taking measurements from advertisements, stopping the scan if no other session needs it.
+     */
+    public void stopAdvertisementIngestion() {
+        LeScanSession session;
+        synchronized (mAdvertisementIngestionLock) {
+            session = mAdvertisementIngestionSession;
+            mAdvertisementIngestionSession = null;
+            mAdvertisedMeasurements.clear();
+        }
+
+        if (session != null) {
+            session.close();
+        }
+    }
+
     /**
      * Disconnects an existing connection or cancel a pending connection. The disconnection result
      * is reported asynchronously through the {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
-    public void disconnect() {
+    public synchronized void disconnect() {
         if (mBluetoothAdapter == null || mBluetoothGatt == null) {
             Log.w(TAG, "BluetoothAdapter not initialized");
             return;
@@ -583,11 +937,14 @@ public class BluetoothLeService extends Service {
      * released properly.
      */
     public void close() {
-        if (mBluetoothGatt == null) {
-            return;
+        cancelConnectWhenFound();
+        synchronized (this) {
+            if (mBluetoothGatt == null) {
+                return;
+            }
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     /**
@@ -773,22 +1130,41 @@ public class BluetoothLeService extends Service {
         }
     }
 
+    /**
+     * Get the type of a device, as resolved by the {@link DeviceSignatureClassifier} from its
+     * advertisements or otherwise from its name.
+     *
+     * @param device
+     * @return the device type or {@link DeviceSignatureClassifier#TYPE_UNKNOWN}
+     */
+    public int getDeviceType(BluetoothDevice device) {
+        if (device == null || mBluetoothManager == null) {
+            return DeviceSignatureClassifier.TYPE_UNKNOWN;
+        }
+
+        return mBluetoothManager.getDeviceClassifier().getDeviceType(device);
+    }
+
+    /**
+     * Check whether a device is an A&D BLE device, as resolved by the classifier of the
+     * {@link LocalBluetoothManager} instance.
+     *
+     * @param device
+     * @return false if the device is not an A&D device or no LocalBluetoothManager has been created
+     */
     public static boolean isANDBT40Device(BluetoothDevice device) {
-        if (device != null) {
-//            if (ANDUC352BLEDevice.isANDUC352BLEDevice(device, true, null)) {
-//                return true;
-//            } else if (ANDUA651BLEDevice.isANDUA651BLEDevice(device, true, null)) {
-//                return true;
-//            }
+        LocalBluetoothManager localBluetoothManager = LocalBluetoothManager.peekInstance();
+        if (device == null || localBluetoothManager == null) {
+            return false;
         }
 
-        return false;
+        return DeviceSignatureClassifier.isANDDevice(localBluetoothManager.getDeviceClassifier().getDeviceType(device));
     }
 
     public void setDateTimeForANDDevice() {
         BluetoothDevice device = mBluetoothGatt.getDevice();
-        if (isANDBT40Device(device)) {
-            Logger.d(TAG, "AND BLE device detected in pairing mode, setting Date/Time: %s", device.getName());
+        if (DeviceSignatureClassifier.isANDDevice(getDeviceType(device))) {
+            Logger.d(TAG, "AND BLE device detected in pairing mode, setting Date/Time: %s", mBluetoothManager.getDeviceRegistry().getName(device));
             boolean setDateSuccessful = false;
 //            BluetoothGattCharacteristic characteristic = getCharacteristic(null, UUID.fromString(GattAttributes.GATT_CHARACTERISTIC_DATE_TIME));
 //            if (characteristic != null) {
@@ -0,0 +1,236 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Immutable snapshot of the Bluetooth state, as last reported by the platform broadcasts.
+ * <p>
+ * A new snapshot is published whenever the state changes, so it can be read from any thread without locking or
+ * querying the adapter. The snapshot is replayed to listeners when they subscribe to the {@link BluetoothEventBus}.
+ * <p>
+ * The adapter on and off states, the GATT service state and the device connection states follow the changes reported
+ * by the {@link StateCoalescer}, so they lag the broadcasts by the coalescing window when coalescing is enabled.
+ *
+ * @see LocalBluetoothManager#getStateSnapshot()
+ */
+public final class BluetoothStateSnapshot
+{
+	/** Value of a state which has not been reported yet */
+	public static final int UNKNOWN = BluetoothAdapter.ERROR;
+
+	/**
+	 * State of a device
+	 */
+	public static final class DeviceState
+	{
+		private final BluetoothDevice device;
+		private final int connectionState;
+		private final int bondState;
+
+		private DeviceState(BluetoothDevice device, int connectionState, int bondState)
+		{
+			this.device = device;
+			this.connectionState = connectionState;
+			this.bondState = bondState;
+		}
+
+		public BluetoothDevice getDevice()
+		{
+			return device;
+		}
+
+		/**
+		 * @return {@link LocalBluetoothManager#STATE_CONNECTED}, {@link LocalBluetoothManager#STATE_DISCONNECTING},
+		 * {@link LocalBluetoothManager#STATE_DISCONNECTED} or {@link #UNKNOWN}
+		 */
+		public int getConnectionState()
+		{
+			return connectionState;
+		}
+
+		/**
+		 * @return the bond state ({@link BluetoothDevice#BOND_NONE}, {@link BluetoothDevice#BOND_BONDING},
+		 * {@link BluetoothDevice#BOND_BONDED}) or {@link #UNKNOWN}
+		 */
+		public int getBondState()
+		{
+			return bondState;
+		}
+	}
+
+	static final BluetoothStateSnapshot EMPTY = new BluetoothStateSnapshot(UNKNOWN, UNKNOWN, false, false, UNKNOWN,
+			new HashMap<Long, DeviceState>());
+
+	private final int adapterState;
+	private final int scanMode;
+	private final boolean discovering;
+	private final boolean leScanning;
+	/** 1 when ready, 0 when not ready or {@link #UNKNOWN} */
+	private final int gattReady;
+	private final HashMap<Long, DeviceState> deviceStates;
+
+	private BluetoothStateSnapshot(int adapterState, int scanMode, boolean discovering, boolean leScanning, int gattReady,
+			HashMap<Long, DeviceState> deviceStates)
+	{
+		this.adapterState = adapterState;
+		this.scanMode = scanMode;
+		this.discovering = discovering;
+		this.leScanning = leScanning;
+		this.gattReady = gattReady;
+		this.deviceStates = deviceStates;
+	}
+
+	/**
+	 * @return the adapter state ({@link BluetoothAdapter#STATE_ON}, {@link BluetoothAdapter#STATE_OFF} or one of the
+	 * transitional states) or {@link #UNKNOWN}
+	 */
+	public int getAdapterState()
+	{
+		return adapterState;
+	}
+
+	public boolean isEnabled()
+	{
+		return adapterState == BluetoothAdapter.STATE_ON;
+	}
+
+	/**
+	 * @return the scan mode or {@link #UNKNOWN}
+	 */
+	public int getScanMode()
+	{
+		return scanMode;
+	}
+
+	/**
+	 * @return true while classic discovery is running
+	 */
+	public boolean isDiscovering()
+	{
+		return discovering;
+	}
+
+	/**
+	 * @return true while the shared Bluetooth LE scan is running
+	 */
+	public boolean isLeScanning()
+	{
+		return leScanning;
+	}
+
+	public boolean isGattReadyKnown()
+	{
+		return gattReady != UNKNOWN;
+	}
+
+	public boolean isGattReady()
+	{
+		return gattReady == 1;
+	}
+
+	/**
+	 * @param address
+	 * @return the state of the device or null if none has been reported
+	 */
+	public DeviceState getDeviceState(String address)
+	{
+		return this.deviceStates.get(BluetoothAddress.toLong(address));
+	}
+
+	/**
+	 * @return the states of all the devices a state has been reported for
+	 */
+	public List<DeviceState> getDeviceStates()
+	{
+		return Collections.unmodifiableList(new ArrayList<>(this.deviceStates.values()));
+	}
+
+	/*
+	 * Copy on write updates, returning this snapshot when nothing changes
+	 */
+	BluetoothStateSnapshot withAdapterState(int adapterState)
+	{
+		if (adapterState == this.adapterState)
+		{
+			return this;
+		}
+		return new BluetoothStateSnapshot(adapterState, this.scanMode, this.discovering, this.leScanning, this.gattReady, this.deviceStates);
+	}
+
+	BluetoothStateSnapshot withScanMode(int scanMode)
+	{
+		if (scanMode == this.scanMode)
+		{
+			return this;
+		}
+		return new BluetoothStateSnapshot(this.adapterState, scanMode, this.discovering, this.leScanning, this.gattReady, this.deviceStates);
+	}
+
+	BluetoothStateSnapshot withDiscovering(boolean discovering)
+	{
+		if (discovering == this.discovering)
+		{
+			return this;
+		}
+		return new BluetoothStateSnapshot(this.adapterState, this.scanMode, discovering, this.leScanning, this.gattReady, this.deviceStates);
+	}
+
+	BluetoothStateSnapshot withLeScanning(boolean leScanning)
+	{
+		if (leScanning == this.leScanning)
+		{
+			return this;
+		}
+		return new BluetoothStateSnapshot(this.adapterState, this.scanMode, this.discovering, leScanning, this.gattReady, this.deviceStates);
+	}
+
+	BluetoothStateSnapshot withGattReady(boolean gattReady)
+	{
+		int value = gattReady ? 1 : 0;
+		if (value == this.gattReady)
+		{
+			return this;
+		}
+		return new BluetoothStateSnapshot(this.adapterState, this.scanMode, this.discovering, this.leScanning, value, this.deviceStates);
+	}
+
+	BluetoothStateSnapshot withConnectionState(BluetoothDevice device, int connectionState)
+	{
+		DeviceState deviceState = this.deviceStates.get(BluetoothAddress.toLong(device.getAddress()));
+		if (deviceState != null && deviceState.connectionState == connectionState)
+		{
+			return this;
+		}
+		return withDeviceState(new DeviceState(device, connectionState, deviceState != null ? deviceState.bondState : UNKNOWN));
+	}
+
+	BluetoothStateSnapshot withBondState(BluetoothDevice device, int bondState)
+	{
+		DeviceState deviceState = this.deviceStates.get(BluetoothAddress.toLong(device.getAddress()));
+		if (deviceState != null && deviceState.bondState == bondState)
+		{
+			return this;
+		}
+		return withDeviceState(new DeviceState(device, deviceState != null ? deviceState.connectionState : UNKNOWN, bondState));
+	}
+
+	private BluetoothStateSnapshot withDeviceState(DeviceState deviceState)
+	{
+		HashMap<Long, DeviceState> deviceStates = new HashMap<>(this.deviceStates);
+		deviceStates.put(BluetoothAddress.toLong(deviceState.device.getAddress()), deviceState);
+		return new BluetoothStateSnapshot(this.adapterState, this.scanMode, this.discovering, this.leScanning, this.gattReady, deviceStates);
+	}
+}
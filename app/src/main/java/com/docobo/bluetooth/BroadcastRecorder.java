@@ -0,0 +1,253 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.SystemClock;
+
+import com.docobo.logger.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Records the Bluetooth broadcasts received by the {@link BluetoothEventRedirector} into a compact binary stream, to be
+ * played back with {@link BroadcastReplayer}.
+ * <p>
+ * Each broadcast is stored with its action, its extras and the time elapsed since the previous broadcast. Action and
+ * extra names are written once and referenced by index afterwards. Devices are stored by address and Bluetooth classes
+ * by value. Extras of other Parcelable types are not recorded.
+ *
+ * @see LocalBluetoothManager#setBroadcastRecorder(BroadcastRecorder)
+ */
+public class BroadcastRecorder
+{
+	private static final String TAG = "BroadcastRecorder";
+
+	/*
+	 * Recording format
+	 */
+	static final int MAGIC   = 0x44425452; // "DBTR"
+	static final int VERSION = 1;
+
+	static final int TYPE_END             = 0;
+	static final int TYPE_INT             = 1;
+	static final int TYPE_SHORT           = 2;
+	static final int TYPE_LONG            = 3;
+	static final int TYPE_BOOLEAN         = 4;
+	static final int TYPE_STRING          = 5;
+	static final int TYPE_BYTE_ARRAY      = 6;
+	static final int TYPE_DEVICE          = 7;
+	static final int TYPE_BLUETOOTH_CLASS = 8;
+
+	/** Marks a broadcast record, the stream ends at the first byte which is not */
+	static final int RECORD_BROADCAST = 1;
+
+	private final DataOutputStream output;
+	private final HashMap<String, Integer> names = new HashMap<>();
+	private long lastTime = -1;
+	private int count = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param outputStream - stream the recording is written to, closed with the recorder
+	 * @throws IOException if the header cannot be written
+	 */
+	public BroadcastRecorder(OutputStream outputStream) throws IOException
+	{
+		this.output = new DataOutputStream(new BufferedOutputStream(outputStream));
+		this.output.writeInt(MAGIC);
+		this.output.writeShort(VERSION);
+		this.output.writeLong(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the number of broadcasts recorded
+	 */
+	public synchronized int getCount()
+	{
+		return count;
+	}
+
+	/**
+	 * Record a broadcast. Errors are logged and end the recording.
+	 *
+	 * @param intent
+	 */
+	void record(Intent intent)
+	{
+		LinkedHashMap<String, Object> extras = new LinkedHashMap<>();
+		Bundle bundle = intent.getExtras();
+		if (bundle != null)
+		{
+			for (String key : bundle.keySet())
+			{
+				extras.put(key, bundle.get(key));
+			}
+		}
+		record(SystemClock.elapsedRealtime(), intent.getAction(), extras);
+	}
+
+	/**
+	 * Record a broadcast. Errors are logged and end the recording.
+	 *
+	 * @param time - time the broadcast was received, in milliseconds
+	 * @param action - broadcast action
+	 * @param extras - broadcast extras, those of unsupported types are skipped
+	 */
+	synchronized void record(long time, String action, Map<String, Object> extras)
+	{
+		if (this.closed)
+		{
+			return;
+		}
+
+		try
+		{
+			this.output.writeByte(RECORD_BROADCAST);
+			this.output.writeInt(this.lastTime < 0 ? 0 : (int) Math.min(Integer.MAX_VALUE, time - this.lastTime));
+			this.lastTime = time;
+			writeName(action);
+
+			for (Map.Entry<String, Object> extra : extras.entrySet())
+			{
+				writeExtra(extra.getKey(), extra.getValue());
+			}
+			this.output.writeByte(TYPE_END);
+			this.count++;
+		}
+		catch (IOException e)
+		{
+			Logger.ex(TAG, "Error recording broadcast, recording stopped", e);
+			closeQuietly();
+		}
+	}
+
+	/**
+	 * Flush and close the recording.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException
+	{
+		if (!this.closed)
+		{
+			this.closed = true;
+			this.output.close();
+		}
+	}
+
+	private void closeQuietly()
+	{
+		try
+		{
+			close();
+		}
+		catch (IOException e)
+		{
+			// Already reported
+		}
+	}
+
+	private void writeExtra(String key, Object value) throws IOException
+	{
+		if (value instanceof Integer)
+		{
+			writeExtraHeader(key, TYPE_INT);
+			this.output.writeInt((Integer) value);
+		}
+		else if (value instanceof Short)
+		{
+			writeExtraHeader(key, TYPE_SHORT);
+			this.output.writeShort((Short) value);
+		}
+		else if (value instanceof Long)
+		{
+			writeExtraHeader(key, TYPE_LONG);
+			this.output.writeLong((Long) value);
+		}
+		else if (value instanceof Boolean)
+		{
+			writeExtraHeader(key, TYPE_BOOLEAN);
+			this.output.writeBoolean((Boolean) value);
+		}
+		else if (value instanceof String)
+		{
+			writeExtraHeader(key, TYPE_STRING);
+			this.output.writeUTF((String) value);
+		}
+		else if (value instanceof byte[])
+		{
+			byte[] bytes = (byte[]) value;
+			writeExtraHeader(key, TYPE_BYTE_ARRAY);
+			this.output.writeInt(bytes.length);
+			this.output.write(bytes);
+		}
+		else if (value instanceof BluetoothDevice)
+		{
+			writeExtraHeader(key, TYPE_DEVICE);
+			this.output.writeLong(BluetoothAddress.toLong(((BluetoothDevice) value).getAddress()));
+		}
+		else if (value instanceof BluetoothClass)
+		{
+			writeExtraHeader(key, TYPE_BLUETOOTH_CLASS);
+			this.output.writeInt(getClassOfDevice((BluetoothClass) value));
+		}
+	}
+
+	private void writeExtraHeader(String key, int type) throws IOException
+	{
+		this.output.writeByte(type);
+		writeName(key);
+	}
+
+	/*
+	 * Names are written the first time they are used, then referenced by index
+	 */
+	private void writeName(String name) throws IOException
+	{
+		Integer index = this.names.get(name);
+		if (index != null)
+		{
+			this.output.writeShort(index);
+			return;
+		}
+
+		index = this.names.size();
+		this.names.put(name, index);
+		this.output.writeShort(index);
+		this.output.writeUTF(name != null ? name : "");
+	}
+
+	/*
+	 * BluetoothClass only exposes the full class of device value through its Parcel form
+	 */
+	private static int getClassOfDevice(BluetoothClass bluetoothClass)
+	{
+		Parcel parcel = Parcel.obtain();
+		try
+		{
+			bluetoothClass.writeToParcel(parcel, 0);
+			parcel.setDataPosition(0);
+			return parcel.readInt();
+		}
+		finally
+		{
+			parcel.recycle();
+		}
+	}
+}
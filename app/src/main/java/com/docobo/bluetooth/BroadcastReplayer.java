@@ -0,0 +1,261 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.Intent;
+import android.os.Parcel;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Plays a recording made by {@link BroadcastRecorder} back into a {@link BluetoothEventRedirector}, as if the
+ * broadcasts had been received from the platform.
+ * <p>
+ * Broadcasts are handled on the Bluetooth event thread, like the broadcasts received, and delivered either with their
+ * original spacing or as fast as possible, which makes a recording usable both to reproduce an event sequence captured
+ * in the field and to measure the dispatch throughput. {@link #replay(InputStream, boolean)} returns once they have all
+ * been handled.
+ *
+ * @see LocalBluetoothManager#createBroadcastReplayer()
+ */
+public class BroadcastReplayer
+{
+	/**
+	 * Receives the broadcasts played back
+	 */
+	interface Target
+	{
+		/**
+		 * @param action - broadcast action
+		 * @param extras - broadcast extras, in the order they were recorded
+		 */
+		void onBroadcast(String action, Map<String, Object> extras);
+
+		/**
+		 * Wait until the broadcasts delivered have been handled
+		 *
+		 * @throws InterruptedException
+		 */
+		void awaitHandled() throws InterruptedException;
+	}
+
+	private final Target target;
+	private final BluetoothAdapter adapter;
+
+	/**
+	 * @param redirector - redirector the broadcasts are delivered to
+	 * @param adapter - adapter used to resolve the recorded device addresses
+	 */
+	public BroadcastReplayer(final BluetoothEventRedirector redirector, BluetoothAdapter adapter)
+	{
+		this(new Target()
+		{
+			@Override
+			public void onBroadcast(String action, Map<String, Object> extras)
+			{
+				redirector.replayBroadcast(toIntent(action, extras));
+			}
+
+			@Override
+			public void awaitHandled() throws InterruptedException
+			{
+				redirector.awaitReplayedBroadcasts();
+			}
+		}, adapter);
+	}
+
+	/**
+	 * @param target - target the broadcasts are delivered to
+	 * @param adapter - adapter used to resolve the recorded device addresses, only needed if devices were recorded
+	 */
+	BroadcastReplayer(Target target, BluetoothAdapter adapter)
+	{
+		this.target = target;
+		this.adapter = adapter;
+	}
+
+	/**
+	 * Play a recording back.
+	 *
+	 * @param inputStream - the recording, closed once played
+	 * @param originalTiming - true to wait between broadcasts as long as when they were recorded, false to deliver them
+	 *                       as fast as possible
+	 * @return the number of broadcasts delivered
+	 * @throws IOException if the recording cannot be read
+	 * @throws InterruptedException if interrupted while waiting for the next broadcast
+	 */
+	public int replay(InputStream inputStream, boolean originalTiming) throws IOException, InterruptedException
+	{
+		DataInputStream input = new DataInputStream(new BufferedInputStream(inputStream));
+		try
+		{
+			if (input.readInt() != BroadcastRecorder.MAGIC)
+			{
+				throw new IOException("Not a broadcast recording");
+			}
+			int version = input.readShort();
+			if (version != BroadcastRecorder.VERSION)
+			{
+				throw new IOException("Unsupported recording version " + version);
+			}
+			input.readLong(); // Recording start time
+
+			ArrayList<String> names = new ArrayList<>();
+			int count = 0;
+			while (input.read() == BroadcastRecorder.RECORD_BROADCAST)
+			{
+				int delay = input.readInt();
+				String action = readName(input, names);
+				LinkedHashMap<String, Object> extras = new LinkedHashMap<>();
+				readExtras(input, names, extras);
+
+				if (originalTiming && delay > 0)
+				{
+					Thread.sleep(delay);
+				}
+				this.target.onBroadcast(action, extras);
+				count++;
+			}
+			this.target.awaitHandled();
+			return count;
+		}
+		catch (EOFException e)
+		{
+			throw new IOException("Truncated broadcast recording", e);
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	private void readExtras(DataInputStream input, ArrayList<String> names, Map<String, Object> extras) throws IOException
+	{
+		int type;
+		while ((type = input.readByte()) != BroadcastRecorder.TYPE_END)
+		{
+			String key = readName(input, names);
+			switch (type)
+			{
+				case BroadcastRecorder.TYPE_INT:
+					extras.put(key, input.readInt());
+					break;
+				case BroadcastRecorder.TYPE_SHORT:
+					extras.put(key, input.readShort());
+					break;
+				case BroadcastRecorder.TYPE_LONG:
+					extras.put(key, input.readLong());
+					break;
+				case BroadcastRecorder.TYPE_BOOLEAN:
+					extras.put(key, input.readBoolean());
+					break;
+				case BroadcastRecorder.TYPE_STRING:
+					extras.put(key, input.readUTF());
+					break;
+				case BroadcastRecorder.TYPE_BYTE_ARRAY:
+					byte[] bytes = new byte[input.readInt()];
+					input.readFully(bytes);
+					extras.put(key, bytes);
+					break;
+				case BroadcastRecorder.TYPE_DEVICE:
+					extras.put(key, this.adapter.getRemoteDevice(BluetoothAddress.toString(input.readLong())));
+					break;
+				case BroadcastRecorder.TYPE_BLUETOOTH_CLASS:
+					extras.put(key, createBluetoothClass(input.readInt()));
+					break;
+				default:
+					throw new IOException("Unknown extra type " + type);
+			}
+		}
+	}
+
+	private static Intent toIntent(String action, Map<String, Object> extras)
+	{
+		Intent intent = new Intent(action);
+		for (Map.Entry<String, Object> extra : extras.entrySet())
+		{
+			String key = extra.getKey();
+			Object value = extra.getValue();
+			if (value instanceof Integer)
+			{
+				intent.putExtra(key, (Integer) value);
+			}
+			else if (value instanceof Short)
+			{
+				intent.putExtra(key, (Short) value);
+			}
+			else if (value instanceof Long)
+			{
+				intent.putExtra(key, (Long) value);
+			}
+			else if (value instanceof Boolean)
+			{
+				intent.putExtra(key, (Boolean) value);
+			}
+			else if (value instanceof String)
+			{
+				intent.putExtra(key, (String) value);
+			}
+			else if (value instanceof byte[])
+			{
+				intent.putExtra(key, (byte[]) value);
+			}
+			else if (value instanceof BluetoothDevice)
+			{
+				intent.putExtra(key, (BluetoothDevice) value);
+			}
+			else if (value instanceof BluetoothClass)
+			{
+				intent.putExtra(key, (BluetoothClass) value);
+			}
+		}
+		return intent;
+	}
+
+	private static String readName(DataInputStream input, ArrayList<String> names) throws IOException
+	{
+		int index = input.readShort() & 0xFFFF;
+		if (index < names.size())
+		{
+			return names.get(index);
+		}
+		if (index != names.size())
+		{
+			throw new IOException("Invalid name index " + index);
+		}
+
+		String name = input.readUTF();
+		names.add(name);
+		return name;
+	}
+
+	private static BluetoothClass createBluetoothClass(int classOfDevice)
+	{
+		Parcel parcel = Parcel.obtain();
+		try
+		{
+			parcel.writeInt(classOfDevice);
+			parcel.setDataPosition(0);
+			return BluetoothClass.CREATOR.createFromParcel(parcel);
+		}
+		finally
+		{
+			parcel.recycle();
+		}
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Resolves the type of a device from its advertisements by matching them against device signatures.
+ * <p>
+ * A signature combines any of a local name prefix, an advertised service UUID (in a service UUID list or as service
+ * data), a manufacturer identifier and a GAP appearance, all of which must match. The signatures are compiled into a
+ * name prefix trie and lookup tables, so a scan record is classified against all of them in a single pass without
+ * allocating. When several signatures match, the first one added wins.
+ * <p>
+ * Resolved signatures are cached per device address. A match on a name prefix or manufacturer identifier is final;
+ * a match on a service UUID or appearance alone is provisional, as a later advertisement or scan response of the
+ * same device may reveal a more specific signature (e.g. an A&D UA-651 first seen advertising only the Blood
+ * Pressure service), which then replaces it.
+ *
+ * @see LocalBluetoothManager#getDeviceClassifier()
+ */
+public class DeviceSignatureClassifier
+{
+	/*
+	 * Device types
+	 */
+	public static final int TYPE_UNKNOWN            = 0;
+	public static final int TYPE_AND_UA651          = 1;
+	public static final int TYPE_AND_UC352          = 2;
+	public static final int TYPE_NONIN_OXIMETER     = 3;
+	public static final int TYPE_MARSDEN_SCALE      = 4;
+	public static final int TYPE_TAIDOC             = 5;
+	public static final int TYPE_SINOCARE           = 6;
+	public static final int TYPE_BLOOD_PRESSURE     = 7;
+	public static final int TYPE_WEIGHT_SCALE       = 8;
+	public static final int TYPE_HEALTH_THERMOMETER = 9;
+	public static final int TYPE_PULSE_OXIMETER     = 10;
+	public static final int TYPE_HEART_RATE         = 11;
+	/** First device type available for application defined signatures */
+	public static final int TYPE_USER               = 1000;
+
+	/** Maximum number of signatures */
+	public static final int MAX_SIGNATURES = 64;
+	/** Maximum number of devices whose signature is cached, least recently classified are dropped first */
+	public static final int MAX_CACHED_DEVICES = BluetoothDeviceRegistry.MAX_DEVICES;
+
+	private static final int NO_SIGNATURE = -1;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * Advertisement signature of a device type. Only the criteria specified are matched.
+	 */
+	public static class Signature
+	{
+		private final int deviceType;
+		private final String namePrefix;
+		private final String serviceUuid;
+		private final int manufacturerId;
+		private final int appearance;
+
+		/**
+		 * @param deviceType - type the signature identifies
+		 * @param namePrefix - advertised local name prefix or null
+		 * @param serviceUuid - advertised service UUID or null
+		 * @param manufacturerId - Bluetooth SIG company identifier of the manufacturer specific data or {@link ScanRecordParser#NOT_PRESENT}
+		 * @param appearance - GAP appearance value or {@link ScanRecordParser#NOT_PRESENT}
+		 */
+		public Signature(int deviceType, String namePrefix, String serviceUuid, int manufacturerId, int appearance)
+		{
+			if (namePrefix != null && namePrefix.isEmpty())
+			{
+				throw new IllegalArgumentException("Empty name prefix");
+			}
+
+			this.deviceType = deviceType;
+			this.namePrefix = namePrefix;
+			this.serviceUuid = serviceUuid;
+			this.manufacturerId = manufacturerId;
+			this.appearance = appearance;
+		}
+
+		public static Signature forNamePrefix(int deviceType, String namePrefix)
+		{
+			return new Signature(deviceType, namePrefix, null, ScanRecordParser.NOT_PRESENT, ScanRecordParser.NOT_PRESENT);
+		}
+
+		public static Signature forServiceUuid(int deviceType, String serviceUuid)
+		{
+			return new Signature(deviceType, null, serviceUuid, ScanRecordParser.NOT_PRESENT, ScanRecordParser.NOT_PRESENT);
+		}
+
+		public int getDeviceType()
+		{
+			return deviceType;
+		}
+
+		public String getNamePrefix()
+		{
+			return namePrefix;
+		}
+
+		public String getServiceUuid()
+		{
+			return serviceUuid;
+		}
+
+		public int getManufacturerId()
+		{
+			return manufacturerId;
+		}
+
+		public int getAppearance()
+		{
+			return appearance;
+		}
+	}
+
+	/**
+	 * Signatures of the supported devices, most specific first.
+	 */
+	public static final Signature[] DEFAULT_SIGNATURES = {
+			Signature.forNamePrefix(TYPE_AND_UA651, "A&D_UA-651"),
+			Signature.forNamePrefix(TYPE_AND_UC352, "A&D_UC-352"),
+			Signature.forServiceUuid(TYPE_NONIN_OXIMETER, GattAttributes.NONIN_OXIMETRY_SERVICE),
+			Signature.forServiceUuid(TYPE_MARSDEN_SCALE, GattAttributes.MARSDEN_SERVICE),
+			Signature.forServiceUuid(TYPE_TAIDOC, GattAttributes.TAIDOC_COMMUNICATION_SERVICE),
+			Signature.forServiceUuid(TYPE_SINOCARE, GattAttributes.SINOCARE_COMMUNICATION_SERVICE),
+			Signature.forServiceUuid(TYPE_BLOOD_PRESSURE, GattAttributes.GATT_SERVICE_BLOOD_PRESSURE),
+			Signature.forServiceUuid(TYPE_WEIGHT_SCALE, GattAttributes.GATT_SERVICE_BODY_WEIGHT),
+			Signature.forServiceUuid(TYPE_HEALTH_THERMOMETER, GattAttributes.HEALTH_THERMOMETER_SERVICE),
+			Signature.forServiceUuid(TYPE_PULSE_OXIMETER, GattAttributes.PULSE_OXIMETER_SERVICE),
+			Signature.forServiceUuid(TYPE_HEART_RATE, GattAttributes.HEART_RATE_SERVICE),
+	};
+
+	/*
+	 * Name prefix trie node, the masks hold one bit per signature
+	 */
+	private static class TrieNode
+	{
+		byte[] keys = new byte[0];
+		TrieNode[] children = new TrieNode[0];
+		long terminalMask;
+
+		TrieNode getChild(byte key)
+		{
+			for (int index = 0; index < this.keys.length; index++)
+			{
+				if (this.keys[index] == key)
+				{
+					return this.children[index];
+				}
+			}
+			return null;
+		}
+
+		TrieNode addChild(byte key)
+		{
+			TrieNode child = getChild(key);
+			if (child == null)
+			{
+				child = new TrieNode();
+				byte[] keys = new byte[this.keys.length + 1];
+				TrieNode[] children = new TrieNode[this.children.length + 1];
+				System.arraycopy(this.keys, 0, keys, 0, this.keys.length);
+				System.arraycopy(this.children, 0, children, 0, this.children.length);
+				keys[this.keys.length] = key;
+				children[this.children.length] = child;
+				this.keys = keys;
+				this.children = children;
+			}
+			return child;
+		}
+	}
+
+	/*
+	 * Immutable compiled form of the signatures
+	 */
+	private static class Index
+	{
+		final Signature[] signatures;
+		final TrieNode nameTrie = new TrieNode();
+		final long[] uuidMsbs;
+		final long[] uuidLsbs;
+		final long[] uuidMasks;
+		long allMask;
+		/** Signatures identifying a device definitively, by name prefix or manufacturer identifier */
+		long definitiveMask;
+		long nameCriteriaMask;
+		long uuidCriteriaMask;
+		long manufacturerCriteriaMask;
+		long appearanceCriteriaMask;
+
+		Index(Signature[] signatures)
+		{
+			this.signatures = signatures;
+
+			ArrayList<UUID> uuids = new ArrayList<>();
+			for (Signature signature : signatures)
+			{
+				if (signature.serviceUuid != null)
+				{
+					UUID uuid = UUID.fromString(signature.serviceUuid);
+					if (!uuids.contains(uuid))
+					{
+						uuids.add(uuid);
+					}
+				}
+			}
+			this.uuidMsbs = new long[uuids.size()];
+			this.uuidLsbs = new long[uuids.size()];
+			this.uuidMasks = new long[uuids.size()];
+			for (int index = 0; index < uuids.size(); index++)
+			{
+				this.uuidMsbs[index] = uuids.get(index).getMostSignificantBits();
+				this.uuidLsbs[index] = uuids.get(index).getLeastSignificantBits();
+			}
+
+			for (int index = 0; index < signatures.length; index++)
+			{
+				Signature signature = signatures[index];
+				long bit = 1L << index;
+				this.allMask |= bit;
+
+				if (signature.namePrefix != null)
+				{
+					this.nameCriteriaMask |= bit;
+					TrieNode node = this.nameTrie;
+					for (byte key : signature.namePrefix.getBytes(UTF_8))
+					{
+						node = node.addChild(key);
+					}
+					node.terminalMask |= bit;
+				}
+
+				if (signature.serviceUuid != null)
+				{
+					this.uuidCriteriaMask |= bit;
+					this.uuidMasks[uuids.indexOf(UUID.fromString(signature.serviceUuid))] |= bit;
+				}
+
+				if (signature.manufacturerId != ScanRecordParser.NOT_PRESENT)
+				{
+					this.manufacturerCriteriaMask |= bit;
+				}
+
+				if (signature.namePrefix != null || signature.manufacturerId != ScanRecordParser.NOT_PRESENT)
+				{
+					this.definitiveMask |= bit;
+				}
+
+				if (signature.appearance != ScanRecordParser.NOT_PRESENT)
+				{
+					this.appearanceCriteriaMask |= bit;
+				}
+			}
+		}
+
+		long matchName(byte[] name, int offset, int length)
+		{
+			long mask = 0;
+			TrieNode node = this.nameTrie;
+			for (int index = offset; index < offset + length && node != null; index++)
+			{
+				node = node.getChild(name[index]);
+				if (node != null)
+				{
+					mask |= node.terminalMask;
+				}
+			}
+			return mask;
+		}
+
+		long matchUuid(long msb, long lsb)
+		{
+			for (int index = 0; index < this.uuidMsbs.length; index++)
+			{
+				if (this.uuidMsbs[index] == msb && this.uuidLsbs[index] == lsb)
+				{
+					return this.uuidMasks[index];
+				}
+			}
+			return 0;
+		}
+
+		long matchManufacturer(int manufacturerId)
+		{
+			long mask = 0;
+			for (int index = 0; index < this.signatures.length; index++)
+			{
+				if (this.signatures[index].manufacturerId == manufacturerId)
+				{
+					mask |= 1L << index;
+				}
+			}
+			return mask;
+		}
+
+		long matchAppearance(int appearance)
+		{
+			long mask = 0;
+			for (int index = 0; index < this.signatures.length; index++)
+			{
+				if (this.signatures[index].appearance == appearance)
+				{
+					mask |= 1L << index;
+				}
+			}
+			return mask;
+		}
+
+		/**
+		 * @return the index of the first signature whose criteria all matched or {@link #NO_SIGNATURE}
+		 */
+		int resolve(long nameMask, long uuidMask, long manufacturerMask, long appearanceMask)
+		{
+			long matched = this.allMask
+					& (nameMask | ~this.nameCriteriaMask)
+					& (uuidMask | ~this.uuidCriteriaMask)
+					& (manufacturerMask | ~this.manufacturerCriteriaMask)
+					& (appearanceMask | ~this.appearanceCriteriaMask);
+			return matched == 0 ? NO_SIGNATURE : Long.numberOfTrailingZeros(matched);
+		}
+
+		boolean isDefinitive(int signature)
+		{
+			return signature != NO_SIGNATURE && (this.definitiveMask & (1L << signature)) != 0;
+		}
+
+		int getDeviceType(int signature)
+		{
+			return signature == NO_SIGNATURE ? TYPE_UNKNOWN : this.signatures[signature].deviceType;
+		}
+	}
+
+	private final Object lock = new Object();
+	private final BluetoothDeviceRegistry deviceRegistry;
+	private volatile Index index;
+	/**
+	 * Index of the signature resolved, keyed by packed address and ordered by access. Signatures are only ever appended,
+	 * so the indexes stay valid. Unknown devices are not cached, their next advertisement may match
+	 */
+	private final LinkedHashMap<Long, Integer> deviceSignatures = new LinkedHashMap<Long, Integer>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Integer> eldest)
+		{
+			return size() > MAX_CACHED_DEVICES;
+		}
+	};
+
+	/**
+	 * @param deviceRegistry - registry providing the names of devices classified without an advertisement
+	 * @param signatures - initial signatures
+	 */
+	DeviceSignatureClassifier(BluetoothDeviceRegistry deviceRegistry, Signature... signatures)
+	{
+		this.deviceRegistry = deviceRegistry;
+		this.index = new Index(new Signature[0]);
+		addSignatures(signatures);
+	}
+
+	/**
+	 * Add signatures, with a lower priority than the existing ones. Cached types are kept.
+	 *
+	 * @param signatures
+	 * @throws IllegalArgumentException if this would exceed {@link #MAX_SIGNATURES}
+	 */
+	public void addSignatures(Signature... signatures) throws IllegalArgumentException
+	{
+		synchronized (this.lock)
+		{
+			Signature[] existing = this.index.signatures;
+			if (existing.length + signatures.length > MAX_SIGNATURES)
+			{
+				throw new IllegalArgumentException("Too many signatures");
+			}
+
+			Signature[] combined = new Signature[existing.length + signatures.length];
+			System.arraycopy(existing, 0, combined, 0, existing.length);
+			System.arraycopy(signatures, 0, combined, existing.length, signatures.length);
+			this.index = new Index(combined);
+		}
+	}
+
+	/**
+	 * Classify a device from its advertisement. Called on the lanes of the event executor.
+	 *
+	 * @param device - the device the advertisement was received from
+	 * @param scanRecord - the advertisement data
+	 * @param parser - parser used to walk the scan record
+	 * @return the device type or {@link #TYPE_UNKNOWN}
+	 */
+	public int classify(BluetoothDevice device, byte[] scanRecord, ScanRecordParser parser)
+	{
+		long address = BluetoothAddress.toLong(device.getAddress());
+		Index index = this.index;
+		int cached = getCachedSignature(address);
+		if (index.isDefinitive(cached))
+		{
+			return index.getDeviceType(cached);
+		}
+
+		long nameMask = 0;
+		long uuidMask = 0;
+		long manufacturerMask = 0;
+		long appearanceMask = 0;
+
+		parser.reset(scanRecord);
+		while (parser.next())
+		{
+			switch (parser.getType())
+			{
+				case ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME:
+				case ScanRecordParser.TYPE_SHORTENED_LOCAL_NAME:
+					nameMask |= index.matchName(parser.getRecord(), parser.getDataOffset(), parser.getDataLength());
+					break;
+				case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+				case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16:
+				case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_32:
+				case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_32:
+				case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+				case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_128:
+					for (int uuidIndex = 0; uuidIndex < parser.getServiceUuidCount(); uuidIndex++)
+					{
+						uuidMask |= index.matchUuid(parser.getServiceUuidMsb(uuidIndex), parser.getServiceUuidLsb(uuidIndex));
+					}
+					break;
+				case ScanRecordParser.TYPE_SERVICE_DATA_16:
+				case ScanRecordParser.TYPE_SERVICE_DATA_32:
+				case ScanRecordParser.TYPE_SERVICE_DATA_128:
+					if (parser.getPayloadOffset() - parser.getDataOffset() <= parser.getDataLength())
+					{
+						uuidMask |= index.matchUuid(parser.getServiceDataUuidMsb(), parser.getServiceDataUuidLsb());
+					}
+					break;
+				case ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA:
+					if (index.manufacturerCriteriaMask != 0 && parser.getManufacturerId() != ScanRecordParser.NOT_PRESENT)
+					{
+						manufacturerMask |= index.matchManufacturer(parser.getManufacturerId());
+					}
+					break;
+				case ScanRecordParser.TYPE_APPEARANCE:
+					if (index.appearanceCriteriaMask != 0 && parser.getDataLength() >= 2)
+					{
+						appearanceMask |= index.matchAppearance(parser.uint16(parser.getDataOffset()));
+					}
+					break;
+				default:
+					break;
+			}
+		}
+
+		return cache(address, cached, index.resolve(nameMask, uuidMask, manufacturerMask, appearanceMask));
+	}
+
+	/**
+	 * Get the type of a device, as resolved from its advertisements or otherwise from its name.
+	 *
+	 * @param device
+	 * @return the device type or {@link #TYPE_UNKNOWN}
+	 */
+	public int getDeviceType(BluetoothDevice device)
+	{
+		long address = BluetoothAddress.toLong(device.getAddress());
+		Index index = this.index;
+		int cached = getCachedSignature(address);
+		if (index.isDefinitive(cached))
+		{
+			return index.getDeviceType(cached);
+		}
+
+		String name = this.deviceRegistry.getName(device);
+		if (name == null)
+		{
+			return index.getDeviceType(cached);
+		}
+
+		byte[] nameBytes = name.getBytes(UTF_8);
+		return cache(address, cached, index.resolve(index.matchName(nameBytes, 0, nameBytes.length), 0, 0, 0));
+	}
+
+	/**
+	 * Remove the cached type of a device
+	 *
+	 * @param address
+	 */
+	public void forget(String address)
+	{
+		synchronized (this.lock)
+		{
+			this.deviceSignatures.remove(BluetoothAddress.toLong(address));
+		}
+	}
+
+	/**
+	 * @param deviceType
+	 * @return true for the A&D Bluetooth 4.0 devices
+	 */
+	public static boolean isANDDevice(int deviceType)
+	{
+		return deviceType == TYPE_AND_UA651 || deviceType == TYPE_AND_UC352;
+	}
+
+	private int getCachedSignature(long address)
+	{
+		synchronized (this.lock)
+		{
+			Integer signature = this.deviceSignatures.get(address);
+			return signature == null ? NO_SIGNATURE : signature;
+		}
+	}
+
+	/**
+	 * Cache the signature resolved for a device, unless the one already cached takes priority over it.
+	 *
+	 * @return the type of the device
+	 */
+	private int cache(long address, int cached, int resolved)
+	{
+		if (resolved == NO_SIGNATURE || (cached != NO_SIGNATURE && cached <= resolved))
+		{
+			return this.index.getDeviceType(cached);
+		}
+
+		if (address != BluetoothAddress.INVALID)
+		{
+			synchronized (this.lock)
+			{
+				this.deviceSignatures.put(address, resolved);
+			}
+		}
+		return this.index.getDeviceType(resolved);
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Devices currently discovered over classic discovery and Bluetooth LE scanning, merged by address.
+ * <p>
+ * Each device records the transports it was seen on, with the signal strength and last seen time per transport. A
+ * transport expires once the device has not been seen on it for the time to live, and the device disappears once all
+ * its transports have expired, whichever transport it was discovered on.
+ *
+ * @see LocalBluetoothManager#getDiscoveryCache()
+ */
+public class DiscoveryCache
+{
+	/*
+	 * Transport flags
+	 */
+	public static final int TRANSPORT_CLASSIC = 0x01;
+	public static final int TRANSPORT_LE      = 0x02;
+
+	/** Signal strength of a transport the device has not been seen on */
+	public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+	public static final long DEFAULT_TIME_TO_LIVE = 120000;
+
+	/**
+	 * Snapshot of a discovered device
+	 */
+	public static class Entry
+	{
+		private final BluetoothDevice device;
+		private final int transports;
+		private final int classicRssi;
+		private final int leRssi;
+		private final long classicLastSeen;
+		private final long leLastSeen;
+		private final long firstSeen;
+
+		private Entry(Record record)
+		{
+			this.device = record.device;
+			this.transports = record.transports;
+			this.classicRssi = record.classicRssi;
+			this.leRssi = record.leRssi;
+			this.classicLastSeen = record.classicLastSeen;
+			this.leLastSeen = record.leLastSeen;
+			this.firstSeen = record.firstSeen;
+		}
+
+		public BluetoothDevice getDevice()
+		{
+			return device;
+		}
+
+		/**
+		 * @return the transports the device is currently seen on ({@link #TRANSPORT_CLASSIC}, {@link #TRANSPORT_LE})
+		 */
+		public int getTransports()
+		{
+			return transports;
+		}
+
+		public boolean isClassic()
+		{
+			return (transports & TRANSPORT_CLASSIC) != 0;
+		}
+
+		public boolean isLowEnergy()
+		{
+			return (transports & TRANSPORT_LE) != 0;
+		}
+
+		public boolean isDualMode()
+		{
+			return transports == (TRANSPORT_CLASSIC | TRANSPORT_LE);
+		}
+
+		/**
+		 * @return the signal strength of the last classic discovery result or {@link #RSSI_UNKNOWN}
+		 */
+		public int getClassicRssi()
+		{
+			return classicRssi;
+		}
+
+		/**
+		 * @return the signal strength of the last LE scan result or {@link #RSSI_UNKNOWN}
+		 */
+		public int getLeRssi()
+		{
+			return leRssi;
+		}
+
+		public long getClassicLastSeen()
+		{
+			return classicLastSeen;
+		}
+
+		public long getLeLastSeen()
+		{
+			return leLastSeen;
+		}
+
+		/**
+		 * @return the time the device was last seen on any transport ({@link android.os.SystemClock#elapsedRealtime()})
+		 */
+		public long getLastSeen()
+		{
+			return Math.max(classicLastSeen, leLastSeen);
+		}
+
+		public long getFirstSeen()
+		{
+			return firstSeen;
+		}
+	}
+
+	private static class Record
+	{
+		final BluetoothDevice device;
+		final long firstSeen;
+		int transports;
+		int classicRssi = RSSI_UNKNOWN;
+		int leRssi = RSSI_UNKNOWN;
+		long classicLastSeen = -1;
+		long leLastSeen = -1;
+
+		Record(BluetoothDevice device, long firstSeen)
+		{
+			this.device = device;
+			this.firstSeen = firstSeen;
+		}
+	}
+
+	private final HashMap<Long, Record> records = new HashMap<>();
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+
+	/**
+	 * Record a discovery result.
+	 *
+	 * @param device
+	 * @param transport - {@link #TRANSPORT_CLASSIC} or {@link #TRANSPORT_LE}
+	 * @param rssi - signal strength or {@link #RSSI_UNKNOWN}
+	 * @param now - current time ({@link android.os.SystemClock#elapsedRealtime()})
+	 * @return true if the device was not previously seen on this transport
+	 */
+	public synchronized boolean update(BluetoothDevice device, int transport, int rssi, long now)
+	{
+		long address = BluetoothAddress.toLong(device.getAddress());
+		Record record = this.records.get(address);
+		if (record == null)
+		{
+			record = new Record(device, now);
+			this.records.put(address, record);
+		}
+
+		boolean newTransport = (record.transports & transport) == 0;
+		record.transports |= transport;
+		if (transport == TRANSPORT_CLASSIC)
+		{
+			record.classicLastSeen = now;
+			if (rssi != RSSI_UNKNOWN)
+			{
+				record.classicRssi = rssi;
+			}
+		}
+		else
+		{
+			record.leLastSeen = now;
+			record.leRssi = rssi;
+		}
+		return newTransport;
+	}
+
+	/**
+	 * Remove a transport from a device, as when the platform reports the device has disappeared from classic discovery.
+	 *
+	 * @param device
+	 * @param transport
+	 * @return true if the device is no longer seen on any transport
+	 */
+	public synchronized boolean remove(BluetoothDevice device, int transport)
+	{
+		long address = BluetoothAddress.toLong(device.getAddress());
+		Record record = this.records.get(address);
+		if (record == null)
+		{
+			return true;
+		}
+
+		record.transports &= ~transport;
+		if (record.transports == 0)
+		{
+			this.records.remove(address);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @param address
+	 * @return a snapshot of the device or null if it is not currently discovered
+	 */
+	public synchronized Entry get(String address)
+	{
+		Record record = this.records.get(BluetoothAddress.toLong(address));
+		return record == null ? null : new Entry(record);
+	}
+
+	/**
+	 * @return snapshots of all the devices currently discovered
+	 */
+	public synchronized List<Entry> getEntries()
+	{
+		ArrayList<Entry> entries = new ArrayList<>(this.records.size());
+		for (Record record : this.records.values())
+		{
+			entries.add(new Entry(record));
+		}
+		return entries;
+	}
+
+	public synchronized int size()
+	{
+		return this.records.size();
+	}
+
+	public synchronized void clear()
+	{
+		this.records.clear();
+	}
+
+	/**
+	 * Expire the transports the devices have not been seen on for the time to live.
+	 *
+	 * @param now - current time ({@link android.os.SystemClock#elapsedRealtime()})
+	 * @return the devices which have disappeared from all transports
+	 */
+	public synchronized List<BluetoothDevice> evictExpired(long now)
+	{
+		ArrayList<BluetoothDevice> disappeared = null;
+		Iterator<Record> iterator = this.records.values().iterator();
+		while (iterator.hasNext())
+		{
+			Record record = iterator.next();
+			if ((record.transports & TRANSPORT_CLASSIC) != 0 && now - record.classicLastSeen > this.timeToLive)
+			{
+				record.transports &= ~TRANSPORT_CLASSIC;
+			}
+			if ((record.transports & TRANSPORT_LE) != 0 && now - record.leLastSeen > this.timeToLive)
+			{
+				record.transports &= ~TRANSPORT_LE;
+			}
+
+			if (record.transports == 0)
+			{
+				iterator.remove();
+				if (disappeared == null)
+				{
+					disappeared = new ArrayList<>();
+				}
+				disappeared.add(record.device);
+			}
+		}
+		return disappeared == null ? Collections.<BluetoothDevice>emptyList() : disappeared;
+	}
+
+	/**
+	 * @param timeToLive - period in milliseconds after which a device not seen on a transport is removed from it.
+	 *                   This should exceed the longest scan interval used.
+	 */
+	public synchronized void setTimeToLive(long timeToLive)
+	{
+		this.timeToLive = timeToLive;
+	}
+
+	public synchronized long getTimeToLive()
+	{
+		return timeToLive;
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Snapshot of the time spent delivering events to the {@link BluetoothEventListener}s, per event type and per listener
+ * class.
+ *
+ * @see BluetoothEventBus#getDispatchMetrics()
+ */
+public final class DispatchMetrics
+{
+	/**
+	 * Delivery statistics of an event type or a listener class
+	 */
+	public static final class Stats
+	{
+		private final String name;
+		private final long count;
+		private final long totalNanos;
+		private final long maxNanos;
+		private final long overBudgetCount;
+
+		Stats(String name, long count, long totalNanos, long maxNanos, long overBudgetCount)
+		{
+			this.name = name;
+			this.count = count;
+			this.totalNanos = totalNanos;
+			this.maxNanos = maxNanos;
+			this.overBudgetCount = overBudgetCount;
+		}
+
+		/**
+		 * @return the event type or listener class name
+		 */
+		public String getName()
+		{
+			return name;
+		}
+
+		/**
+		 * @return the number of deliveries
+		 */
+		public long getCount()
+		{
+			return count;
+		}
+
+		public long getTotalNanos()
+		{
+			return totalNanos;
+		}
+
+		public long getAverageNanos()
+		{
+			return count > 0 ? totalNanos / count : 0;
+		}
+
+		public long getMaxNanos()
+		{
+			return maxNanos;
+		}
+
+		/**
+		 * @return the number of deliveries which exceeded the latency budget
+		 */
+		public long getOverBudgetCount()
+		{
+			return overBudgetCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			return String.format("%s: %d deliveries, avg %d us, max %d us, %d over budget",
+					name, count, getAverageNanos() / 1000, maxNanos / 1000, overBudgetCount);
+		}
+	}
+
+	/*
+	 * Live counters a snapshot is taken from
+	 */
+	static final class Counter
+	{
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+		private final AtomicLong overBudgetCount = new AtomicLong();
+
+		void record(long nanos, boolean overBudget)
+		{
+			this.count.incrementAndGet();
+			this.totalNanos.addAndGet(nanos);
+			long max = this.maxNanos.get();
+			while (nanos > max && !this.maxNanos.compareAndSet(max, nanos))
+			{
+				max = this.maxNanos.get();
+			}
+			if (overBudget)
+			{
+				this.overBudgetCount.incrementAndGet();
+			}
+		}
+
+		void reset()
+		{
+			this.count.set(0);
+			this.totalNanos.set(0);
+			this.maxNanos.set(0);
+			this.overBudgetCount.set(0);
+		}
+
+		Stats snapshot(String name)
+		{
+			return new Stats(name, this.count.get(), this.totalNanos.get(), this.maxNanos.get(), this.overBudgetCount.get());
+		}
+	}
+
+	private final long latencyBudgetNanos;
+	private final List<Stats> eventStats;
+	private final List<Stats> listenerStats;
+	private final List<String> slowListeners;
+
+	DispatchMetrics(long latencyBudgetNanos, List<Stats> eventStats, List<Stats> listenerStats, List<String> slowListeners)
+	{
+		this.latencyBudgetNanos = latencyBudgetNanos;
+		this.eventStats = Collections.unmodifiableList(eventStats);
+		this.listenerStats = Collections.unmodifiableList(listenerStats);
+		this.slowListeners = Collections.unmodifiableList(slowListeners);
+	}
+
+	public long getLatencyBudgetNanos()
+	{
+		return latencyBudgetNanos;
+	}
+
+	/**
+	 * @return the statistics of each event type delivered
+	 */
+	public List<Stats> getEventStats()
+	{
+		return eventStats;
+	}
+
+	/**
+	 * @return the statistics of each listener class events were delivered to
+	 */
+	public List<Stats> getListenerStats()
+	{
+		return listenerStats;
+	}
+
+	/**
+	 * @return the class names of the listeners currently flagged as slow
+	 */
+	public List<String> getSlowListeners()
+	{
+		return slowListeners;
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+/**
+ * A device discovery result delivered through {@link BluetoothEventListener#onDevicesFound(java.util.List)}.
+ */
+public class FoundDevice
+{
+	private final BluetoothDevice device;
+	private final int signalStrength;
+	private final boolean bluetoothLEDevice;
+	private final byte[] scanRecord;
+	private final long timestamp;
+
+	FoundDevice(BluetoothDevice device, int signalStrength, boolean bluetoothLEDevice, byte[] scanRecord, long timestamp)
+	{
+		this.device = device;
+		this.signalStrength = signalStrength;
+		this.bluetoothLEDevice = bluetoothLEDevice;
+		this.scanRecord = scanRecord;
+		this.timestamp = timestamp;
+	}
+
+	public BluetoothDevice getDevice()
+	{
+		return device;
+	}
+
+	public int getSignalStrength()
+	{
+		return signalStrength;
+	}
+
+	public boolean isBluetoothLEDevice()
+	{
+		return bluetoothLEDevice;
+	}
+
+	/**
+	 * @return the advertisement data for Bluetooth LE devices, null for standard bluetooth devices
+	 */
+	public byte[] getScanRecord()
+	{
+		return scanRecord;
+	}
+
+	/**
+	 * @return time the device was found ({@link android.os.SystemClock#elapsedRealtime()})
+	 */
+	public long getTimestamp()
+	{
+		return timestamp;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "FoundDevice{" +
+				"device=" + device +
+				", signalStrength=" + signalStrength +
+				", bluetoothLEDevice=" + bluetoothLEDevice +
+				", timestamp=" + timestamp +
+				'}';
+	}
+}
@@ -0,0 +1,294 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.docobo.logger.Logger;
+
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allowlist of enrolled devices, identified by address or by advertised local name.
+ * <p>
+ * Every scan result is first checked against a compact {@link BloomFilter} built from the entries, which rejects
+ * unrelated devices with a constant number of memory reads and without allocating. The exact entries are only
+ * consulted to confirm a Bloom filter hit. Entries can be added and removed incrementally: the filter is rebuilt when
+ * it outgrows its capacity or once enough entries have been removed to raise the false positive rate.
+ * <p>
+ * An empty allowlist accepts all scan results.
+ *
+ * @see LocalBluetoothManager#getLeScanAllowlist()
+ */
+public class LeScanAllowlist
+{
+	private static final String TAG = "LeScanAllowlist";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int MIN_CAPACITY = 256;
+
+	private final Object lock = new Object();
+	private final HashSet<Long> addresses = new HashSet<>();
+	private final HashSet<String> identifiers = new HashSet<>();
+	/** Null while the allowlist is empty */
+	private volatile BloomFilter bloomFilter = null;
+	private volatile boolean hasIdentifiers = false;
+	/** Entries removed since the filter was built, whose bits are still set */
+	private int removedCount = 0;
+	private final AtomicLong falsePositiveCount = new AtomicLong();
+
+	/**
+	 * Replace all entries of the allowlist.
+	 *
+	 * @param addresses - enrolled device addresses in the form "00:11:22:AA:BB:CC", or null
+	 * @param identifiers - enrolled device identifiers (complete advertised local names), or null
+	 */
+	public void set(Collection<String> addresses, Collection<String> identifiers)
+	{
+		synchronized (this.lock)
+		{
+			this.addresses.clear();
+			this.identifiers.clear();
+
+			if (addresses != null)
+			{
+				for (String address : addresses)
+				{
+					long value = BluetoothAddress.toLong(address);
+					if (value != BluetoothAddress.INVALID)
+					{
+						this.addresses.add(value);
+					}
+					else
+					{
+						Logger.w(TAG, "Ignoring invalid address %s", address);
+					}
+				}
+			}
+
+			if (identifiers != null)
+			{
+				for (String identifier : identifiers)
+				{
+					if (identifier != null)
+					{
+						this.identifiers.add(identifier);
+					}
+				}
+			}
+
+			rebuild();
+		}
+	}
+
+	/**
+	 * @param address - enrolled device address in the form "00:11:22:AA:BB:CC"
+	 * @return false if the address is invalid
+	 */
+	public boolean addAddress(String address)
+	{
+		long value = BluetoothAddress.toLong(address);
+		if (value == BluetoothAddress.INVALID)
+		{
+			return false;
+		}
+
+		synchronized (this.lock)
+		{
+			if (this.addresses.add(value))
+			{
+				added(value);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param identifier - enrolled device identifier, matched against the complete advertised local name
+	 */
+	public void addIdentifier(String identifier)
+	{
+		if (identifier == null)
+		{
+			return;
+		}
+
+		synchronized (this.lock)
+		{
+			if (this.identifiers.add(identifier))
+			{
+				this.hasIdentifiers = true;
+				added(toKey(identifier));
+			}
+		}
+	}
+
+	public void removeAddress(String address)
+	{
+		synchronized (this.lock)
+		{
+			if (this.addresses.remove(BluetoothAddress.toLong(address)))
+			{
+				removed();
+			}
+		}
+	}
+
+	public void removeIdentifier(String identifier)
+	{
+		synchronized (this.lock)
+		{
+			if (this.identifiers.remove(identifier))
+			{
+				this.hasIdentifiers = !this.identifiers.isEmpty();
+				removed();
+			}
+		}
+	}
+
+	/**
+	 * Remove all entries, all scan results will be accepted.
+	 */
+	public void clear()
+	{
+		set(null, null);
+	}
+
+	/**
+	 * @return the number of enrolled addresses and identifiers
+	 */
+	public int size()
+	{
+		synchronized (this.lock)
+		{
+			return this.addresses.size() + this.identifiers.size();
+		}
+	}
+
+	/**
+	 * @return the number of scan results which passed the Bloom filter but were not enrolled
+	 */
+	public long getFalsePositiveCount()
+	{
+		return this.falsePositiveCount.get();
+	}
+
+	/**
+	 * Check if a scan result is from an enrolled device. Called on the thread the scan results are received on.
+	 *
+	 * @param device - the device the advertisement was received from
+	 * @param scanRecord - the advertisement data
+	 * @param parser - parser used to walk the scan record
+	 * @return true if the device is enrolled or the allowlist is empty
+	 */
+	boolean matches(BluetoothDevice device, byte[] scanRecord, ScanRecordParser parser)
+	{
+		BloomFilter filter = this.bloomFilter;
+		if (filter == null)
+		{
+			return true;
+		}
+
+		long address = BluetoothAddress.toLong(device.getAddress());
+		if (address != BluetoothAddress.INVALID && filter.mightContain(address))
+		{
+			synchronized (this.lock)
+			{
+				if (this.addresses.contains(address))
+				{
+					return true;
+				}
+			}
+			this.falsePositiveCount.incrementAndGet();
+		}
+
+		if (!this.hasIdentifiers || scanRecord == null)
+		{
+			return false;
+		}
+
+		parser.reset(scanRecord);
+		if (!parser.findLocalName()
+				|| !filter.mightContain(BloomFilter.hash(scanRecord, parser.getDataOffset(), parser.getDataLength())))
+		{
+			return false;
+		}
+
+		String name = parser.getLocalName();
+		synchronized (this.lock)
+		{
+			if (this.identifiers.contains(name))
+			{
+				return true;
+			}
+		}
+		this.falsePositiveCount.incrementAndGet();
+		return false;
+	}
+
+	/*
+	 * Must be called holding the lock
+	 */
+	private void added(long key)
+	{
+		BloomFilter filter = this.bloomFilter;
+		if (filter == null || this.addresses.size() + this.identifiers.size() + this.removedCount > filter.getCapacity())
+		{
+			rebuild();
+		}
+		else
+		{
+			filter.add(key);
+		}
+	}
+
+	private void removed()
+	{
+		this.removedCount++;
+		int size = this.addresses.size() + this.identifiers.size();
+		if (size == 0 || this.removedCount > Math.max(size, MIN_CAPACITY) / 2)
+		{
+			rebuild();
+		}
+	}
+
+	private void rebuild()
+	{
+		this.removedCount = 0;
+		this.hasIdentifiers = !this.identifiers.isEmpty();
+
+		int size = this.addresses.size() + this.identifiers.size();
+		if (size == 0)
+		{
+			this.bloomFilter = null;
+			return;
+		}
+
+		// Leave room for incremental additions before the next rebuild
+		BloomFilter filter = new BloomFilter(Math.max(size * 2, MIN_CAPACITY));
+		for (Long address : this.addresses)
+		{
+			filter.add(address);
+		}
+		for (String identifier : this.identifiers)
+		{
+			filter.add(toKey(identifier));
+		}
+		this.bloomFilter = filter;
+
+		Logger.df(TAG, 15, "Allowlist rebuilt with %d entries", size);
+	}
+
+	private static long toKey(String identifier)
+	{
+		byte[] bytes = identifier.getBytes(UTF_8);
+		return BloomFilter.hash(bytes, 0, bytes.length);
+	}
+}
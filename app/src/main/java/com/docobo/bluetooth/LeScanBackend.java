@@ -0,0 +1,328 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import com.docobo.logger.Logger;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Mechanism running the shared Bluetooth LE scan on the adapter, selected once for the platform.
+ * <p>
+ * Scan results are always delivered through {@link LeScanCallbackInterface#onLeScan(android.bluetooth.BluetoothDevice, int, byte[])},
+ * whichever backend is used.
+ */
+abstract class LeScanBackend
+{
+	private static final String TAG = "LeScanBackend";
+
+	/**
+	 * Create the backend for the platform.
+	 *
+	 * @param adapter
+	 * @param capabilities - platform capabilities. On HH3 firmware LE scanning is only available through the hidden
+	 *                     startLeScan API, whose methods are only resolved when that backend is used.
+	 * @return the backend or null if Bluetooth LE scanning is not supported
+	 */
+	static LeScanBackend create(BluetoothAdapter adapter, BluetoothCapabilities capabilities)
+	{
+		if (!capabilities.isDocoboDevice() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
+		{
+			return new ScannerLeScanBackend(adapter);
+		}
+
+		Method startLeScanMethod = capabilities.getMethod(BluetoothCapabilities.START_LE_SCAN);
+		Method stopLeScanMethod = capabilities.getMethod(BluetoothCapabilities.STOP_LE_SCAN);
+		if (startLeScanMethod != null && stopLeScanMethod != null)
+		{
+			return new ReflectiveLeScanBackend(adapter, startLeScanMethod, stopLeScanMethod);
+		}
+
+		return null;
+	}
+
+	/**
+	 * Start scanning.
+	 *
+	 * @param callback - callback receiving the scan results
+	 * @param filters - filters the results only need to be a superset of, or null for all results
+	 * @return true if the scan was started
+	 */
+	abstract boolean start(LeScanCallbackInterface callback, LeScanFilter[] filters);
+
+	/**
+	 * Stop scanning.
+	 *
+	 * @param callback - callback the scan was started with
+	 */
+	abstract void stop(LeScanCallbackInterface callback);
+
+	/**
+	 * @return true if filters passed to {@link #start(LeScanCallbackInterface, LeScanFilter[])} are applied by the
+	 * controller, so the scan needs restarting when they change
+	 */
+	abstract boolean supportsFilters();
+
+	/**
+	 * @param reportDelay - period in milliseconds scan results are batched by the controller before being delivered, 0
+	 *                    to deliver them immediately. Applies from the next scan started.
+	 */
+	abstract void setReportDelay(long reportDelay);
+
+	abstract String getName();
+
+	/**
+	 * Legacy scanning through the reflected BluetoothAdapter.startLeScan API, as required by HH3 firmware.
+	 */
+	private static class ReflectiveLeScanBackend extends LeScanBackend
+	{
+		private final BluetoothAdapter adapter;
+		private final Method startLeScanMethod;
+		private final Method stopLeScanMethod;
+
+		ReflectiveLeScanBackend(BluetoothAdapter adapter, Method startLeScanMethod, Method stopLeScanMethod)
+		{
+			this.adapter = adapter;
+			this.startLeScanMethod = startLeScanMethod;
+			this.stopLeScanMethod = stopLeScanMethod;
+		}
+
+		@Override
+		boolean start(LeScanCallbackInterface callback, LeScanFilter[] filters)
+		{
+			try
+			{
+				this.startLeScanMethod.invoke(this.adapter, callback.getLeScanCallback());
+				return true;
+			}
+			catch (Exception e)
+			{
+				Logger.ex(TAG, "Error invoking startLeScan", e);
+				return false;
+			}
+		}
+
+		@Override
+		void stop(LeScanCallbackInterface callback)
+		{
+			try
+			{
+				this.stopLeScanMethod.invoke(this.adapter, callback.getLeScanCallback());
+			}
+			catch (Exception e)
+			{
+				Logger.ex(TAG, "Error invoking stopLeScan", e);
+			}
+		}
+
+		@Override
+		boolean supportsFilters()
+		{
+			return false;
+		}
+
+		@Override
+		void setReportDelay(long reportDelay)
+		{
+			// Not supported
+		}
+
+		@Override
+		String getName()
+		{
+			return "startLeScan";
+		}
+	}
+
+	/**
+	 * Scanning through BluetoothLeScanner, offloading filtering and batching to the controller where supported.
+	 */
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private static class ScannerLeScanBackend extends LeScanBackend
+	{
+		private final BluetoothAdapter adapter;
+		private ScanCallback scanCallback = null;
+		private volatile long reportDelay = 0;
+		private boolean batching = false;
+
+		ScannerLeScanBackend(BluetoothAdapter adapter)
+		{
+			this.adapter = adapter;
+		}
+
+		@Override
+		synchronized boolean start(final LeScanCallbackInterface callback, LeScanFilter[] filters)
+		{
+			BluetoothLeScanner scanner = this.adapter.getBluetoothLeScanner();
+			if (scanner == null)
+			{
+				// Bluetooth is off
+				return false;
+			}
+
+			ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+			this.batching = this.reportDelay > 0 && this.adapter.isOffloadedScanBatchingSupported();
+			if (this.batching)
+			{
+				settings.setReportDelay(this.reportDelay);
+			}
+
+			this.scanCallback = new ScanCallback()
+			{
+				@Override
+				public void onScanResult(int callbackType, ScanResult result)
+				{
+					deliver(callback, result);
+				}
+
+				@Override
+				public void onBatchScanResults(List<ScanResult> results)
+				{
+					for (int index = 0; index < results.size(); index++)
+					{
+						deliver(callback, results.get(index));
+					}
+				}
+
+				@Override
+				public void onScanFailed(int errorCode)
+				{
+					Logger.w(TAG, "Bluetooth LE scan failed (Error: %d)", errorCode);
+				}
+			};
+
+			try
+			{
+				scanner.startScan(toScanFilters(filters), settings.build(), this.scanCallback);
+				return true;
+			}
+			catch (Exception e)
+			{
+				Logger.ex(TAG, "Error starting Bluetooth LE scan", e);
+				this.scanCallback = null;
+				return false;
+			}
+		}
+
+		@Override
+		synchronized void stop(LeScanCallbackInterface callback)
+		{
+			BluetoothLeScanner scanner = this.adapter.getBluetoothLeScanner();
+			if (scanner == null || this.scanCallback == null)
+			{
+				this.scanCallback = null;
+				return;
+			}
+
+			try
+			{
+				if (this.batching)
+				{
+					// Deliver the results held by the controller
+					scanner.flushPendingScanResults(this.scanCallback);
+				}
+				scanner.stopScan(this.scanCallback);
+			}
+			catch (Exception e)
+			{
+				Logger.ex(TAG, "Error stopping Bluetooth LE scan", e);
+			}
+			this.scanCallback = null;
+		}
+
+		@Override
+		boolean supportsFilters()
+		{
+			return true;
+		}
+
+		@Override
+		void setReportDelay(long reportDelay)
+		{
+			this.reportDelay = reportDelay;
+		}
+
+		@Override
+		String getName()
+		{
+			return "BluetoothLeScanner";
+		}
+
+		private static void deliver(LeScanCallbackInterface callback, ScanResult result)
+		{
+			ScanRecord scanRecord = result.getScanRecord();
+			callback.onLeScan(result.getDevice(), result.getRssi(), scanRecord == null ? null : scanRecord.getBytes());
+		}
+
+		/**
+		 * Convert the filters to controller filters matching a superset of the results.
+		 *
+		 * @return the controller filters or null to scan without filters, if any filter only has criteria the controller
+		 * cannot match (name or partial address prefixes)
+		 */
+		private static List<ScanFilter> toScanFilters(LeScanFilter[] filters)
+		{
+			if (filters == null)
+			{
+				return null;
+			}
+
+			ArrayList<ScanFilter> scanFilters = new ArrayList<>(filters.length);
+			for (LeScanFilter filter : filters)
+			{
+				ScanFilter.Builder builder = new ScanFilter.Builder();
+				boolean offloaded = false;
+
+				if (filter.getServiceUuid() != null)
+				{
+					builder.setServiceUuid(ParcelUuid.fromString(filter.getServiceUuid()));
+					offloaded = true;
+				}
+
+				if (filter.getServiceDataUuid() != null)
+				{
+					builder.setServiceData(ParcelUuid.fromString(filter.getServiceDataUuid()), new byte[0]);
+					offloaded = true;
+				}
+
+				if (filter.getManufacturerId() != ScanRecordParser.NOT_PRESENT)
+				{
+					builder.setManufacturerData(filter.getManufacturerId(), new byte[0]);
+					offloaded = true;
+				}
+
+				String addressPrefix = filter.getAddressPrefix();
+				if (addressPrefix != null && BluetoothAddress.toLong(addressPrefix) != BluetoothAddress.INVALID)
+				{
+					builder.setDeviceAddress(addressPrefix);
+					offloaded = true;
+				}
+
+				if (!offloaded)
+				{
+					return null;
+				}
+				scanFilters.add(builder.build());
+			}
+			return scanFilters;
+		}
+	}
+}
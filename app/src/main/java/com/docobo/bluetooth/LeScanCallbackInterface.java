@@ -11,20 +11,51 @@ import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.os.Build;
 import android.util.Log;
 
 import com.docobo.device.PlatformInfo;
 
 public abstract class LeScanCallbackInterface implements InvocationHandler
 {
+	/**
+	 * Implements the public {@link BluetoothAdapter.LeScanCallback} directly so that each advertisement
+	 * is delivered to {@link #onLeScan(BluetoothDevice, int, byte[])} without going through the Proxy.
+	 * <p>
+	 * Kept in its own class so the interface is only resolved on platforms where it is public.
+	 */
+	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+	private static final class DirectLeScanCallback implements BluetoothAdapter.LeScanCallback
+	{
+		private final LeScanCallbackInterface target;
+		
+		DirectLeScanCallback(LeScanCallbackInterface target)
+		{
+			this.target = target;
+		}
+		
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord)
+		{
+			this.target.onLeScan(device, rssi, scanRecord);
+		}
+	}
+	
 	private Object leScanCallback;
 	private static Class<?> interfaceLeScanCallback;
 	
 	public LeScanCallbackInterface()
 	{
-		if (PlatformInfo.isDocoboDevice() || android.os.Build.VERSION.SDK_INT >= 18)
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+		{
+			this.leScanCallback = new DirectLeScanCallback(this);
+		}
+		else if (PlatformInfo.isDocoboDevice())
 		{
+			// HH3 firmware exposes LeScanCallback as a hidden interface, so it can only be implemented through a Proxy.
 			try
 			{
 				// initialise the interfaceLeScanCallback static variable
@@ -51,43 +82,44 @@ public abstract class LeScanCallbackInterface implements InvocationHandler
 	
 	public abstract void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord);
 	
+	/**
+	 * Called instead of {@link #onLeScan(BluetoothDevice, int, byte[])} by the shared scan of the
+	 * {@link LocalBluetoothManager}, which delivers the results of a {@link LeScanSession} on an executor lane.
+	 * 
+	 * @param receivedTime - {@link android.os.SystemClock#elapsedRealtime()} when the advertisement was received from
+	 *                     the platform, before it was handed to the lane
+	 */
+	public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord, long receivedTime)
+	{
+		onLeScan(device, rssi, scanRecord);
+	}
+	
 	@Override
 	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
 	{
-		try
+		// onLeScan is the only method declared by the callback interface, anything else comes from Object.
+		if (method.getDeclaringClass() == interfaceLeScanCallback)
 		{
-			// System.out.println("before method " + method.getName());
-			if (method.getName().equals("onLeScan"))
-			{
-				BluetoothDevice founddev = (BluetoothDevice) args[0];
-				int rssi = ((Integer) args[1]).intValue();
-				byte[] scanRecord = (byte[]) args[2];
-				onLeScan(founddev, rssi, scanRecord);
-				return null;
-			}
-			else if (method.getName().equals("hashCode"))
-			{
-				return Integer.valueOf(System.identityHashCode(proxy));
-			}
-			else if (method.getName().equals("toString"))
-			{
-				return proxy.getClass().getName() + '@' + Integer.toHexString(proxy.hashCode());
-			}
-			else if (method.getName().equals("equals"))
-			{
-				return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
-			}
-			else
-			{
-				Log.v("LeScanCallbackInterface", "undefined proxy methods " + method.getName());
-			}
-
-		} catch (Exception e)
+			onLeScan((BluetoothDevice) args[0], (Integer) args[1], (byte[]) args[2]);
+			return null;
+		}
+		
+		String methodName = method.getName();
+		if (methodName.equals("hashCode"))
+		{
+			return Integer.valueOf(System.identityHashCode(proxy));
+		}
+		else if (methodName.equals("toString"))
+		{
+			return proxy.getClass().getName() + '@' + Integer.toHexString(proxy.hashCode());
+		}
+		else if (methodName.equals("equals"))
 		{
-			throw new RuntimeException("unexpected invocation exception: " + e.getMessage());
-		} finally
+			return (proxy == args[0] ? Boolean.TRUE : Boolean.FALSE);
+		}
+		else
 		{
-			// System.out.println("after method " + method.getName());
+			Log.v("LeScanCallbackInterface", "undefined proxy methods " + methodName);
 		}
 		
 		return null;
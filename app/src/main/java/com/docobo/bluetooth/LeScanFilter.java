@@ -0,0 +1,256 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Filter specification for Bluetooth LE scan results.
+ * <p>
+ * Filters are evaluated against the device address and the raw scan record before a scan result is logged or
+ * dispatched, so that irrelevant advertisements are discarded as early as possible. All the criteria set on a filter
+ * must match for the filter to match.
+ *
+ * @see LocalBluetoothManager#addLeScanFilter(LeScanFilter)
+ */
+public class LeScanFilter
+{
+	private final String serviceUuid;
+	private final long serviceUuidMsb;
+	private final long serviceUuidLsb;
+	private final String serviceDataUuid;
+	private final long serviceDataUuidMsb;
+	private final long serviceDataUuidLsb;
+	private final int manufacturerId;
+	private final String addressPrefix;
+	private final String namePrefix;
+	private final byte[] namePrefixBytes;
+
+	/**
+	 * Create a filter matching all the given criteria.
+	 *
+	 * @param serviceUuid - advertised service UUID (e.g. {@link GattAttributes#HEART_RATE_SERVICE}) or null
+	 * @param manufacturerId - Bluetooth SIG company identifier of the manufacturer specific data or {@link ScanRecordParser#NOT_PRESENT}
+	 * @param addressPrefix - device address prefix (e.g. "00:1C:05") or null
+	 * @param namePrefix - advertised local name prefix or null
+	 * @throws IllegalArgumentException if the service UUID is invalid
+	 */
+	public LeScanFilter(String serviceUuid, int manufacturerId, String addressPrefix, String namePrefix) throws IllegalArgumentException
+	{
+		this(serviceUuid, null, manufacturerId, addressPrefix, namePrefix);
+	}
+
+	/**
+	 * Create a filter matching all the given criteria.
+	 *
+	 * @param serviceUuid - advertised service UUID (e.g. {@link GattAttributes#HEART_RATE_SERVICE}) or null
+	 * @param serviceDataUuid - UUID of advertised service data (e.g. {@link GattAttributes#HEALTH_THERMOMETER_SERVICE}) or null
+	 * @param manufacturerId - Bluetooth SIG company identifier of the manufacturer specific data or {@link ScanRecordParser#NOT_PRESENT}
+	 * @param addressPrefix - device address prefix (e.g. "00:1C:05") or null
+	 * @param namePrefix - advertised local name prefix or null
+	 * @throws IllegalArgumentException if a UUID is invalid
+	 */
+	public LeScanFilter(String serviceUuid, String serviceDataUuid, int manufacturerId, String addressPrefix, String namePrefix) throws IllegalArgumentException
+	{
+		this.serviceUuid = serviceUuid;
+		if (serviceUuid != null)
+		{
+			UUID uuid = UUID.fromString(serviceUuid);
+			this.serviceUuidMsb = uuid.getMostSignificantBits();
+			this.serviceUuidLsb = uuid.getLeastSignificantBits();
+		}
+		else
+		{
+			this.serviceUuidMsb = 0;
+			this.serviceUuidLsb = 0;
+		}
+
+		this.serviceDataUuid = serviceDataUuid;
+		if (serviceDataUuid != null)
+		{
+			UUID uuid = UUID.fromString(serviceDataUuid);
+			this.serviceDataUuidMsb = uuid.getMostSignificantBits();
+			this.serviceDataUuidLsb = uuid.getLeastSignificantBits();
+		}
+		else
+		{
+			this.serviceDataUuidMsb = 0;
+			this.serviceDataUuidLsb = 0;
+		}
+
+		this.manufacturerId = manufacturerId;
+		this.addressPrefix = addressPrefix == null ? null : addressPrefix.toUpperCase(Locale.US);
+		this.namePrefix = namePrefix;
+		this.namePrefixBytes = namePrefix == null ? null : namePrefix.getBytes(Charset.forName("UTF-8"));
+	}
+
+	/**
+	 * @param serviceUuid - advertised service UUID, e.g. {@link GattAttributes#NONIN_OXIMETRY_SERVICE}
+	 * @return a filter matching devices advertising the service
+	 */
+	public static LeScanFilter forServiceUuid(String serviceUuid)
+	{
+		return new LeScanFilter(serviceUuid, ScanRecordParser.NOT_PRESENT, null, null);
+	}
+
+	/**
+	 * @param serviceDataUuid - service UUID, e.g. {@link GattAttributes#HEALTH_THERMOMETER_SERVICE}
+	 * @return a filter matching devices advertising service data for the service
+	 */
+	public static LeScanFilter forServiceData(String serviceDataUuid)
+	{
+		return new LeScanFilter(null, serviceDataUuid, ScanRecordParser.NOT_PRESENT, null, null);
+	}
+
+	/**
+	 * Create a filter matching all the criteria of this filter and advertising service data for the given service.
+	 *
+	 * @param serviceDataUuid - service UUID
+	 * @return the new filter
+	 */
+	public LeScanFilter withServiceData(String serviceDataUuid)
+	{
+		return new LeScanFilter(this.serviceUuid, serviceDataUuid, this.manufacturerId, this.addressPrefix, this.namePrefix);
+	}
+
+	/**
+	 * @param manufacturerId - Bluetooth SIG company identifier
+	 * @return a filter matching devices advertising manufacturer specific data for the company
+	 */
+	public static LeScanFilter forManufacturerId(int manufacturerId)
+	{
+		return new LeScanFilter(null, manufacturerId, null, null);
+	}
+
+	/**
+	 * @param addressPrefix - device address prefix, e.g. the OUI "00:1C:05"
+	 * @return a filter matching devices whose address starts with the prefix
+	 */
+	public static LeScanFilter forAddressPrefix(String addressPrefix)
+	{
+		return new LeScanFilter(null, ScanRecordParser.NOT_PRESENT, addressPrefix, null);
+	}
+
+	/**
+	 * @param namePrefix - advertised local name prefix
+	 * @return a filter matching devices whose advertised local name starts with the prefix
+	 */
+	public static LeScanFilter forNamePrefix(String namePrefix)
+	{
+		return new LeScanFilter(null, ScanRecordParser.NOT_PRESENT, null, namePrefix);
+	}
+
+	/**
+	 * Check if the scan result matches this filter. The cheapest criteria are evaluated first.
+	 *
+	 * @param device - the device the advertisement was received from
+	 * @param parser - parser already reset to the scan record of the advertisement
+	 * @return true if all the criteria match
+	 */
+	public boolean matches(BluetoothDevice device, ScanRecordParser parser)
+	{
+		if (this.addressPrefix != null)
+		{
+			String address = device.getAddress();
+			if (address == null || !address.startsWith(this.addressPrefix))
+			{
+				return false;
+			}
+		}
+
+		if (this.manufacturerId != ScanRecordParser.NOT_PRESENT && !parser.findManufacturerData(this.manufacturerId))
+		{
+			return false;
+		}
+
+		if (this.namePrefixBytes != null && !parser.localNameStartsWith(this.namePrefixBytes))
+		{
+			return false;
+		}
+
+		if (this.serviceUuid != null && !parser.hasServiceUuid(this.serviceUuidMsb, this.serviceUuidLsb))
+		{
+			return false;
+		}
+
+		if (this.serviceDataUuid != null && !parser.findServiceData(this.serviceDataUuidMsb, this.serviceDataUuidLsb))
+		{
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Check if the scan result matches any of the filters.
+	 *
+	 * @param filters - filters to evaluate, an empty array matches everything
+	 * @param device - the device the advertisement was received from
+	 * @param scanRecord - the advertisement data
+	 * @param parser - parser used to walk the scan record
+	 * @return true if the scan result should be processed
+	 */
+	static boolean matchesAny(LeScanFilter[] filters, BluetoothDevice device, byte[] scanRecord, ScanRecordParser parser)
+	{
+		if (filters.length == 0)
+		{
+			return true;
+		}
+
+		parser.reset(scanRecord);
+		for (LeScanFilter filter : filters)
+		{
+			if (filter.matches(device, parser))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public String getServiceUuid()
+	{
+		return serviceUuid;
+	}
+
+	public String getServiceDataUuid()
+	{
+		return serviceDataUuid;
+	}
+
+	public int getManufacturerId()
+	{
+		return manufacturerId;
+	}
+
+	public String getAddressPrefix()
+	{
+		return addressPrefix;
+	}
+
+	public String getNamePrefix()
+	{
+		return namePrefix;
+	}
+
+	@Override
+	public String toString()
+	{
+		return "LeScanFilter{" +
+				"serviceUuid=" + serviceUuid +
+				", serviceDataUuid=" + serviceDataUuid +
+				", manufacturerId=" + (manufacturerId == ScanRecordParser.NOT_PRESENT ? "none" : String.format(Locale.US, "0x%04X", manufacturerId)) +
+				", addressPrefix=" + addressPrefix +
+				", namePrefix=" + namePrefix +
+				'}';
+	}
+}
@@ -0,0 +1,453 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Duty cycled Bluetooth LE scan scheduler.
+ * <p>
+ * Rather than scanning continuously, the scheduler runs an LE scan for a scan window at the start of every scan
+ * interval. The interval is backed off (up to the maximum interval) while no new devices are seen and reset as soon as a
+ * new device is found. A burst of continuous scanning can be requested when a measurement is expected, and classic
+ * discovery can be interleaved in the gaps between LE windows so that the two do not contend for the radio.
+ * <p>
+ * The scheduler is a state machine driven by {@link #tick()}. When constructed with a {@link Handler} it schedules its
+ * own ticks, otherwise the caller is responsible for calling {@link #tick()} at {@link #getNextTickTime()}, which together
+ * with a custom {@link Clock} allows the scheduling policy to be tested deterministically. The scheduler does not log,
+ * cycles are reported to the {@link CycleListener} instead.
+ *
+ * @see LocalBluetoothManager#getLeScanScheduler()
+ */
+public class LeScanScheduler
+{
+	/**
+	 * Monotonic time source in milliseconds.
+	 */
+	public interface Clock
+	{
+		long now();
+	}
+
+	/**
+	 * Controls the scanning hardware on behalf of the scheduler.
+	 */
+	public interface ScanController
+	{
+		void setLeScanEnabled(boolean enable);
+
+		void setClassicDiscoveryEnabled(boolean enable);
+	}
+
+	/**
+	 * Notified when an LE scan cycle completes, on the thread calling {@link #tick()}.
+	 */
+	public interface CycleListener
+	{
+		/**
+		 * @param cycleCount - number of cycles completed since the scheduler was started
+		 * @param nextInterval - scan interval in milliseconds applied to the next cycle
+		 * @param leScanDutyCycle - fraction of time the LE scan has been enabled since the scheduler was started
+		 */
+		void onCycleComplete(int cycleCount, long nextInterval, float leScanDutyCycle);
+	}
+
+	/** Clock based on {@link SystemClock#elapsedRealtime()} */
+	public static final Clock SYSTEM_CLOCK = new Clock()
+	{
+		@Override
+		public long now()
+		{
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	public static final long DEFAULT_SCAN_WINDOW = 4000;
+	public static final long DEFAULT_SCAN_INTERVAL = 10000;
+	public static final long DEFAULT_MAX_SCAN_INTERVAL = 60000;
+	public static final float DEFAULT_BACKOFF_FACTOR = 2f;
+	/** Duration of a standard classic inquiry */
+	public static final long DEFAULT_CLASSIC_DISCOVERY_DURATION = 12000;
+	/** Period after which a device that has not been seen is considered new again */
+	public static final long DEFAULT_FORGET_DEVICE_PERIOD = 300000;
+
+	private static final int STATE_STOPPED = 0;
+	private static final int STATE_LE_WINDOW = 1;
+	private static final int STATE_LE_BURST = 2;
+	private static final int STATE_CLASSIC = 3;
+	private static final int STATE_IDLE = 4;
+
+	private final Clock clock;
+	private final ScanController scanController;
+	private final Handler handler;
+	private CycleListener cycleListener = null;
+	private final Runnable tickRunnable = new Runnable()
+	{
+		@Override
+		public void run()
+		{
+			tick();
+		}
+	};
+
+	private long scanWindow = DEFAULT_SCAN_WINDOW;
+	private long scanInterval = DEFAULT_SCAN_INTERVAL;
+	private long maxScanInterval = DEFAULT_MAX_SCAN_INTERVAL;
+	private float backoffFactor = DEFAULT_BACKOFF_FACTOR;
+	private int classicDiscoveryCycles = 0;
+	private long classicDiscoveryDuration = DEFAULT_CLASSIC_DISCOVERY_DURATION;
+	private long forgetDevicePeriod = DEFAULT_FORGET_DEVICE_PERIOD;
+
+	private final HashMap<String, Long> knownDevices = new HashMap<>();
+	private int state = STATE_STOPPED;
+	private long currentInterval;
+	private long cycleStart;
+	private long burstEnd;
+	private long nextTickTime = -1;
+	private int cycleCount;
+	private boolean newDeviceInCycle;
+
+	private long startTime;
+	private long leScanOnTime;
+	private long leScanOnSince = -1;
+
+	/**
+	 * @param clock - time source
+	 * @param scanController - controls the scanning hardware
+	 * @param handler - handler used to schedule ticks, or null if {@link #tick()} is driven by the caller
+	 */
+	public LeScanScheduler(Clock clock, ScanController scanController, Handler handler)
+	{
+		if (clock == null || scanController == null)
+		{
+			throw new IllegalArgumentException("clock and scanController cannot be null");
+		}
+		this.clock = clock;
+		this.scanController = scanController;
+		this.handler = handler;
+	}
+
+	/**
+	 * Start duty cycled scanning, beginning with an LE scan window.
+	 */
+	public synchronized void start()
+	{
+		if (this.state != STATE_STOPPED)
+		{
+			return;
+		}
+
+		long now = this.clock.now();
+		this.state = STATE_IDLE;
+		this.currentInterval = this.scanInterval;
+		this.cycleCount = 0;
+		this.startTime = now;
+		this.leScanOnTime = 0;
+		this.cycleStart = now;
+		reschedule(now);
+	}
+
+	/**
+	 * Stop scanning and cancel all scheduled windows.
+	 */
+	public synchronized void stop()
+	{
+		if (this.state == STATE_STOPPED)
+		{
+			return;
+		}
+
+		if (this.state == STATE_CLASSIC)
+		{
+			this.scanController.setClassicDiscoveryEnabled(false);
+		}
+		setLeScanEnabled(false, this.clock.now());
+
+		this.state = STATE_STOPPED;
+		this.nextTickTime = -1;
+		if (this.handler != null)
+		{
+			this.handler.removeCallbacks(this.tickRunnable);
+		}
+	}
+
+	public synchronized boolean isRunning()
+	{
+		return this.state != STATE_STOPPED;
+	}
+
+	/**
+	 * Scan continuously for the given duration, e.g. when a measurement is expected.
+	 *
+	 * @param duration - burst duration in milliseconds
+	 */
+	public synchronized void requestBurst(long duration)
+	{
+		if (this.state == STATE_STOPPED)
+		{
+			return;
+		}
+
+		long now = this.clock.now();
+		this.burstEnd = Math.max(this.burstEnd, now + duration);
+		if (this.state != STATE_LE_BURST)
+		{
+			reschedule(now);
+		}
+	}
+
+	/**
+	 * Notify the scheduler that a device has been found. Finding a device that has not been seen recently resets the scan
+	 * interval to its base value.
+	 *
+	 * @param address - device address
+	 */
+	public synchronized void onDeviceFound(String address)
+	{
+		if (this.state == STATE_STOPPED)
+		{
+			return;
+		}
+
+		long now = this.clock.now();
+		Long lastSeen = this.knownDevices.put(address, now);
+		if (lastSeen == null || now - lastSeen > this.forgetDevicePeriod)
+		{
+			this.newDeviceInCycle = true;
+		}
+	}
+
+	/**
+	 * Advance the state machine. Must be called at {@link #getNextTickTime()} when the scheduler has no handler.
+	 *
+	 * @return delay in milliseconds until the next tick, or -1 if the scheduler is stopped
+	 */
+	public synchronized long tick()
+	{
+		if (this.state == STATE_STOPPED)
+		{
+			return -1;
+		}
+
+		long now = this.clock.now();
+		long delay;
+
+		if (now < this.burstEnd)
+		{
+			if (this.state == STATE_CLASSIC)
+			{
+				this.scanController.setClassicDiscoveryEnabled(false);
+			}
+			setLeScanEnabled(true, now);
+			this.state = STATE_LE_BURST;
+			delay = this.burstEnd - now;
+		}
+		else
+		{
+			switch (this.state)
+			{
+				case STATE_LE_BURST:
+					// A burst is expected to find the device, so resume at the base interval as if a window had just completed
+					this.newDeviceInCycle = true;
+					this.cycleStart = now - this.scanWindow;
+					// fall through
+				case STATE_LE_WINDOW:
+				{
+					setLeScanEnabled(false, now);
+					endCycle(now);
+
+					if (this.classicDiscoveryCycles > 0 && this.cycleCount % this.classicDiscoveryCycles == 0)
+					{
+						this.scanController.setClassicDiscoveryEnabled(true);
+						this.state = STATE_CLASSIC;
+						delay = this.classicDiscoveryDuration;
+					}
+					else
+					{
+						this.state = STATE_IDLE;
+						delay = Math.max(0, this.cycleStart + this.currentInterval - now);
+					}
+					break;
+				}
+				case STATE_CLASSIC:
+				{
+					this.scanController.setClassicDiscoveryEnabled(false);
+					this.state = STATE_IDLE;
+					delay = Math.max(0, this.cycleStart + this.currentInterval - now);
+					break;
+				}
+				case STATE_IDLE:
+				default:
+				{
+					this.cycleStart = now;
+					setLeScanEnabled(true, now);
+					this.state = STATE_LE_WINDOW;
+					delay = this.scanWindow;
+					break;
+				}
+			}
+		}
+
+		scheduleTick(now, delay);
+		return delay;
+	}
+
+	/**
+	 * @return time of the next tick according to the {@link Clock}, or -1 if stopped
+	 */
+	public synchronized long getNextTickTime()
+	{
+		return nextTickTime;
+	}
+
+	/**
+	 * @return the current (possibly backed off) scan interval in milliseconds
+	 */
+	public synchronized long getCurrentScanInterval()
+	{
+		return currentInterval;
+	}
+
+	/**
+	 * @return fraction of time the LE scan has been enabled since the scheduler was started
+	 */
+	public synchronized float getLeScanDutyCycle()
+	{
+		long now = this.clock.now();
+		long elapsed = now - this.startTime;
+		long onTime = this.leScanOnTime + (this.leScanOnSince >= 0 ? now - this.leScanOnSince : 0);
+		return elapsed <= 0 ? 0 : (float) onTime / elapsed;
+	}
+
+	/**
+	 * Set the LE scan window and base interval.
+	 *
+	 * @param scanWindow - duration of each LE scan in milliseconds
+	 * @param scanInterval - period between the start of two LE scans in milliseconds
+	 * @param maxScanInterval - longest period the interval is backed off to when no new devices are seen
+	 * @throws IllegalArgumentException if the window is not positive or the intervals are shorter than the window
+	 */
+	public synchronized void setScanTiming(long scanWindow, long scanInterval, long maxScanInterval) throws IllegalArgumentException
+	{
+		if (scanWindow <= 0 || scanInterval < scanWindow || maxScanInterval < scanInterval)
+		{
+			throw new IllegalArgumentException("Expected 0 < scanWindow <= scanInterval <= maxScanInterval");
+		}
+		this.scanWindow = scanWindow;
+		this.scanInterval = scanInterval;
+		this.maxScanInterval = maxScanInterval;
+		this.currentInterval = Math.min(Math.max(this.currentInterval, scanInterval), maxScanInterval);
+	}
+
+	/**
+	 * @param backoffFactor - factor the scan interval is multiplied by after each cycle without new devices (1 disables back off)
+	 */
+	public synchronized void setBackoffFactor(float backoffFactor)
+	{
+		if (backoffFactor < 1)
+		{
+			throw new IllegalArgumentException("backoffFactor cannot be less than 1");
+		}
+		this.backoffFactor = backoffFactor;
+	}
+
+	/**
+	 * Interleave classic discovery after every given number of LE scan cycles.
+	 *
+	 * @param cycles - number of LE cycles between classic discoveries, 0 to disable classic discovery
+	 * @param duration - duration of the classic discovery in milliseconds
+	 */
+	public synchronized void setClassicDiscoveryInterleave(int cycles, long duration)
+	{
+		this.classicDiscoveryCycles = Math.max(0, cycles);
+		this.classicDiscoveryDuration = duration;
+	}
+
+	/**
+	 * @param forgetDevicePeriod - period in milliseconds after which a device that has not been seen is considered new again
+	 */
+	public synchronized void setForgetDevicePeriod(long forgetDevicePeriod)
+	{
+		this.forgetDevicePeriod = forgetDevicePeriod;
+	}
+
+	/**
+	 * @param cycleListener - listener notified of completed cycles, or null
+	 */
+	public synchronized void setCycleListener(CycleListener cycleListener)
+	{
+		this.cycleListener = cycleListener;
+	}
+
+	private void endCycle(long now)
+	{
+		this.cycleCount++;
+		if (this.newDeviceInCycle)
+		{
+			this.currentInterval = this.scanInterval;
+		}
+		else
+		{
+			this.currentInterval = Math.min(this.maxScanInterval, (long) (this.currentInterval * this.backoffFactor));
+		}
+		this.newDeviceInCycle = false;
+
+		for (Iterator<Map.Entry<String, Long>> iterator = this.knownDevices.entrySet().iterator(); iterator.hasNext(); )
+		{
+			if (now - iterator.next().getValue() > this.forgetDevicePeriod)
+			{
+				iterator.remove();
+			}
+		}
+
+		if (this.cycleListener != null)
+		{
+			this.cycleListener.onCycleComplete(this.cycleCount, this.currentInterval, getLeScanDutyCycle());
+		}
+	}
+
+	private void setLeScanEnabled(boolean enable, long now)
+	{
+		if (enable && this.leScanOnSince < 0)
+		{
+			this.leScanOnSince = now;
+			this.scanController.setLeScanEnabled(true);
+		}
+		else if (!enable && this.leScanOnSince >= 0)
+		{
+			this.leScanOnTime += now - this.leScanOnSince;
+			this.leScanOnSince = -1;
+			this.scanController.setLeScanEnabled(false);
+		}
+	}
+
+	private void reschedule(long now)
+	{
+		if (this.handler != null)
+		{
+			this.handler.removeCallbacks(this.tickRunnable);
+			this.handler.post(this.tickRunnable);
+		}
+		this.nextTickTime = now;
+	}
+
+	private void scheduleTick(long now, long delay)
+	{
+		this.nextTickTime = now + delay;
+		if (this.handler != null)
+		{
+			this.handler.removeCallbacks(this.tickRunnable);
+			this.handler.postDelayed(this.tickRunnable, delay);
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+/**
+ * A subscription to the shared Bluetooth LE scan.
+ * <p>
+ * All open sessions share a single scan on the Bluetooth adapter, which is started when the first session is opened
+ * and stopped when the last session is closed. Each session receives the scan results matching its own filters through
+ * its callback.
+ *
+ * @see LocalBluetoothManager#openLeScanSession(LeScanCallbackInterface, long, LeScanFilter...)
+ */
+public class LeScanSession
+{
+	private final LocalBluetoothManager localBluetoothManager;
+	private final LeScanCallbackInterface callback;
+	private final LeScanFilter[] filters;
+	private final boolean enrolledOnly;
+	private volatile boolean open = true;
+
+	LeScanSession(LocalBluetoothManager localBluetoothManager, LeScanCallbackInterface callback, LeScanFilter[] filters, boolean enrolledOnly)
+	{
+		this.localBluetoothManager = localBluetoothManager;
+		this.callback = callback;
+		this.filters = filters == null ? new LeScanFilter[0] : filters.clone();
+		this.enrolledOnly = enrolledOnly;
+	}
+
+	/**
+	 * Close this session. The shared scan is stopped if this was the last open session.
+	 */
+	public void close()
+	{
+		if (this.open)
+		{
+			this.open = false;
+			this.localBluetoothManager.closeLeScanSession(this);
+		}
+	}
+
+	public boolean isOpen()
+	{
+		return open;
+	}
+
+	public LeScanCallbackInterface getCallback()
+	{
+		return callback;
+	}
+
+	/**
+	 * @return the filters for this session, an empty array if the session receives all scan results. This array must not be modified.
+	 */
+	LeScanFilter[] getFilters()
+	{
+		return filters;
+	}
+
+	/**
+	 * @return true if the session only receives the scan results accepted by the {@link LeScanAllowlist}
+	 */
+	boolean isEnrolledOnly()
+	{
+		return enrolledOnly;
+	}
+}
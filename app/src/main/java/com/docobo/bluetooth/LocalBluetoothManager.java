@@ -10,14 +10,14 @@ package com.docobo.bluetooth;
 import static android.bluetooth.BluetoothAdapter.STATE_OFF;
 import static android.bluetooth.BluetoothAdapter.STATE_ON;
 
-import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
-import android.annotation.SuppressLint;
 import android.annotation.TargetApi;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -29,9 +29,10 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.*;
 
-import com.docobo.device.PlatformInfo;
 import com.docobo.logger.Logger;
 
 public class LocalBluetoothManager
@@ -164,18 +165,10 @@ public class LocalBluetoothManager
     protected final static String ACTION_GATT_NOT_SUPPORTED = "com.android.server.bluetooth.BluetoothGattManagerService.ACTION_GATT_NOT_SUPPORTED";
 	// private final int MINIMUM_BLUETOOTH_SCAN_PERIOD = 30000;
 
-	private Method setScanModeAndDurationMethod = null;
-	private Method setScanModeMethod = null;
-	private Method getDiscoverableTimeoutMethod = null;
-	private Method setDiscoverableTimeoutMethod = null;
-	private Method hh3GATTRestartMethod = null; // TODO - figure out how to avoid the restart and report a meaningful failure for non HH3 devices
-	private Method hh3IsGATTReadyMethod = null; // TODO - Report a GATT ready success result if bluetooth is On as this is some weird thing in the HH3 OS ONLY
-	private Method hh3Listen = null; // BluetoothGatt listen method which should only be called on HH3 devices.
-	
-	private Method startLeScanMethod = null;
-	private Method stopLeScanMethod = null;
-	// private Method startLeScanForProfilesMethod = null; // Not supported on HH3 devices as of FW 7.47
-	private Method connectBluetoothGattMethod = null;
+	// TODO - HH3_GATT_RESTART: figure out how to avoid the restart and report a meaningful failure for non HH3 devices
+	// TODO - HH3_IS_GATT_READY: Report a GATT ready success result if bluetooth is On as this is some weird thing in the HH3 OS ONLY
+	// startLeScanForProfiles is not supported on HH3 devices as of FW 7.47
+	private final BluetoothCapabilities capabilities;
 	
 	private final boolean isDocoboDevice;
 	private boolean bluetooth40Supported = false;
@@ -185,33 +178,145 @@ public class LocalBluetoothManager
 
 	private BluetoothEventRedirector bluetoothEventRedirector;
 	private Handler handler = null;
+	private Handler eventHandler = null;
+	private StateCoalescer stateCoalescer = null;
+	private LeScanScheduler leScanScheduler = null;
+	private BluetoothDeviceRegistry deviceRegistry = null;
+	private DeviceSignatureClassifier deviceClassifier = null;
+	private StripedExecutor eventExecutor = null;
+
+	private final Object leScanSessionsLock = new Object();
+	private volatile LeScanSession[] leScanSessions = new LeScanSession[0];
+	private final HashMap<LeScanCallbackInterface, LeScanSession> callbackLeScanSessions = new HashMap<>();
+	private SharedLeScanCallback sharedLeScanCallback = null;
+	private LeScanBackend leScanBackend = null;
+	// Filters the running scan was started with, null if unfiltered
+	private LeScanFilter[] leScanBackendFilters = null;
 
 	/*
 	 * Single instance of LocalBluetoothManager
 	 */
-	private static LocalBluetoothManager instance;
+	private static volatile LocalBluetoothManager instance;
+
+	/**
+	 * Callback receiving the LocalBluetoothManager instance created by {@link #getInstanceAsync(Context, InstanceCallback)}
+	 */
+	public interface InstanceCallback
+	{
+		/**
+		 * Called on the main thread.
+		 *
+		 * @param localBluetoothManager - the instance or null if Bluetooth is not supported
+		 */
+		void onInstanceReady(LocalBluetoothManager localBluetoothManager);
+	}
+
+	/** Maximum time in milliseconds to wait for the main thread to obtain the adapter */
+	private static final long GET_ADAPTER_TIMEOUT = 5000;
 
 	/**
 	 * Get LocalBluetoothManager instance
 	 */
 	public static LocalBluetoothManager getInstance(Context context)
 	{
-		if (instance == null)
+		LocalBluetoothManager localBluetoothManager = instance;
+		if (localBluetoothManager != null)
+		{
+			return localBluetoothManager;
+		}
+
+		// Obtained without the class lock, as it may wait for the main thread which may itself be waiting for the lock
+		BluetoothAdapter bluetoothAdapter = getBluetoothAdapter(context);
+		synchronized (LocalBluetoothManager.class)
 		{
-			LocalBluetoothManager blManager = new LocalBluetoothManager(context);
-			if (blManager.isBluetoothSupported())
+			if (instance == null)
 			{
-				instance = blManager;
+				createInstance(context, bluetoothAdapter);
 			}
+			return instance;
 		}
+	}
 
+	/**
+	 * Get the LocalBluetoothManager instance if it has already been created, without creating it
+	 *
+	 * @return the instance or null
+	 */
+	static LocalBluetoothManager peekInstance()
+	{
 		return instance;
 	}
 
+	/**
+	 * Get the LocalBluetoothManager instance without blocking the calling thread. The adapter is obtained on the main
+	 * thread and the instance is then created on a worker thread.
+	 *
+	 * @param context
+	 * @param callback - callback receiving the instance on the main thread
+	 */
+	public static void getInstanceAsync(Context context, final InstanceCallback callback)
+	{
+		final Context appContext = context.getApplicationContext();
+		final Handler mainHandler = new Handler(Looper.getMainLooper());
+		mainHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				// Never blocks the main thread on the class lock, held while an instance is created
+				LocalBluetoothManager localBluetoothManager = instance;
+				if (localBluetoothManager != null)
+				{
+					callback.onInstanceReady(localBluetoothManager);
+					return;
+				}
+
+				final BluetoothAdapter bluetoothAdapter = getBluetoothAdapterInLooper(appContext);
+				new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						final LocalBluetoothManager localBluetoothManager;
+						synchronized (LocalBluetoothManager.class)
+						{
+							if (instance == null)
+							{
+								createInstance(appContext, bluetoothAdapter);
+							}
+							localBluetoothManager = instance;
+						}
+
+						mainHandler.post(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								callback.onInstanceReady(localBluetoothManager);
+							}
+						});
+					}
+				}, "LocalBluetoothManagerInit").start();
+			}
+		});
+	}
+
+	/*
+	 * Must be called holding the class lock
+	 */
+	private static void createInstance(Context context, BluetoothAdapter bluetoothAdapter)
+	{
+		LocalBluetoothManager blManager = new LocalBluetoothManager(context, bluetoothAdapter);
+		if (blManager.isBluetoothSupported())
+		{
+			instance = blManager;
+		}
+	}
+
 	/**
 	 * Cleanup the local bluetooth manager instance
 	 */
-	public static void cleanupInstance()
+	public static synchronized void cleanupInstance()
 	{
 		if (instance != null)
 		{
@@ -221,11 +326,12 @@ public class LocalBluetoothManager
 	}
 
 	@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
-	private LocalBluetoothManager(Context context)
+	private LocalBluetoothManager(Context context, BluetoothAdapter bluetoothAdapter)
 	{
-		this.isDocoboDevice = PlatformInfo.isDocoboDevice();
+		this.capabilities = BluetoothCapabilities.getInstance(context);
+		this.isDocoboDevice = this.capabilities.isDocoboDevice();
 
-		this.bluetoothAdapter = getBluetoothAdapter(context);
+		this.bluetoothAdapter = bluetoothAdapter;
 		this.bluetoothManagerObject = getBluetoothManagerObject(context);
 		this.context = context.getApplicationContext();
 
@@ -240,32 +346,80 @@ public class LocalBluetoothManager
 		handlerThread.start();
 		this.handler = new Handler(handlerThread.getLooper());
 
-		// Initialise all reflection method objects
-		this.setScanModeMethod = getMethod(TAG, BluetoothAdapter.class, "setScanMode", int.class);
-		this.setScanModeAndDurationMethod = getMethod(TAG, BluetoothAdapter.class, "setScanMode", int.class, int.class);
-
-		this.setDiscoverableTimeoutMethod = getMethod(TAG, BluetoothAdapter.class, "setDiscoverableTimeout", int.class);
-		this.getDiscoverableTimeoutMethod = getMethod(TAG, BluetoothAdapter.class, "getDiscoverableTimeout");
+		// Broadcasts are processed and events dispatched on their own thread, keeping them off the main thread
+		HandlerThread eventThread = new HandlerThread("BluetoothEventThread", Process.THREAD_PRIORITY_DEFAULT);
+		eventThread.start();
+		this.eventHandler = new Handler(eventThread.getLooper());
+		this.eventBus.setEventHandler(this.eventHandler);
+		this.stateCoalescer = new StateCoalescer(this.eventHandler, new StateCoalescer.Callback()
+		{
+			@Override
+			public void onStateSettled(int domain, BluetoothDevice device, int state)
+			{
+				// The snapshot follows the coalesced states, so it is never replayed ahead of a change still held
+				switch (domain)
+				{
+					case StateCoalescer.DOMAIN_ADAPTER:
+						updateAdapterState(state);
+						break;
+					case StateCoalescer.DOMAIN_GATT_SERVICE:
+						updateGattReady(state != 0);
+						break;
+					case StateCoalescer.DOMAIN_CONNECTION:
+						updateConnectionState(device, state);
+						break;
+				}
+			}
 
-		this.setDiscoverableTimeoutMethod = getMethod(TAG, BluetoothAdapter.class, "setDiscoverableTimeout", int.class);
-		this.getDiscoverableTimeoutMethod = getMethod(TAG, BluetoothAdapter.class, "getDiscoverableTimeout");
+			@Override
+			public void onStateChanged(int domain, BluetoothDevice device, int state)
+			{
+				switch (domain)
+				{
+					case StateCoalescer.DOMAIN_ADAPTER:
+						eventBus.dispatchBluetoothStateChanged(state == STATE_ON);
+						break;
+					case StateCoalescer.DOMAIN_GATT_SERVICE:
+						eventBus.dispatchGattServiceStateChanged(state != 0);
+						break;
+					case StateCoalescer.DOMAIN_CONNECTION:
+						eventBus.dispatchConnectionStateChanged(device, state);
+						break;
+				}
+			}
+		});
+		this.leScanScheduler = new LeScanScheduler(LeScanScheduler.SYSTEM_CLOCK, new SchedulerScanController(), this.handler);
+		this.leScanScheduler.setCycleListener(new LeScanScheduler.CycleListener()
+		{
+			@Override
+			public void onCycleComplete(int cycleCount, long nextInterval, float leScanDutyCycle)
+			{
+				Logger.df(TAG, 15, "Scan cycle %d complete, next interval %dms (LE duty cycle %.2f)", cycleCount, nextInterval, leScanDutyCycle);
+			}
+		});
+		this.eventExecutor = new StripedExecutor("BluetoothEvents", StripedExecutor.getDefaultLaneCount());
 
-		if (PlatformInfo.isDocoboDevice() || Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+		// Load the known devices off the calling thread, attributes are requested from the devices until then
+		this.deviceRegistry = new BluetoothDeviceRegistry(this.context.getFilesDir(), this.handler);
+		this.handler.post(new Runnable()
 		{
-			this.connectBluetoothGattMethod = getMethod(TAG, BluetoothDevice.class, "connectGatt", Context.class, boolean.class, BluetoothGattCallback.class);
-	
-			this.startLeScanMethod = getMethod(TAG, BluetoothAdapter.class, "startLeScan", LeScanCallbackInterface.getInterface());
-			this.stopLeScanMethod = getMethod(TAG, BluetoothAdapter.class, "stopLeScan", LeScanCallbackInterface.getInterface());
-		}
-		
-		if (PlatformInfo.isDocoboDevice())
+			@Override
+			public void run()
+			{
+				deviceRegistry.load();
+			}
+		});
+		this.deviceClassifier = new DeviceSignatureClassifier(this.deviceRegistry, DeviceSignatureClassifier.DEFAULT_SIGNATURES);
+
+		// Methods accessed by reflection are resolved by the capabilities when first used
+		this.leScanBackend = LeScanBackend.create(this.bluetoothAdapter, this.capabilities);
+		if (this.leScanBackend != null)
 		{
-			this.hh3GATTRestartMethod = getMethod(TAG, BluetoothAdapter.class, "GATTRestart");
-			this.hh3IsGATTReadyMethod = getMethod(TAG, BluetoothAdapter.class, "isGATTReady");
-			this.hh3Listen = getMethod(TAG, BluetoothGatt.class, "listen", boolean.class, int.class);
+			Logger.df(TAG, 15, "Using %s for Bluetooth LE scanning", this.leScanBackend.getName());
 		}
 
 		validateBluetooth40Supported();
+		this.sharedLeScanCallback = new SharedLeScanCallback();
 
 		// Start the event detector and redirector
 		this.bluetoothEventRedirector = new BluetoothEventRedirector(this);
@@ -280,16 +434,35 @@ public class LocalBluetoothManager
 	 */
 	private void cleanup()
 	{
+		this.leScanScheduler.stop();
+		for (LeScanSession session : this.leScanSessions)
+		{
+			session.close();
+		}
+
 		this.bluetoothAdapter = null;
 		this.bluetoothManagerObject = null;
 
 		this.bluetoothEventRedirector.stopRedirector();
 		this.bluetoothEventRedirector = null;
 
-		this.bluetoothEventListeners.clear();
+		this.eventBus.clear();
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(BluetoothStateSnapshot.EMPTY);
+		}
 		
+		this.handler.removeCallbacksAndMessages(null);
+		this.deviceRegistry.save();
 		this.handler.getLooper().quit();
 		this.handler = null;
+
+		this.stateCoalescer.clear();
+		this.eventHandler.removeCallbacksAndMessages(null);
+		this.eventHandler.getLooper().quit();
+		this.eventHandler = null;
+
+		this.eventExecutor.shutdown();
 	}
 
 	/**
@@ -301,22 +474,22 @@ public class LocalBluetoothManager
 
 		if (this.isDocoboDevice)
 		{
-			if (this.hh3GATTRestartMethod == null)
+			if (!this.capabilities.hasMethod(BluetoothCapabilities.HH3_GATT_RESTART))
 			{
 				supported = false;
 			}
 
-			if (this.hh3IsGATTReadyMethod == null)
+			if (!this.capabilities.hasMethod(BluetoothCapabilities.HH3_IS_GATT_READY))
 			{
 				supported = false;
 			}
 			
-			if (this.hh3Listen == null)
+			if (!this.capabilities.hasMethod(BluetoothCapabilities.HH3_LISTEN))
 			{
 				supported = false;
 			}
 		}
-		else if (isBluetoothLESupported(this.context))
+		else if (this.capabilities.isBluetoothLESupported())
 		{
 			if (this.bluetoothManagerObject == null)
 			{
@@ -324,11 +497,7 @@ public class LocalBluetoothManager
 			}
 		}
 
-		if (this.startLeScanMethod == null)
-		{
-			supported = false;
-		}
-		if (this.stopLeScanMethod == null)
+		if (this.leScanBackend == null)
 		{
 			supported = false;
 		}
@@ -378,6 +547,60 @@ public class LocalBluetoothManager
 		return this.bluetoothAdapter;
 	}
 
+	/**
+	 * Get the handler running on the Bluetooth manager's worker thread
+	 *
+	 * @return
+	 */
+	Handler getHandler()
+	{
+		return handler;
+	}
+
+	/**
+	 * Get the handler running on the Bluetooth event thread, which processes the Bluetooth broadcasts and dispatches
+	 * the events to the listeners
+	 *
+	 * @return
+	 */
+	Handler getEventHandler()
+	{
+		return eventHandler;
+	}
+
+	/**
+	 * Get the registry caching the attributes of known devices
+	 *
+	 * @return
+	 */
+	public BluetoothDeviceRegistry getDeviceRegistry()
+	{
+		return deviceRegistry;
+	}
+
+	/**
+	 * Get the executor processing the Bluetooth LE scan results and GATT notifications off the binder threads.
+	 * <p>
+	 * Work is hashed onto its lanes by device address, so the events of a device are processed in order while different
+	 * devices are processed in parallel.
+	 *
+	 * @return
+	 */
+	public StripedExecutor getEventExecutor()
+	{
+		return eventExecutor;
+	}
+
+	/**
+	 * Get the classifier resolving device types from their advertisements
+	 *
+	 * @return
+	 */
+	public DeviceSignatureClassifier getDeviceClassifier()
+	{
+		return deviceClassifier;
+	}
+
 	/**
 	 * Get the Application context
 	 *
@@ -408,11 +631,12 @@ public class LocalBluetoothManager
 	{
 		boolean result = false;
 
-		if (this.setScanModeMethod != null)
+		Method method = this.capabilities.getMethod(BluetoothCapabilities.SET_SCAN_MODE);
+		if (method != null)
 		{
 			try
 			{
-				result = (Boolean) this.setScanModeMethod.invoke(this.bluetoothAdapter, scanMode);
+				result = (Boolean) method.invoke(this.bluetoothAdapter, scanMode);
 			} catch (Exception e)
 			{
 				Logger.ex(TAG, "Error invoking setScanMode(int)", e);
@@ -451,11 +675,12 @@ public class LocalBluetoothManager
 	{
 		boolean result = false;
 
-		if (this.setScanModeAndDurationMethod != null)
+		Method method = this.capabilities.getMethod(BluetoothCapabilities.SET_SCAN_MODE_AND_DURATION);
+		if (method != null)
 		{
 			try
 			{
-				result = (Boolean) this.setScanModeAndDurationMethod.invoke(this.bluetoothAdapter, scanMode, duration);
+				result = (Boolean) method.invoke(this.bluetoothAdapter, scanMode, duration);
 			} catch (Exception e)
 			{
 				Logger.ex(TAG, "Error invoking setScanMode(int, int)", e);
@@ -481,11 +706,12 @@ public class LocalBluetoothManager
 	{
 		int result = -1;
 
-		if (this.getDiscoverableTimeoutMethod != null)
+		Method method = this.capabilities.getMethod(BluetoothCapabilities.GET_DISCOVERABLE_TIMEOUT);
+		if (method != null)
 		{
 			try
 			{
-				result = (Integer) this.getDiscoverableTimeoutMethod.invoke(this.bluetoothAdapter);
+				result = (Integer) method.invoke(this.bluetoothAdapter);
 			} catch (Exception e)
 			{
 				Logger.ex(TAG, "Error invoking getDiscoverableTimeout()", e);
@@ -512,13 +738,14 @@ public class LocalBluetoothManager
 	{
 		boolean result = false;
 
-		if (this.setDiscoverableTimeoutMethod != null)
+		Method method = this.capabilities.getMethod(BluetoothCapabilities.SET_DISCOVERABLE_TIMEOUT);
+		if (method != null)
 		{
 			if (this.bluetoothAdapter.getState() == STATE_ON)
 			{
 				try
 				{
-					this.setDiscoverableTimeoutMethod.invoke(this.bluetoothAdapter, timeout);
+					method.invoke(this.bluetoothAdapter, timeout);
 					result = true;
 				} catch (Exception e)
 				{
@@ -533,6 +760,9 @@ public class LocalBluetoothManager
 	/**
 	 * Starts a scan for Bluetooth LE devices.
 	 * Results of the scan are reported using the {@link LeScanCallbackInterface#onLeScan(BluetoothDevice, int, byte[])} callback.
+	 * <p>
+	 * This opens a {@link LeScanSession} without filters for the callback, so it shares the scan with any other sessions.
+	 * Calling this again with a callback that is already scanning has no effect.
 	 *
 	 * <p>
 	 * Requires {@link android.Manifest.permission#BLUETOOTH_ADMIN} permission.
@@ -540,35 +770,32 @@ public class LocalBluetoothManager
 	 *
 	 * @param mLeScanCallback
 	 * @return
+	 * @see #openLeScanSession(LeScanCallbackInterface, long, LeScanFilter...)
 	 */
 	public boolean startLeScan(LeScanCallbackInterface mLeScanCallback)
 	{
-		boolean result = false;
-
-		if (isBluetooth40Supported())
+		synchronized (this.leScanSessionsLock)
 		{
-			try
+			if (this.callbackLeScanSessions.containsKey(mLeScanCallback))
 			{
-				if (!isBluetoothLEScanStarted())
-				{
-					setBluetoothLEScanStarted(true);
-					this.startLeScanMethod.invoke(this.bluetoothAdapter, mLeScanCallback.getLeScanCallback());
+				return true;
+			}
 
-					Logger.df(TAG, 15,"BluetoothLE discorvery started");
-					dispatchBluetoothScanningStateChanged(true);
-				}
-				result = true;
-			} catch (Exception e)
+			LeScanSession session = openLeScanSession(mLeScanCallback, 0);
+			if (session == null)
 			{
-				Logger.ex(TAG, "Error invoking startLeScan", e);
+				return false;
 			}
-		}
 
-		return result;
+			this.callbackLeScanSessions.put(mLeScanCallback, session);
+			return true;
+		}
 	}
 
 	/**
 	 * Stops an ongoing Bluetooth LE device scan.
+	 * <p>
+	 * The scan on the Bluetooth adapter is only stopped once no other {@link LeScanSession}s are open.
 	 *
 	 * <p>
 	 * Requires {@link android.Manifest.permission#BLUETOOTH_ADMIN} permission.
@@ -580,28 +807,352 @@ public class LocalBluetoothManager
 	 */
 	public boolean stopLeScan(LeScanCallbackInterface mLeScanCallback)
 	{
-		boolean result = false;
+		if (!isBluetooth40Supported())
+		{
+			return false;
+		}
 
-		if (isBluetooth40Supported())
+		LeScanSession session;
+		synchronized (this.leScanSessionsLock)
 		{
-			try
+			session = this.callbackLeScanSessions.remove(mLeScanCallback);
+		}
+
+		if (session != null)
+		{
+			session.close();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Open a session on the shared Bluetooth LE scan.
+	 * <p>
+	 * The scan on the Bluetooth adapter is started when the first session is opened and stopped when the last session is
+	 * closed. Every session receives the scan results matching its filters through its own callback, in addition to the
+	 * filters registered with {@link #addLeScanFilter(LeScanFilter)} applying to the {@link BluetoothEventListener}s.
+	 *
+	 * <p>
+	 * Requires {@link android.Manifest.permission#BLUETOOTH_ADMIN} permission.
+	 * <p>
+	 *
+	 * @param callback - callback receiving the scan results for this session
+	 * @param duration - period in milliseconds after which the session is closed automatically, 0 to keep it open until {@link LeScanSession#close()}
+	 * @param filters - scan result filters for this session, none to receive all results
+	 * @return the session or null if the scan could not be started
+	 */
+	public LeScanSession openLeScanSession(@NonNull LeScanCallbackInterface callback, long duration, LeScanFilter... filters)
+	{
+		if (!isBluetooth40Supported())
+		{
+			return null;
+		}
+
+		// The allowlist applies to the results dispatched to the BluetoothEventListeners
+		BluetoothEventRedirector redirector = this.bluetoothEventRedirector;
+		boolean enrolledOnly = redirector != null && callback == redirector.getBluetoothScanCallBack();
+		final LeScanSession session = new LeScanSession(this, callback, filters, enrolledOnly);
+		synchronized (this.leScanSessionsLock)
+		{
+			LeScanSession[] previousSessions = this.leScanSessions;
+			LeScanSession[] sessions = new LeScanSession[previousSessions.length + 1];
+			System.arraycopy(previousSessions, 0, sessions, 0, previousSessions.length);
+			sessions[sessions.length - 1] = session;
+			this.leScanSessions = sessions;
+
+			if (previousSessions.length == 0)
+			{
+				if (!startSharedLeScan())
+				{
+					this.leScanSessions = previousSessions;
+					return null;
+				}
+			}
+			else if (!coversFilters(this.leScanBackendFilters, session.getFilters()) && this.leScanBackend.supportsFilters())
+			{
+				// The controller is filtering out results this session needs
+				this.leScanBackend.stop(this.sharedLeScanCallback);
+				this.leScanBackendFilters = getLeScanBackendFilters();
+				if (!this.leScanBackend.start(this.sharedLeScanCallback, this.leScanBackendFilters))
+				{
+					Logger.w(TAG, "Unable to restart Bluetooth LE scan with new filters");
+				}
+			}
+		}
+
+		if (duration > 0)
+		{
+			this.handler.postDelayed(new Runnable()
 			{
-				if (isBluetoothLEScanStarted())
+				@Override
+				public void run()
 				{
-					setBluetoothLEScanStarted(false);
-					this.stopLeScanMethod.invoke(this.bluetoothAdapter, mLeScanCallback.getLeScanCallback());
+					session.close();
+				}
+			}, duration);
+		}
 
-					Logger.df(TAG, 15,"BluetoothLE discorvery stopped");
-					dispatchBluetoothScanningStateChanged(false);
+		return session;
+	}
+
+	/**
+	 * Remove a session from the shared scan, stopping the scan if it was the last open session.
+	 *
+	 * @param session
+	 */
+	void closeLeScanSession(LeScanSession session)
+	{
+		synchronized (this.leScanSessionsLock)
+		{
+			ArrayList<LeScanSession> sessions = new ArrayList<>(this.leScanSessions.length);
+			for (LeScanSession existingSession : this.leScanSessions)
+			{
+				if (existingSession != session)
+				{
+					sessions.add(existingSession);
 				}
-				result = true;
-			} catch (Exception e)
+			}
+
+			if (sessions.size() == this.leScanSessions.length)
+			{
+				return;
+			}
+
+			this.leScanSessions = sessions.toArray(new LeScanSession[sessions.size()]);
+			if (this.callbackLeScanSessions.get(session.getCallback()) == session)
 			{
-				Logger.ex(TAG, "Error invoking stopLeScan", e);
+				this.callbackLeScanSessions.remove(session.getCallback());
+			}
+
+			if (this.leScanSessions.length == 0)
+			{
+				stopSharedLeScan();
 			}
 		}
+	}
 
-		return result;
+	/**
+	 * @return the number of open Bluetooth LE scan sessions
+	 */
+	public int getLeScanSessionCount()
+	{
+		return this.leScanSessions.length;
+	}
+
+	/**
+	 * Set the period scan results are batched by the controller before being delivered, reducing the wake ups of the
+	 * application processor while scanning at the expense of latency.
+	 * <p>
+	 * Only supported when scanning through BluetoothLeScanner on hardware supporting offloaded batching, and applies
+	 * from the next time the scan is started.
+	 *
+	 * @param reportDelay - period in milliseconds, 0 to deliver results immediately (default)
+	 */
+	public void setLeScanReportDelay(long reportDelay)
+	{
+		if (this.leScanBackend != null)
+		{
+			this.leScanBackend.setReportDelay(reportDelay);
+		}
+	}
+
+	/*
+	 * Must be called holding the leScanSessionsLock
+	 */
+	private boolean startSharedLeScan()
+	{
+		setBluetoothLEScanStarted(true);
+		this.leScanBackendFilters = getLeScanBackendFilters();
+		if (!this.leScanBackend.start(this.sharedLeScanCallback, this.leScanBackendFilters))
+		{
+			setBluetoothLEScanStarted(false);
+			return false;
+		}
+
+		Logger.df(TAG, 15,"BluetoothLE discorvery started");
+		postLeScanningChanged(true);
+		return true;
+	}
+
+	/*
+	 * Must be called holding the leScanSessionsLock
+	 */
+	private void stopSharedLeScan()
+	{
+		setBluetoothLEScanStarted(false);
+		this.leScanBackend.stop(this.sharedLeScanCallback);
+		this.leScanBackendFilters = null;
+
+		Logger.df(TAG, 15,"BluetoothLE discorvery stopped");
+		postLeScanningChanged(false);
+	}
+
+	/*
+	 * The transition is posted while holding the leScanSessionsLock, so transitions are published in order, but the
+	 * listeners are called on the event thread rather than under the lock.
+	 */
+	private void postLeScanningChanged(final boolean leScanning)
+	{
+		this.eventHandler.post(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				updateLeScanning(leScanning);
+				dispatchBluetoothScanningStateChanged(leScanning);
+			}
+		});
+	}
+
+	/**
+	 * @return the filters of all open sessions, or null if any session receives all scan results
+	 */
+	private LeScanFilter[] getLeScanBackendFilters()
+	{
+		ArrayList<LeScanFilter> filters = new ArrayList<>();
+		for (LeScanSession session : this.leScanSessions)
+		{
+			if (session.getFilters().length == 0)
+			{
+				return null;
+			}
+			Collections.addAll(filters, session.getFilters());
+		}
+		return filters.toArray(new LeScanFilter[filters.size()]);
+	}
+
+	private static boolean coversFilters(LeScanFilter[] scanFilters, LeScanFilter[] sessionFilters)
+	{
+		if (scanFilters == null)
+		{
+			return true;
+		}
+
+		if (sessionFilters.length == 0)
+		{
+			return false;
+		}
+
+		for (LeScanFilter sessionFilter : sessionFilters)
+		{
+			boolean covered = false;
+			for (int index = 0; index < scanFilters.length && !covered; index++)
+			{
+				covered = scanFilters[index] == sessionFilter;
+			}
+
+			if (!covered)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The single callback registered with the Bluetooth adapter, fanning the scan results out to the open sessions.
+	 * <p>
+	 * The sessions are matched on the binder thread, the session callbacks are then invoked on the device's lane of the
+	 * event executor.
+	 */
+	private class SharedLeScanCallback extends LeScanCallbackInterface
+	{
+		private static final int UNCHECKED = 0;
+		private static final int ENROLLED = 1;
+		private static final int NOT_ENROLLED = 2;
+
+		// Scan results are delivered serially, so the parser and delivered array can be reused
+		private final ScanRecordParser scanRecordParser = new ScanRecordParser();
+		private LeScanCallbackInterface[] deliveredCallbacks = new LeScanCallbackInterface[4];
+
+		@Override
+		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord)
+		{
+			final long receivedTime = SystemClock.elapsedRealtime();
+			LeScanSession[] sessions = leScanSessions;
+			if (deliveredCallbacks.length < sessions.length)
+			{
+				deliveredCallbacks = new LeScanCallbackInterface[sessions.length];
+			}
+
+			// Unrelated advertisements are rejected here, before anything is allocated or handed to a lane
+			int enrolled = UNCHECKED;
+			int deliveredCount = 0;
+			for (LeScanSession session : sessions)
+			{
+				if (session.isEnrolledOnly())
+				{
+					if (enrolled == UNCHECKED)
+					{
+						enrolled = leScanAllowlist.matches(device, scanRecord, scanRecordParser) ? ENROLLED : NOT_ENROLLED;
+					}
+					if (enrolled == NOT_ENROLLED)
+					{
+						continue;
+					}
+				}
+
+				if (!LeScanFilter.matchesAny(session.getFilters(), device, scanRecord, scanRecordParser))
+				{
+					continue;
+				}
+
+				// Several sessions may share a callback, each result is delivered to a callback once
+				LeScanCallbackInterface callback = session.getCallback();
+				boolean delivered = false;
+				for (int index = 0; index < deliveredCount && !delivered; index++)
+				{
+					delivered = deliveredCallbacks[index] == callback;
+				}
+
+				if (!delivered)
+				{
+					deliveredCallbacks[deliveredCount++] = callback;
+				}
+			}
+
+			if (deliveredCount == 0)
+			{
+				return;
+			}
+
+			final LeScanCallbackInterface[] callbacks = new LeScanCallbackInterface[deliveredCount];
+			System.arraycopy(deliveredCallbacks, 0, callbacks, 0, deliveredCount);
+			for (int index = 0; index < deliveredCount; index++)
+			{
+				deliveredCallbacks[index] = null;
+			}
+
+			final BluetoothDevice foundDevice = device;
+			final int foundRssi = rssi;
+			final byte[] foundScanRecord = scanRecord;
+			eventExecutor.execute(device.getAddress(), new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (LeScanCallbackInterface callback : callbacks)
+					{
+						callback.onLeScan(foundDevice, foundRssi, foundScanRecord, receivedTime);
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * Get the duty cycled scan scheduler.
+	 * <p>
+	 * Starting the scheduler replaces continuous scanning through {@link #setBluetoothDiscoveryEnabled(boolean, boolean)}
+	 * with LE scan windows (and optionally interleaved classic discovery) run on the Bluetooth manager's handler thread.
+	 * Results are reported through the registered {@link BluetoothEventListener}s as usual.
+	 *
+	 * @return the scan scheduler
+	 */
+	public LeScanScheduler getLeScanScheduler()
+	{
+		return this.leScanScheduler;
 	}
 
 	/**
@@ -622,7 +1173,7 @@ public class LocalBluetoothManager
 			{
 				try
 				{
-					result = (Boolean) this.hh3IsGATTReadyMethod.invoke(this.bluetoothAdapter);
+					result = (Boolean) this.capabilities.getMethod(BluetoothCapabilities.HH3_IS_GATT_READY).invoke(this.bluetoothAdapter);
 				} catch (Exception e)
 				{
 					Logger.ex(TAG, "Error invoking isGattReady", e);
@@ -654,7 +1205,7 @@ public class LocalBluetoothManager
 		{
 			try
 			{
-				this.hh3GATTRestartMethod.invoke(this.bluetoothAdapter);
+				this.capabilities.getMethod(BluetoothCapabilities.HH3_GATT_RESTART).invoke(this.bluetoothAdapter);
 				result = true;
 			} catch (Exception e)
 			{
@@ -691,11 +1242,12 @@ public class LocalBluetoothManager
 	{
 		BluetoothGatt bluetoothGatt = null;
 
-		if (this.connectBluetoothGattMethod != null)
+		Method method = this.capabilities.getMethod(BluetoothCapabilities.CONNECT_GATT);
+		if (method != null)
 		{
 			try
 			{
-				bluetoothGatt = (BluetoothGatt) this.connectBluetoothGattMethod.invoke(device, context, autoConnect, callback);
+				bluetoothGatt = (BluetoothGatt) method.invoke(device, context, autoConnect, callback);
 			} catch (Exception e)
 			{
 				Logger.ex(TAG, "Error invoking connectGatt", e);
@@ -711,43 +1263,204 @@ public class LocalBluetoothManager
 	 * 																						*
 	 ****************************************************************************************
 	 */
-	private ArrayList<WeakReference<BluetoothEventListener>> bluetoothEventListeners = new ArrayList<>();
+	private final BluetoothEventBus eventBus = new BluetoothEventBus();
+	private final Object stateSnapshotLock = new Object();
+
+	/**
+	 * Get the event bus, to subscribe listeners to specific event types or devices only.
+	 *
+	 * @return the event bus
+	 */
+	public BluetoothEventBus getEventBus()
+	{
+		return eventBus;
+	}
+
+	/**
+	 * Get the Bluetooth capabilities of the platform, probed once per firmware build.
+	 *
+	 * @return the capabilities
+	 */
+	public BluetoothCapabilities getCapabilities()
+	{
+		return capabilities;
+	}
 
-	ArrayList<WeakReference<BluetoothEventListener>> getBluetoothEventListeners()
+	/**
+	 * Get the coalescer merging bursts of adapter, GATT service and device connection state changes before they are
+	 * dispatched. Coalescing is disabled until a window is set with {@link StateCoalescer#setWindow(long)}.
+	 *
+	 * @return the state coalescer
+	 */
+	public StateCoalescer getStateCoalescer()
 	{
-		return bluetoothEventListeners;
+		return stateCoalescer;
 	}
 
 	/**
-	 * Register a listener for bluetooth callback events
+	 * Get the aggregator used to limit the Bluetooth LE scan results reported through
+	 * {@link BluetoothEventListener#onDeviceFound(BluetoothDevice, int, boolean)}.
 	 *
-	 * @param listener
+	 * @return the scan result aggregator
 	 */
-	public void registerBluetoothEventListener(@NonNull BluetoothEventListener listener)
+	public ScanResultAggregator getScanResultAggregator()
 	{
-		synchronized (this.bluetoothEventListeners)
+		return this.bluetoothEventRedirector.getScanResultAggregator();
+	}
+
+	/**
+	 * Record the Bluetooth broadcasts received, to reproduce event sequences with a {@link BroadcastReplayer}.
+	 *
+	 * @param recorder - recorder the broadcasts are written to, or null to stop recording. The recorder is not closed
+	 *                 when recording stops.
+	 */
+	public void setBroadcastRecorder(BroadcastRecorder recorder)
+	{
+		this.bluetoothEventRedirector.setBroadcastRecorder(recorder);
+	}
+
+	/**
+	 * Create a replayer delivering recorded broadcasts to this manager's listeners as if they had just been received.
+	 *
+	 * @return the broadcast replayer
+	 */
+	public BroadcastReplayer createBroadcastReplayer()
+	{
+		return new BroadcastReplayer(this.bluetoothEventRedirector, this.bluetoothAdapter);
+	}
+
+	/**
+	 * Get the cache of the devices currently discovered, merging the classic discovery and Bluetooth LE scan results by
+	 * address.
+	 * <p>
+	 * Devices not seen for the cache's time to live are removed and reported through
+	 * {@link BluetoothEventListener#onDeviceDisappeared(BluetoothDevice)}, whichever transport they were discovered on.
+	 *
+	 * @return the discovery cache
+	 */
+	public DiscoveryCache getDiscoveryCache()
+	{
+		return this.bluetoothEventRedirector.getDiscoveryCache();
+	}
+
+	private final LeScanAllowlist leScanAllowlist = new LeScanAllowlist();
+
+	/**
+	 * Get the allowlist of enrolled devices.
+	 * <p>
+	 * Once the allowlist contains at least one entry, only scan results from enrolled devices are logged and dispatched
+	 * to the {@link BluetoothEventListener}s. The allowlist is checked on the thread the scan results are received on,
+	 * before they are handed to the event executor, and does not apply to other {@link LeScanSession}s. It is populated
+	 * by the application, which owns the enrolled devices.
+	 *
+	 * @return the Bluetooth LE scan allowlist
+	 */
+	public LeScanAllowlist getLeScanAllowlist()
+	{
+		return this.leScanAllowlist;
+	}
+
+	private final Object leScanFiltersLock = new Object();
+	private volatile LeScanFilter[] leScanFilters = new LeScanFilter[0];
+
+	/**
+	 * Add a filter for Bluetooth LE scan results.
+	 * <p>
+	 * Once at least one filter is registered, only scan results matching any of the registered filters are logged and
+	 * dispatched to the {@link BluetoothEventListener}s. Filters are evaluated against the raw scan record on the scan
+	 * callback thread.
+	 *
+	 * @param filter
+	 */
+	public void addLeScanFilter(@NonNull LeScanFilter filter)
+	{
+		synchronized (this.leScanFiltersLock)
+		{
+			LeScanFilter[] filters = new LeScanFilter[this.leScanFilters.length + 1];
+			System.arraycopy(this.leScanFilters, 0, filters, 0, this.leScanFilters.length);
+			filters[filters.length - 1] = filter;
+			this.leScanFilters = filters;
+		}
+	}
+
+	/**
+	 * Remove a Bluetooth LE scan result filter
+	 *
+	 * @param filter - filter previously added with {@link #addLeScanFilter(LeScanFilter)}
+	 */
+	public void removeLeScanFilter(LeScanFilter filter)
+	{
+		synchronized (this.leScanFiltersLock)
 		{
-			boolean addListener = true;
-			for (Iterator<WeakReference<BluetoothEventListener>> iterator = bluetoothEventListeners.iterator(); iterator.hasNext(); )
+			ArrayList<LeScanFilter> filters = new ArrayList<>(this.leScanFilters.length);
+			for (LeScanFilter existingFilter : this.leScanFilters)
 			{
-				WeakReference<BluetoothEventListener> listenerRef =  iterator.next();
-				if (listener.equals(listenerRef.get()))
-				{
-					addListener = false;
-				}
-				else if (listenerRef.get() == null)
+				if (existingFilter != filter)
 				{
-					iterator.remove();
+					filters.add(existingFilter);
 				}
 			}
+			this.leScanFilters = filters.toArray(new LeScanFilter[filters.size()]);
+		}
+	}
 
-			if (addListener)
-			{
-				this.bluetoothEventListeners.add(new WeakReference<>(listener));
-			}
+	/**
+	 * Remove all Bluetooth LE scan result filters, all scan results will be dispatched.
+	 */
+	public void clearLeScanFilters()
+	{
+		synchronized (this.leScanFiltersLock)
+		{
+			this.leScanFilters = new LeScanFilter[0];
 		}
 	}
 
+	/**
+	 * @return the registered Bluetooth LE scan result filters, this array must not be modified.
+	 */
+	LeScanFilter[] getLeScanFilters()
+	{
+		return this.leScanFilters;
+	}
+
+	/**
+	 * Enable batching of device found events.
+	 * <p>
+	 * When enabled, devices found are collected and delivered through {@link BluetoothEventListener#onDevicesFound(java.util.List)}
+	 * once per batch, instead of through {@link BluetoothEventListener#onDeviceFound(BluetoothDevice, int, boolean)} for
+	 * every result. Only the latest result for each device is kept within a batch.
+	 *
+	 * @param interval - maximum period in milliseconds a found device is held before being dispatched, 0 to disable batching
+	 * @param maxCount - number of devices that causes a batch to be dispatched before the interval has elapsed
+	 */
+	public void setDeviceFoundBatching(long interval, int maxCount)
+	{
+		this.bluetoothEventRedirector.setDeviceFoundBatching(interval, maxCount);
+	}
+
+	/**
+	 * Register a listener for all bluetooth callback events. Use {@link #getEventBus()} to only receive specific
+	 * events or the events of a single device.
+	 *
+	 * @param listener
+	 */
+	public void registerBluetoothEventListener(@NonNull BluetoothEventListener listener)
+	{
+		this.eventBus.subscribe(listener, BluetoothEventBus.EVENT_ALL);
+	}
+
+	/**
+	 * Register a listener for all bluetooth callback events.
+	 *
+	 * @param listener
+	 * @param mainThread - true to receive the events on the main thread, false to receive them on the Bluetooth event
+	 *                   thread (or, for Bluetooth LE scan results, the {@link #getEventExecutor() event executor})
+	 */
+	public void registerBluetoothEventListener(@NonNull BluetoothEventListener listener, boolean mainThread)
+	{
+		this.eventBus.subscribe(listener, BluetoothEventBus.EVENT_ALL, null, mainThread);
+	}
+
 	/**
 	 * Remove bluetooth callback event listener
 	 *
@@ -755,20 +1468,81 @@ public class LocalBluetoothManager
 	 */
 	public void unregisterBluetoothEventListener(BluetoothEventListener listener)
 	{
-		synchronized (this.bluetoothEventListeners)
+		this.eventBus.unsubscribe(listener);
+	}
+
+	private volatile int bluetoothState = BluetoothAdapter.ERROR;
+	/** Set from a call to {@link #setBluetoothEnabled(boolean)} until the adapter reports being on or off */
+	private volatile boolean bluetoothStateChangeRequested = false;
+
+	/**
+	 * Get the Bluetooth state as last reported by the platform, without querying the adapter.
+	 *
+	 * @return the current state snapshot
+	 */
+	public BluetoothStateSnapshot getStateSnapshot()
+	{
+		return this.eventBus.getStateSnapshot();
+	}
+
+	/*
+	 * State snapshot updates, from the platform broadcasts
+	 */
+	void updateScanMode(int scanMode)
+	{
+		synchronized (this.stateSnapshotLock)
 		{
-			for (Iterator<WeakReference<BluetoothEventListener>> iterator = bluetoothEventListeners.iterator(); iterator.hasNext(); )
-			{
-				WeakReference<BluetoothEventListener> listenerRef =  iterator.next();
-				if (listenerRef.get() == null || listener.equals(listenerRef.get()))
-				{
-					iterator.remove();
-				}
-			}
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withScanMode(scanMode));
+		}
+	}
+
+	void updateDiscovering(boolean discovering)
+	{
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withDiscovering(discovering));
+		}
+	}
+
+	private void updateLeScanning(boolean leScanning)
+	{
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withLeScanning(leScanning));
 		}
 	}
 
-	private int bluetoothState = BluetoothAdapter.ERROR;
+	private void updateAdapterState(int adapterState)
+	{
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withAdapterState(adapterState));
+		}
+	}
+
+	private void updateGattReady(boolean gattReady)
+	{
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withGattReady(gattReady));
+		}
+	}
+
+	private void updateConnectionState(BluetoothDevice device, int connectionState)
+	{
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withConnectionState(device, connectionState));
+		}
+	}
+
+	void updateBondState(BluetoothDevice device, int bondState)
+	{
+		synchronized (this.stateSnapshotLock)
+		{
+			this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withBondState(device, bondState));
+		}
+	}
 
 	public int getBluetoothState()
 	{
@@ -782,12 +1556,26 @@ public class LocalBluetoothManager
 
 	void setBluetoothStateInt(int state)
 	{
-		if (this.bluetoothState != state)
+		synchronized (this.stateSnapshotLock)
 		{
-			this.bluetoothState = state;
+			if (this.bluetoothState == state)
+			{
+				return;
+			}
 
-			dispatchBluetoothStateChangeEvent();
+			this.bluetoothState = state;
+			if (state == STATE_ON || state == STATE_OFF)
+			{
+				this.bluetoothStateChangeRequested = false;
+			}
+			else
+			{
+				// On and off reach the snapshot through the coalescer
+				this.eventBus.setStateSnapshot(this.eventBus.getStateSnapshot().withAdapterState(state));
+			}
 		}
+
+		dispatchBluetoothStateChangeEvent(state);
 	}
 
 	private void syncBluetoothState()
@@ -816,32 +1604,17 @@ public class LocalBluetoothManager
 		return bluetoothLEScanStarted;
 	}
 
-	private void dispatchBluetoothStateChangeEvent()
+	private void dispatchBluetoothStateChangeEvent(int state)
 	{
-		if (this.bluetoothState == STATE_ON || this.bluetoothState == STATE_OFF)
+		if (state == STATE_ON || state == STATE_OFF)
 		{
-			synchronized (this.bluetoothEventListeners)
-			{
-				boolean enable = this.bluetoothState == STATE_ON;
-				for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
-				{
-                    if (callback.get() != null)
-                        callback.get().onBluetoothStateChanged(enable);
-				}
-			}
+			this.stateCoalescer.stateChanged(StateCoalescer.DOMAIN_ADAPTER, null, state);
 		}
 	}
 
 	void dispatchBluetoothScanningStateChanged(boolean started)
 	{
-		synchronized (this.bluetoothEventListeners)
-		{
-            for (WeakReference<BluetoothEventListener> callback : this.bluetoothEventListeners)
-			{
-                if (callback.get() != null)
-				    callback.get().onDiscoveryStateChanged(started);
-			}
-		}
+		this.eventBus.dispatchDiscoveryStateChanged(started);
 	}
 
 	/**
@@ -861,6 +1634,11 @@ public class LocalBluetoothManager
 		{
 			if (enable)
 			{
+				if (!isBluetoothLEScanStarted())
+				{
+					// Report every device again for a new scan
+					this.bluetoothEventRedirector.getScanResultAggregator().clear();
+				}
 				result = startLeScan(this.bluetoothEventRedirector.getBluetoothScanCallBack());
 			}
 			else
@@ -897,6 +1675,35 @@ public class LocalBluetoothManager
 		return result;
 	}
 
+	/**
+	 * Drives the LE scan and classic discovery on behalf of the {@link LeScanScheduler}
+	 */
+	private class SchedulerScanController implements LeScanScheduler.ScanController
+	{
+		private LeScanSession leScanSession = null;
+
+		@Override
+		public void setLeScanEnabled(boolean enable)
+		{
+			// The scan result aggregator is deliberately not cleared between scan windows
+			if (enable && this.leScanSession == null)
+			{
+				this.leScanSession = openLeScanSession(bluetoothEventRedirector.getBluetoothScanCallBack(), 0);
+			}
+			else if (!enable && this.leScanSession != null)
+			{
+				this.leScanSession.close();
+				this.leScanSession = null;
+			}
+		}
+
+		@Override
+		public void setClassicDiscoveryEnabled(boolean enable)
+		{
+			setBluetoothDiscoveryEnabled(enable, false);
+		}
+	}
+
 	public boolean setListening(BluetoothGatt bluetoothGatt, boolean listening)
 	{
 		boolean result = false;
@@ -907,7 +1714,7 @@ public class LocalBluetoothManager
 			{
 				try
 				{
-					this.hh3Listen.invoke(bluetoothGatt, listening, 0);
+					this.capabilities.getMethod(BluetoothCapabilities.HH3_LISTEN).invoke(bluetoothGatt, listening, 0);
 					result = true;
 				} catch (Exception e)
 				{
@@ -938,15 +1745,32 @@ public class LocalBluetoothManager
 			return true;
 		}
 
-		return enable ? this.bluetoothAdapter.enable() : this.bluetoothAdapter.disable();
+		// The adapter is queried until the broadcast of the new state is received
+		this.bluetoothStateChangeRequested = true;
+		boolean requested = enable ? this.bluetoothAdapter.enable() : this.bluetoothAdapter.disable();
+		if (!requested)
+		{
+			this.bluetoothStateChangeRequested = false;
+		}
+		return requested;
 	}
 	/**
 	 * Returns whether the bluetooth hardware is currently enabled or not.
+	 * <p>
+	 * The state is taken from the adapter state broadcasts, without querying the adapter, except while the adapter is
+	 * turning on or off or a change requested through {@link #setBluetoothEnabled(boolean)} has not been broadcast yet.
 	 * @return
 	 */
 	public boolean isBluetoothEnabled()
 	{
-		return this.bluetoothAdapter.isEnabled();
+		int state = getBluetoothState();
+		if ((state == STATE_ON || state == STATE_OFF) && !this.bluetoothStateChangeRequested)
+		{
+			return state == STATE_ON;
+		}
+
+		BluetoothAdapter bluetoothAdapter = this.bluetoothAdapter;
+		return bluetoothAdapter != null && bluetoothAdapter.isEnabled();
 	}
 
 	/*
@@ -993,7 +1817,7 @@ public class LocalBluetoothManager
 		{
 			// Call not made in a looper thread. So this could cause an exception.
 			final AtomicReference<BluetoothAdapter> adapterReference = new AtomicReference<>();
-			final AtomicBoolean processComplete = new AtomicBoolean(false);
+			final CountDownLatch processComplete = new CountDownLatch(1);
 			new Handler(Looper.getMainLooper())
 			.post(new Runnable()
 			{
@@ -1010,20 +1834,23 @@ public class LocalBluetoothManager
 					}
 					finally
 					{
-						processComplete.set(true);
+						processComplete.countDown();
 					}
 				}
 			});
 
-			while (!processComplete.get())
+			try
 			{
-				try
-				{
-					Thread.sleep(100);
-				} catch (InterruptedException e)
+				// Bounded, in case the main thread is itself waiting on the caller
+				if (!processComplete.await(GET_ADAPTER_TIMEOUT, TimeUnit.MILLISECONDS))
 				{
+					Logger.w(TAG, "Timed out waiting for the main thread to get the Bluetooth adapter");
 				}
 			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
 
 			return adapterReference.get();
 		}
@@ -1068,34 +1895,9 @@ public class LocalBluetoothManager
 	 * @param context
 	 * @return
 	 */
-	@SuppressLint("NewApi")
 	public static boolean isBluetoothLESupported(Context context)
 	{
-		boolean result = false;
-
-		try
-		{
-			if (PlatformInfo.isDocoboDevice())
-			{
-				Method connectBluetoothGattMethod = getMethod(TAG, BluetoothDevice.class, "connectGatt", Context.class, boolean.class, BluetoothGattCallback.class);
-				if (connectBluetoothGattMethod != null)
-				{
-					result = true;
-				}
-			}
-			else if (context.getPackageManager().hasSystemFeature(LocalBluetoothManager.FEATURE_BLUETOOTH_LE))
-			{
-				result = true;
-			}
-		}
-		catch (NoClassDefFoundError e)
-		{
-			// This means the bluetoothGattCallback classes are not available on this device.
-			// Hence Bluetooth LE is not supported.
-			result = false;
-		}
-
-		return result;
+		return BluetoothCapabilities.getInstance(context).isBluetoothLESupported();
 	}
 
 	/**
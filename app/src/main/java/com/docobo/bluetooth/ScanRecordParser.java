@@ -0,0 +1,562 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+/**
+ * Flyweight parser for Bluetooth LE advertising data (the scanRecord reported by
+ * {@link LeScanCallbackInterface#onLeScan(android.bluetooth.BluetoothDevice, int, byte[])}).
+ * <p>
+ * The parser walks the AD structures in place over the scan record array and does not allocate while doing so,
+ * so a single instance can be reused for every advertisement received on a thread. It is not thread safe.
+ * <p>
+ * Usage:
+ * <pre>
+ * parser.reset(scanRecord);
+ * while (parser.next())
+ * {
+ *     if (parser.getType() == ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA)
+ *     {
+ *         int companyId = parser.getManufacturerId();
+ *         ...
+ *     }
+ * }
+ * </pre>
+ * The whole record helpers ({@link #getFlags()}, {@link #hasServiceUuid(UUID)}, ...) rewind the cursor and leave it
+ * positioned on the matching structure, or at the end of the record if there was no match.
+ */
+public class ScanRecordParser
+{
+	/*
+	 * AD types (Bluetooth Assigned Numbers - Generic Access Profile)
+	 */
+	public static final int TYPE_FLAGS                          = 0x01;
+	public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_16    = 0x02;
+	public static final int TYPE_COMPLETE_SERVICE_UUIDS_16      = 0x03;
+	public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_32    = 0x04;
+	public static final int TYPE_COMPLETE_SERVICE_UUIDS_32      = 0x05;
+	public static final int TYPE_INCOMPLETE_SERVICE_UUIDS_128   = 0x06;
+	public static final int TYPE_COMPLETE_SERVICE_UUIDS_128     = 0x07;
+	public static final int TYPE_SHORTENED_LOCAL_NAME           = 0x08;
+	public static final int TYPE_COMPLETE_LOCAL_NAME            = 0x09;
+	public static final int TYPE_TX_POWER_LEVEL                 = 0x0A;
+	public static final int TYPE_SERVICE_DATA_16                = 0x16;
+	public static final int TYPE_APPEARANCE                     = 0x19;
+	public static final int TYPE_SERVICE_DATA_32                = 0x20;
+	public static final int TYPE_SERVICE_DATA_128               = 0x21;
+	public static final int TYPE_MANUFACTURER_SPECIFIC_DATA     = 0xFF;
+
+	/** Value returned by the integer accessors when the requested field is not present */
+	public static final int NOT_PRESENT = Integer.MIN_VALUE;
+
+	/** Least significant bits of the Bluetooth base UUID (0000xxxx-0000-1000-8000-00805F9B34FB) */
+	public static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+	/** Most significant bits of the Bluetooth base UUID, excluding the 16/32 bit value */
+	public static final long BASE_UUID_MSB = 0x0000000000001000L;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private byte[] record;
+	private int recordLength;
+	private int nextPosition;
+	private int type;
+	private int dataOffset;
+	private int dataLength;
+
+	/**
+	 * Point the parser at a new scan record and rewind the cursor.
+	 *
+	 * @param scanRecord - the advertising data, may be null
+	 * @return this parser
+	 */
+	public ScanRecordParser reset(byte[] scanRecord)
+	{
+		this.record = scanRecord;
+		this.recordLength = scanRecord == null ? 0 : scanRecord.length;
+		rewind();
+		return this;
+	}
+
+	/**
+	 * Move the cursor back to before the first AD structure.
+	 */
+	public void rewind()
+	{
+		this.nextPosition = 0;
+		this.type = 0;
+		this.dataOffset = 0;
+		this.dataLength = 0;
+	}
+
+	/**
+	 * Advance the cursor to the next AD structure.
+	 *
+	 * @return true if the cursor is on a structure, false when the end of the advertising data has been reached
+	 * (this includes the zero padding at the end of legacy scan records and any truncated structure).
+	 */
+	public boolean next()
+	{
+		int position = this.nextPosition;
+		if (position >= this.recordLength)
+		{
+			return false;
+		}
+
+		int length = this.record[position] & 0xFF;
+		if (length == 0 || position + 1 + length > this.recordLength)
+		{
+			this.nextPosition = this.recordLength;
+			return false;
+		}
+
+		this.type = this.record[position + 1] & 0xFF;
+		this.dataOffset = position + 2;
+		this.dataLength = length - 1;
+		this.nextPosition = position + 1 + length;
+		return true;
+	}
+
+	/**
+	 * Rewind and advance the cursor to the first AD structure of the given type.
+	 *
+	 * @param adType
+	 * @return true if the structure was found
+	 */
+	public boolean seek(int adType)
+	{
+		rewind();
+		while (next())
+		{
+			if (this.type == adType)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the backing scan record array
+	 */
+	public byte[] getRecord()
+	{
+		return record;
+	}
+
+	/**
+	 * @return AD type of the current structure
+	 */
+	public int getType()
+	{
+		return type;
+	}
+
+	/**
+	 * @return offset in {@link #getRecord()} of the data of the current structure (excluding length and type)
+	 */
+	public int getDataOffset()
+	{
+		return dataOffset;
+	}
+
+	/**
+	 * @return length of the data of the current structure (excluding length and type)
+	 */
+	public int getDataLength()
+	{
+		return dataLength;
+	}
+
+	/**
+	 * @return length of the significant part of the scan record, excluding any trailing zero padding
+	 */
+	public int getSignificantLength()
+	{
+		rewind();
+		int length = 0;
+		while (next())
+		{
+			length = this.nextPosition;
+		}
+		return length;
+	}
+
+	/*
+	 * Cursor accessors, only valid when positioned on a structure of the matching type
+	 */
+
+	/**
+	 * @return number of service UUIDs in the current service UUID list structure, 0 if the current structure is not a service UUID list.
+	 */
+	public int getServiceUuidCount()
+	{
+		int width = getServiceUuidWidth(this.type);
+		return width == 0 ? 0 : this.dataLength / width;
+	}
+
+	/**
+	 * @return the width in bytes of the service UUIDs in the current structure (2, 4 or 16) or 0 if the current structure holds no UUIDs
+	 */
+	public int getServiceUuidWidth()
+	{
+		return getServiceUuidWidth(this.type);
+	}
+
+	/**
+	 * @param index - index of the UUID in the current 16 or 32 bit service UUID list
+	 * @return the 16/32 bit service UUID value
+	 */
+	public long getShortServiceUuid(int index)
+	{
+		int width = getServiceUuidWidth(this.type);
+		int offset = this.dataOffset + index * width;
+		return width == 2 ? uint16(offset) : uint32(offset);
+	}
+
+	/**
+	 * @param index - index of the UUID in the current service UUID list
+	 * @return most significant bits of the service UUID, 16/32 bit UUIDs are expanded using the base UUID
+	 */
+	public long getServiceUuidMsb(int index)
+	{
+		int width = getServiceUuidWidth(this.type);
+		if (width == 16)
+		{
+			return int64(this.dataOffset + index * 16 + 8);
+		}
+		return getShortServiceUuid(index) << 32 | BASE_UUID_MSB;
+	}
+
+	/**
+	 * @param index - index of the UUID in the current service UUID list
+	 * @return least significant bits of the service UUID, 16/32 bit UUIDs are expanded using the base UUID
+	 */
+	public long getServiceUuidLsb(int index)
+	{
+		int width = getServiceUuidWidth(this.type);
+		if (width == 16)
+		{
+			return int64(this.dataOffset + index * 16);
+		}
+		return BASE_UUID_LSB;
+	}
+
+	/**
+	 * @return the company identifier of the current manufacturer specific data structure, or {@link #NOT_PRESENT}
+	 */
+	public int getManufacturerId()
+	{
+		if (this.type != TYPE_MANUFACTURER_SPECIFIC_DATA || this.dataLength < 2)
+		{
+			return NOT_PRESENT;
+		}
+		return uint16(this.dataOffset);
+	}
+
+	/**
+	 * @return offset of the payload following the UUID or company identifier of the current service data or
+	 * manufacturer specific data structure.
+	 */
+	public int getPayloadOffset()
+	{
+		return this.dataOffset + getPayloadHeaderLength();
+	}
+
+	/**
+	 * @return length of the payload following the UUID or company identifier of the current service data or
+	 * manufacturer specific data structure.
+	 */
+	public int getPayloadLength()
+	{
+		return Math.max(0, this.dataLength - getPayloadHeaderLength());
+	}
+
+	/**
+	 * @return most significant bits of the UUID of the current service data structure (16/32 bit UUIDs are expanded using the base UUID)
+	 */
+	public long getServiceDataUuidMsb()
+	{
+		switch (this.type)
+		{
+			case TYPE_SERVICE_DATA_16:
+				return (long) uint16(this.dataOffset) << 32 | BASE_UUID_MSB;
+			case TYPE_SERVICE_DATA_32:
+				return uint32(this.dataOffset) << 32 | BASE_UUID_MSB;
+			case TYPE_SERVICE_DATA_128:
+				return int64(this.dataOffset + 8);
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * @return least significant bits of the UUID of the current service data structure
+	 */
+	public long getServiceDataUuidLsb()
+	{
+		return this.type == TYPE_SERVICE_DATA_128 ? int64(this.dataOffset) : BASE_UUID_LSB;
+	}
+
+	/*
+	 * Whole record helpers
+	 */
+
+	/**
+	 * @return the advertising flags or {@link #NOT_PRESENT}
+	 */
+	public int getFlags()
+	{
+		return seek(TYPE_FLAGS) && this.dataLength >= 1 ? uint8(this.dataOffset) : NOT_PRESENT;
+	}
+
+	/**
+	 * @return the advertised TX power level in dBm or {@link #NOT_PRESENT}
+	 */
+	public int getTxPowerLevel()
+	{
+		return seek(TYPE_TX_POWER_LEVEL) && this.dataLength >= 1 ? this.record[this.dataOffset] : NOT_PRESENT;
+	}
+
+	/**
+	 * @return the GAP appearance value or {@link #NOT_PRESENT}
+	 */
+	public int getAppearance()
+	{
+		return seek(TYPE_APPEARANCE) && this.dataLength >= 2 ? uint16(this.dataOffset) : NOT_PRESENT;
+	}
+
+	/**
+	 * Find the first manufacturer specific data structure, leaving the cursor on it.
+	 *
+	 * @return the company identifier or {@link #NOT_PRESENT}
+	 */
+	public int findManufacturerData()
+	{
+		return seek(TYPE_MANUFACTURER_SPECIFIC_DATA) ? getManufacturerId() : NOT_PRESENT;
+	}
+
+	/**
+	 * Find the manufacturer specific data structure for the given company, leaving the cursor on it.
+	 *
+	 * @param manufacturerId - Bluetooth SIG company identifier
+	 * @return true if found
+	 */
+	public boolean findManufacturerData(int manufacturerId)
+	{
+		rewind();
+		while (next())
+		{
+			if (getManufacturerId() == manufacturerId)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Find the service data structure for the given service, leaving the cursor on it.
+	 *
+	 * @param uuid
+	 * @return true if found
+	 */
+	public boolean findServiceData(UUID uuid)
+	{
+		return findServiceData(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Find the service data structure for the given service, leaving the cursor on it.
+	 *
+	 * @param msb - most significant bits of the service UUID
+	 * @param lsb - least significant bits of the service UUID
+	 * @return true if found
+	 */
+	public boolean findServiceData(long msb, long lsb)
+	{
+		rewind();
+		while (next())
+		{
+			if (this.type == TYPE_SERVICE_DATA_16 || this.type == TYPE_SERVICE_DATA_32 || this.type == TYPE_SERVICE_DATA_128)
+			{
+				if (this.dataLength >= getPayloadHeaderLength() && getServiceDataUuidMsb() == msb && getServiceDataUuidLsb() == lsb)
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether a service UUID is advertised in any of the 16, 32 or 128 bit service UUID lists.
+	 *
+	 * @param uuid
+	 * @return true if the service is advertised
+	 */
+	public boolean hasServiceUuid(UUID uuid)
+	{
+		return hasServiceUuid(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+	}
+
+	/**
+	 * Check whether a service UUID is advertised in any of the 16, 32 or 128 bit service UUID lists.
+	 *
+	 * @param msb - most significant bits of the UUID
+	 * @param lsb - least significant bits of the UUID
+	 * @return true if the service is advertised
+	 */
+	public boolean hasServiceUuid(long msb, long lsb)
+	{
+		rewind();
+		while (next())
+		{
+			int count = getServiceUuidCount();
+			for (int index = 0; index < count; index++)
+			{
+				if (getServiceUuidMsb(index) == msb && getServiceUuidLsb(index) == lsb)
+				{
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Check whether the advertised local name (complete or shortened) starts with the given prefix.
+	 *
+	 * @param prefix - UTF-8 encoded name prefix
+	 * @return true if the name starts with the prefix
+	 */
+	public boolean localNameStartsWith(byte[] prefix)
+	{
+		if (!findLocalName() || this.dataLength < prefix.length)
+		{
+			return false;
+		}
+
+		for (int index = 0; index < prefix.length; index++)
+		{
+			if (this.record[this.dataOffset + index] != prefix[index])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Find the complete local name, or the shortened local name if the complete name is not advertised, leaving the cursor on it.
+	 *
+	 * @return true if a local name was found
+	 */
+	public boolean findLocalName()
+	{
+		return seek(TYPE_COMPLETE_LOCAL_NAME) || seek(TYPE_SHORTENED_LOCAL_NAME);
+	}
+
+	/**
+	 * Decode the advertised local name.
+	 * <p>
+	 * <b>Note:</b> This allocates a String, use {@link #localNameStartsWith(byte[])} on hot paths.
+	 *
+	 * @return the local name or null if not advertised
+	 */
+	public String getLocalName()
+	{
+		return findLocalName() ? new String(this.record, this.dataOffset, this.dataLength, UTF_8) : null;
+	}
+
+	/*
+	 * Primitive accessors (little endian, as used by the advertising data)
+	 */
+
+	/**
+	 * @param offset - offset in the scan record
+	 * @return unsigned 8 bit value
+	 */
+	public int uint8(int offset)
+	{
+		return this.record[offset] & 0xFF;
+	}
+
+	/**
+	 * @param offset - offset in the scan record
+	 * @return unsigned 16 bit little endian value
+	 */
+	public int uint16(int offset)
+	{
+		return (this.record[offset] & 0xFF) | (this.record[offset + 1] & 0xFF) << 8;
+	}
+
+	/**
+	 * @param offset - offset in the scan record
+	 * @return unsigned 32 bit little endian value
+	 */
+	public long uint32(int offset)
+	{
+		return (uint16(offset) | (long) uint16(offset + 2) << 16);
+	}
+
+	/**
+	 * @param offset - offset in the scan record
+	 * @return 64 bit little endian value
+	 */
+	public long int64(int offset)
+	{
+		return uint32(offset) | uint32(offset + 4) << 32;
+	}
+
+	/**
+	 * Get the most significant bits of a 16 bit UUID expanded using the Bluetooth base UUID.
+	 *
+	 * @param uuid16 - 16 bit assigned number
+	 * @return most significant bits of the expanded UUID, the least significant bits are {@link #BASE_UUID_LSB}
+	 */
+	public static long toUuidMsb(int uuid16)
+	{
+		return (long) (uuid16 & 0xFFFF) << 32 | BASE_UUID_MSB;
+	}
+
+	private int getPayloadHeaderLength()
+	{
+		switch (this.type)
+		{
+			case TYPE_MANUFACTURER_SPECIFIC_DATA:
+			case TYPE_SERVICE_DATA_16:
+				return 2;
+			case TYPE_SERVICE_DATA_32:
+				return 4;
+			case TYPE_SERVICE_DATA_128:
+				return 16;
+			default:
+				return 0;
+		}
+	}
+
+	private static int getServiceUuidWidth(int adType)
+	{
+		switch (adType)
+		{
+			case TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+			case TYPE_COMPLETE_SERVICE_UUIDS_16:
+				return 2;
+			case TYPE_INCOMPLETE_SERVICE_UUIDS_32:
+			case TYPE_COMPLETE_SERVICE_UUIDS_32:
+				return 4;
+			case TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+			case TYPE_COMPLETE_SERVICE_UUIDS_128:
+				return 16;
+			default:
+				return 0;
+		}
+	}
+}
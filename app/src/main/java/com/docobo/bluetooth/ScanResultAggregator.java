@@ -0,0 +1,347 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Aggregates Bluetooth LE advertisements by device address.
+ * <p>
+ * The legacy LE scan reports every advertisement received, so a handful of devices can generate thousands of
+ * callbacks per second. This class keeps one entry per device address (last seen time, exponentially smoothed RSSI
+ * and latest scan record) and only reports a result when the device is first seen or when it has changed
+ * significantly. Devices that have not been seen within the time to live are evicted.
+ * <p>
+ * The scan record is compared on the structures identifying what the device offers: its local name, its service UUIDs,
+ * the company identifiers of its manufacturer specific data and the UUIDs of its service data. Payloads are ignored, so
+ * rolling counters and rotating data are not reported, and a structure missing from an advertisement is not a change,
+ * so devices alternating between their advertisement and their scan response are not reported either.
+ */
+public class ScanResultAggregator
+{
+	/**
+	 * Aggregated scan information for a single device address.
+	 */
+	public static class Entry
+	{
+		private final BluetoothDevice device;
+		private long firstSeen;
+		private long lastSeen;
+		private float smoothedRssi;
+		private int reportedRssi;
+		private byte[] scanRecord;
+		/** Hash of each kind of identifying structure last reported, {@link #NOT_SEEN} until one is */
+		private final long[] reportedStructures = new long[STRUCTURE_KINDS];
+
+		Entry(BluetoothDevice device)
+		{
+			this.device = device;
+		}
+
+		public BluetoothDevice getDevice()
+		{
+			return device;
+		}
+
+		public long getFirstSeen()
+		{
+			return firstSeen;
+		}
+
+		public long getLastSeen()
+		{
+			return lastSeen;
+		}
+
+		public int getSmoothedRssi()
+		{
+			return Math.round(smoothedRssi);
+		}
+
+		public byte[] getScanRecord()
+		{
+			return scanRecord;
+		}
+	}
+
+	/** Default period after which a device that has not been seen is evicted (milliseconds) */
+	public static final long DEFAULT_TIME_TO_LIVE = 30000;
+	/** Default smoothed RSSI change (dBm) that is reported as a significant change */
+	public static final int DEFAULT_RSSI_THRESHOLD = 8;
+	/** Default weight given to a new RSSI sample when smoothing */
+	public static final float DEFAULT_SMOOTHING_FACTOR = 0.25f;
+
+	/** Minimum period between two eviction sweeps (milliseconds) */
+	private static final long EVICTION_INTERVAL = 1000;
+
+	/*
+	 * Kinds of identifying structures compared between advertisements
+	 */
+	private static final int STRUCTURE_NAME = 0;
+	private static final int STRUCTURE_SERVICE_UUIDS = 1;
+	private static final int STRUCTURE_MANUFACTURER_IDS = 2;
+	private static final int STRUCTURE_SERVICE_DATA_UUIDS = 3;
+	private static final int STRUCTURE_KINDS = 4;
+
+	private static final long NOT_SEEN = 0;
+
+	private final HashMap<String, Entry> entries = new HashMap<>();
+	private long timeToLive = DEFAULT_TIME_TO_LIVE;
+	private int rssiThreshold = DEFAULT_RSSI_THRESHOLD;
+	private float smoothingFactor = DEFAULT_SMOOTHING_FACTOR;
+	private long lastEviction = 0;
+	private boolean enabled = true;
+	private final ScanRecordParser parser = new ScanRecordParser();
+	private final long[] structures = new long[STRUCTURE_KINDS];
+
+	/**
+	 * Update the aggregated information for a device with a newly received advertisement.
+	 *
+	 * @param device - device the advertisement was received from
+	 * @param rssi - signal strength of the advertisement
+	 * @param scanRecord - advertisement data
+	 * @param now - current time in milliseconds, must be monotonic (e.g. {@link android.os.SystemClock#elapsedRealtime()})
+	 * @return the entry for this device if the advertisement should be reported to the listeners, null otherwise
+	 */
+	public Entry update(BluetoothDevice device, int rssi, byte[] scanRecord, long now)
+	{
+		return update(device.getAddress(), device, rssi, scanRecord, now);
+	}
+
+	/*
+	 * Update keyed by address, the device is only kept in the entry
+	 */
+	synchronized Entry update(String address, BluetoothDevice device, int rssi, byte[] scanRecord, long now)
+	{
+		if (now - this.lastEviction >= EVICTION_INTERVAL)
+		{
+			evictExpired(now);
+		}
+
+		hashStructures(scanRecord);
+		Entry entry = this.entries.get(address);
+		boolean report;
+
+		if (entry == null)
+		{
+			entry = new Entry(device);
+			entry.firstSeen = now;
+			entry.smoothedRssi = rssi;
+			this.entries.put(address, entry);
+			report = true;
+		}
+		else
+		{
+			entry.smoothedRssi += this.smoothingFactor * (rssi - entry.smoothedRssi);
+			report = !this.enabled
+					|| Math.abs(entry.getSmoothedRssi() - entry.reportedRssi) >= this.rssiThreshold
+					|| structuresChanged(entry);
+		}
+
+		entry.lastSeen = now;
+		entry.scanRecord = scanRecord;
+
+		if (report)
+		{
+			entry.reportedRssi = entry.getSmoothedRssi();
+			for (int kind = 0; kind < STRUCTURE_KINDS; kind++)
+			{
+				if (this.structures[kind] != NOT_SEEN)
+				{
+					entry.reportedStructures[kind] = this.structures[kind];
+				}
+			}
+			return entry;
+		}
+
+		return null;
+	}
+
+	/*
+	 * A kind of structure present in the advertisement changed if it differs from the one last reported
+	 */
+	private boolean structuresChanged(Entry entry)
+	{
+		for (int kind = 0; kind < STRUCTURE_KINDS; kind++)
+		{
+			if (this.structures[kind] != NOT_SEEN && this.structures[kind] != entry.reportedStructures[kind])
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/*
+	 * Hash the identifying structures of a scan record into structures, by kind, without their payloads
+	 */
+	private void hashStructures(byte[] scanRecord)
+	{
+		for (int kind = 0; kind < STRUCTURE_KINDS; kind++)
+		{
+			this.structures[kind] = NOT_SEEN;
+		}
+
+		ScanRecordParser parser = this.parser.reset(scanRecord);
+		while (parser.next())
+		{
+			switch (parser.getType())
+			{
+				case ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME:
+				case ScanRecordParser.TYPE_SHORTENED_LOCAL_NAME:
+					for (int index = parser.getDataOffset(); index < parser.getDataOffset() + parser.getDataLength(); index++)
+					{
+						mix(STRUCTURE_NAME, parser.getRecord()[index]);
+					}
+					break;
+				case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+				case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16:
+				case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_32:
+				case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_32:
+				case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+				case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_128:
+					for (int index = 0; index < parser.getServiceUuidCount(); index++)
+					{
+						mix(STRUCTURE_SERVICE_UUIDS, parser.getServiceUuidMsb(index));
+						mix(STRUCTURE_SERVICE_UUIDS, parser.getServiceUuidLsb(index));
+					}
+					break;
+				case ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA:
+					if (parser.getManufacturerId() != ScanRecordParser.NOT_PRESENT)
+					{
+						mix(STRUCTURE_MANUFACTURER_IDS, parser.getManufacturerId());
+					}
+					break;
+				case ScanRecordParser.TYPE_SERVICE_DATA_16:
+				case ScanRecordParser.TYPE_SERVICE_DATA_32:
+				case ScanRecordParser.TYPE_SERVICE_DATA_128:
+					if (parser.getPayloadOffset() - parser.getDataOffset() <= parser.getDataLength())
+					{
+						mix(STRUCTURE_SERVICE_DATA_UUIDS, parser.getServiceDataUuidMsb());
+						mix(STRUCTURE_SERVICE_DATA_UUIDS, parser.getServiceDataUuidLsb());
+					}
+					break;
+				default:
+					break;
+			}
+		}
+	}
+
+	private void mix(int kind, long value)
+	{
+		long hash = (this.structures[kind] ^ value) * 0x9E3779B97F4A7C15L;
+		// Never NOT_SEEN once a structure has been seen
+		this.structures[kind] = (hash ^ (hash >>> 29)) | 1;
+	}
+
+	/**
+	 * Get the aggregated information for a device address.
+	 *
+	 * @param address
+	 * @return the entry or null if the device has not been seen within the time to live
+	 */
+	public synchronized Entry get(String address)
+	{
+		return this.entries.get(address);
+	}
+
+	/**
+	 * @return number of devices currently tracked
+	 */
+	public synchronized int size()
+	{
+		return this.entries.size();
+	}
+
+	/**
+	 * Remove all devices, so that every device is reported again on its next advertisement.
+	 */
+	public synchronized void clear()
+	{
+		this.entries.clear();
+	}
+
+	/**
+	 * Remove all devices that have not been seen within the time to live.
+	 *
+	 * @param now - current time in milliseconds
+	 */
+	public synchronized void evictExpired(long now)
+	{
+		this.lastEviction = now;
+		for (Iterator<Entry> iterator = this.entries.values().iterator(); iterator.hasNext(); )
+		{
+			if (now - iterator.next().lastSeen > this.timeToLive)
+			{
+				iterator.remove();
+			}
+		}
+	}
+
+	/**
+	 * Enable/Disable aggregation. When disabled every advertisement is reported, but devices are still tracked.
+	 *
+	 * @param enabled
+	 */
+	public synchronized void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	public synchronized boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * @param timeToLive - period in milliseconds after which a device that has not been seen is evicted
+	 */
+	public synchronized void setTimeToLive(long timeToLive)
+	{
+		this.timeToLive = timeToLive;
+	}
+
+	public synchronized long getTimeToLive()
+	{
+		return timeToLive;
+	}
+
+	/**
+	 * @param rssiThreshold - smoothed RSSI change (dBm) since the last report that causes the device to be reported again
+	 */
+	public synchronized void setRssiThreshold(int rssiThreshold)
+	{
+		this.rssiThreshold = rssiThreshold;
+	}
+
+	public synchronized int getRssiThreshold()
+	{
+		return rssiThreshold;
+	}
+
+	/**
+	 * @param smoothingFactor - weight (0 - 1] given to a new RSSI sample, lower values smooth more
+	 * @throws IllegalArgumentException if the smoothing factor is out of range
+	 */
+	public synchronized void setSmoothingFactor(float smoothingFactor) throws IllegalArgumentException
+	{
+		if (smoothingFactor <= 0 || smoothingFactor > 1)
+		{
+			throw new IllegalArgumentException("smoothingFactor must be in the range (0, 1]");
+		}
+		this.smoothingFactor = smoothingFactor;
+	}
+
+	public synchronized float getSmoothingFactor()
+	{
+		return smoothingFactor;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.Handler;
+
+import com.docobo.logger.Logger;
+
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges bursts of state transitions, such as connections flapping on a marginal link or the adapter and GATT service
+ * restarting, into a single net state change.
+ * <p>
+ * When a state changes, it is held for the coalescing window. Further changes of the same state within the window
+ * replace it, and once the window has elapsed only the latest state is reported, if it differs from the state last
+ * reported. The intermediate states are only counted in the metrics. Adapter states are coalesced per adapter and
+ * connection states per device.
+ * <p>
+ * Coalescing is disabled by default, in which case every change is reported straight away.
+ *
+ * @see LocalBluetoothManager#getStateCoalescer()
+ */
+public class StateCoalescer
+{
+	private static final String TAG = "StateCoalescer";
+
+	/*
+	 * Coalesced states
+	 */
+	/** Bluetooth adapter state, reported through {@link BluetoothEventListener#onBluetoothStateChanged(boolean)} */
+	static final int DOMAIN_ADAPTER = 1;
+	/** GATT service state, reported through {@link BluetoothEventListener#onGattServiceStateChanged(boolean)} */
+	static final int DOMAIN_GATT_SERVICE = 2;
+	/** Device connection state, reported through {@link BluetoothEventListener#onDeviceConnectionStateChanged(BluetoothDevice, int)} */
+	static final int DOMAIN_CONNECTION = 3;
+
+	/**
+	 * Receives the coalesced state changes, on the handler thread or on the thread reporting the change when
+	 * coalescing is disabled.
+	 */
+	interface Callback
+	{
+		/**
+		 * Called whenever a state settles at the end of its window, or straight away when coalescing is disabled,
+		 * before the change is reported. Also called when the state is not reported as it is unchanged.
+		 *
+		 * @param domain - one of the DOMAIN_ values
+		 * @param device - the device for {@link #DOMAIN_CONNECTION}, null otherwise
+		 * @param state
+		 */
+		void onStateSettled(int domain, BluetoothDevice device, int state);
+
+		/**
+		 * @param domain - one of the DOMAIN_ values
+		 * @param device - the device for {@link #DOMAIN_CONNECTION}, null otherwise
+		 * @param state
+		 */
+		void onStateChanged(int domain, BluetoothDevice device, int state);
+	}
+
+	private class PendingChange implements Runnable
+	{
+		final long key;
+		final int domain;
+		BluetoothDevice device;
+		int state;
+
+		PendingChange(long key, int domain)
+		{
+			this.key = key;
+			this.domain = domain;
+		}
+
+		@Override
+		public void run()
+		{
+			flush(this);
+		}
+	}
+
+	private final Handler handler;
+	private final Callback callback;
+	private final HashMap<Long, PendingChange> pendingChanges = new HashMap<>();
+	/** State last reported for each domain and device */
+	private final HashMap<Long, Integer> reportedStates = new HashMap<>();
+	private volatile long window = 0;
+
+	private final AtomicLong reportedCount = new AtomicLong();
+	private final AtomicLong supersededCount = new AtomicLong();
+	private final AtomicLong suppressedCount = new AtomicLong();
+
+	/**
+	 * @param handler - handler the coalesced changes are reported on
+	 * @param callback
+	 */
+	StateCoalescer(Handler handler, Callback callback)
+	{
+		this.handler = handler;
+		this.callback = callback;
+	}
+
+	/**
+	 * @param window - period in milliseconds state changes are held for and merged, 0 to disable coalescing. Changes
+	 *               pending when coalescing is disabled are reported when their window elapses.
+	 */
+	public void setWindow(long window)
+	{
+		this.window = Math.max(0, window);
+	}
+
+	public long getWindow()
+	{
+		return window;
+	}
+
+	/**
+	 * @return the number of state changes reported
+	 */
+	public long getReportedCount()
+	{
+		return this.reportedCount.get();
+	}
+
+	/**
+	 * @return the number of intermediate states which were replaced by a later state within the window and not reported
+	 */
+	public long getSupersededCount()
+	{
+		return this.supersededCount.get();
+	}
+
+	/**
+	 * @return the number of windows which were not reported as they ended in the state last reported
+	 */
+	public long getSuppressedCount()
+	{
+		return this.suppressedCount.get();
+	}
+
+	public void resetCounts()
+	{
+		this.reportedCount.set(0);
+		this.supersededCount.set(0);
+		this.suppressedCount.set(0);
+	}
+
+	/**
+	 * Report a state change.
+	 *
+	 * @param domain - one of the DOMAIN_ values
+	 * @param device - the device for {@link #DOMAIN_CONNECTION}, null otherwise
+	 * @param state
+	 */
+	void stateChanged(int domain, BluetoothDevice device, int state)
+	{
+		long window = this.window;
+		long key = toKey(domain, device);
+		if (window <= 0)
+		{
+			synchronized (this)
+			{
+				PendingChange pendingChange = this.pendingChanges.get(key);
+				if (pendingChange != null)
+				{
+					// Keep the order with a change still held from before coalescing was disabled
+					pendingChange.device = device;
+					pendingChange.state = state;
+					this.supersededCount.incrementAndGet();
+					return;
+				}
+				this.reportedStates.put(key, state);
+			}
+			this.callback.onStateSettled(domain, device, state);
+			report(domain, device, state);
+			return;
+		}
+
+		synchronized (this)
+		{
+			PendingChange pendingChange = this.pendingChanges.get(key);
+			if (pendingChange == null)
+			{
+				pendingChange = new PendingChange(key, domain);
+				this.pendingChanges.put(key, pendingChange);
+				this.handler.postDelayed(pendingChange, window);
+			}
+			else
+			{
+				this.supersededCount.incrementAndGet();
+			}
+			pendingChange.device = device;
+			pendingChange.state = state;
+		}
+	}
+
+	/**
+	 * Forget the pending changes and the states reported.
+	 */
+	synchronized void clear()
+	{
+		for (PendingChange pendingChange : this.pendingChanges.values())
+		{
+			this.handler.removeCallbacks(pendingChange);
+		}
+		this.pendingChanges.clear();
+		this.reportedStates.clear();
+	}
+
+	private void flush(PendingChange pendingChange)
+	{
+		BluetoothDevice device;
+		int state;
+		boolean changed;
+		synchronized (this)
+		{
+			if (this.pendingChanges.get(pendingChange.key) != pendingChange)
+			{
+				// Cleared
+				return;
+			}
+			this.pendingChanges.remove(pendingChange.key);
+
+			device = pendingChange.device;
+			state = pendingChange.state;
+			Integer reportedState = this.reportedStates.put(pendingChange.key, state);
+			changed = reportedState == null || reportedState != state;
+		}
+
+		this.callback.onStateSettled(pendingChange.domain, device, state);
+		if (!changed)
+		{
+			this.suppressedCount.incrementAndGet();
+			Logger.df(TAG, 15, "State %d of domain %d unchanged after coalescing window", state, pendingChange.domain);
+			return;
+		}
+		report(pendingChange.domain, device, state);
+	}
+
+	private void report(int domain, BluetoothDevice device, int state)
+	{
+		this.reportedCount.incrementAndGet();
+		this.callback.onStateChanged(domain, device, state);
+	}
+
+	private static long toKey(int domain, BluetoothDevice device)
+	{
+		long address = device != null ? BluetoothAddress.toLong(device.getAddress()) : 0;
+		// Addresses only use the lower 48 bits
+		return ((long) domain << 48) | (address & 0xFFFFFFFFFFFFL);
+	}
+}
@@ -0,0 +1,203 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.docobo.logger.Logger;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor running tasks on a fixed number of single threaded lanes, selected by hashing a key such as the device
+ * address.
+ * <p>
+ * Tasks submitted with the same key always run on the same lane, in the order they were submitted, while tasks for
+ * different keys run in parallel on the other lanes. This keeps the events of each device strictly ordered without
+ * serialising every device behind a single queue.
+ *
+ * @see LocalBluetoothManager#getEventExecutor()
+ */
+public class StripedExecutor
+{
+	private static final String TAG = "StripedExecutor";
+
+	private final HandlerThread[] threads;
+	private final Handler[] lanes;
+	private final AtomicInteger[] queueDepths;
+	private final AtomicInteger[] maxQueueDepths;
+	private volatile boolean shutdown = false;
+
+	/**
+	 * @param name - name prefix of the lane threads
+	 * @param laneCount - number of lanes
+	 */
+	public StripedExecutor(String name, int laneCount)
+	{
+		if (laneCount < 1)
+		{
+			throw new IllegalArgumentException("At least one lane is required");
+		}
+
+		this.threads = new HandlerThread[laneCount];
+		this.lanes = new Handler[laneCount];
+		this.queueDepths = new AtomicInteger[laneCount];
+		this.maxQueueDepths = new AtomicInteger[laneCount];
+		for (int lane = 0; lane < laneCount; lane++)
+		{
+			this.threads[lane] = new HandlerThread(name + "-" + lane, Process.THREAD_PRIORITY_DEFAULT);
+			this.threads[lane].start();
+			this.lanes[lane] = new Handler(this.threads[lane].getLooper());
+			this.queueDepths[lane] = new AtomicInteger();
+			this.maxQueueDepths[lane] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * @return a lane count suited to the number of processors
+	 */
+	public static int getDefaultLaneCount()
+	{
+		return Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Run a task on the lane of a device.
+	 *
+	 * @param address - device address the task relates to
+	 * @param task
+	 */
+	public void execute(String address, Runnable task)
+	{
+		execute(BluetoothAddress.toLong(address), task);
+	}
+
+	/**
+	 * Run a task on the lane of a key.
+	 *
+	 * @param key
+	 * @param task
+	 */
+	public void execute(long key, final Runnable task)
+	{
+		final int lane = getLane(key);
+		final AtomicInteger queueDepth = this.queueDepths[lane];
+
+		// Held while posting, so no task is queued behind the message quitting the lane
+		synchronized (this.lanes[lane])
+		{
+			if (this.shutdown)
+			{
+				return;
+			}
+
+			int depth = queueDepth.incrementAndGet();
+			AtomicInteger maxQueueDepth = this.maxQueueDepths[lane];
+			int maxDepth = maxQueueDepth.get();
+			while (depth > maxDepth && !maxQueueDepth.compareAndSet(maxDepth, depth))
+			{
+				maxDepth = maxQueueDepth.get();
+			}
+
+			this.lanes[lane].post(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						if (!shutdown)
+						{
+							task.run();
+						}
+					}
+					catch (Exception e)
+					{
+						// Keep the lane running for the other devices
+						Logger.ex(TAG, "Error running task on lane " + lane, e);
+					}
+					finally
+					{
+						queueDepth.decrementAndGet();
+					}
+				}
+			});
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the lane tasks for the key run on
+	 */
+	public int getLane(long key)
+	{
+		// Spread the address bits, addresses from one manufacturer share their upper bits
+		int hash = (int) (key ^ (key >>> 32));
+		hash ^= hash >>> 16;
+		hash *= 0x85EBCA6B;
+		hash ^= hash >>> 13;
+		return (hash & Integer.MAX_VALUE) % this.lanes.length;
+	}
+
+	public int getLaneCount()
+	{
+		return this.lanes.length;
+	}
+
+	/**
+	 * @param lane
+	 * @return the number of tasks queued or running on the lane
+	 */
+	public int getQueueDepth(int lane)
+	{
+		return this.queueDepths[lane].get();
+	}
+
+	/**
+	 * @param lane
+	 * @return the highest number of tasks queued on the lane since the last {@link #resetMaxQueueDepths()}
+	 */
+	public int getMaxQueueDepth(int lane)
+	{
+		return this.maxQueueDepths[lane].get();
+	}
+
+	public void resetMaxQueueDepths()
+	{
+		for (AtomicInteger maxQueueDepth : this.maxQueueDepths)
+		{
+			maxQueueDepth.set(0);
+		}
+	}
+
+	/**
+	 * Stop the lanes, discarding the queued tasks. The tasks already queued are drained without running, so the queue
+	 * depths return to zero once the lanes have quit.
+	 */
+	public void shutdown()
+	{
+		this.shutdown = true;
+		for (int lane = 0; lane < this.lanes.length; lane++)
+		{
+			final HandlerThread thread = this.threads[lane];
+			synchronized (this.lanes[lane])
+			{
+				this.lanes[lane].post(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						thread.quit();
+					}
+				});
+			}
+		}
+	}
+}
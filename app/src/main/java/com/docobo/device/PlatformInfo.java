@@ -16,7 +16,10 @@ import android.os.Build;
  */
 public class PlatformInfo {
 
+    // The manufacturer never changes while running
+    private static final boolean DOCOBO_DEVICE = "DOCOBO".equalsIgnoreCase(Build.MANUFACTURER);
+
     public static boolean isDocoboDevice() {
-        return "DOCOBO".equalsIgnoreCase(Build.MANUFACTURER);
+        return DOCOBO_DEVICE;
     }
 }
@@ -0,0 +1,267 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.docobo.logger.ILogger;
+import com.docobo.logger.LogEntry;
+import com.docobo.logger.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Slow listener detection and isolation, and state replay, of {@link BluetoothEventBus}. Scan mode events carry an
+ * integer and no device, so they are dispatched without a main thread or an event thread.
+ */
+public class BluetoothEventBusTest
+{
+	private static final long TIMEOUT = 2000;
+
+	/**
+	 * Records the scan modes received, sleeping or blocking in each delivery when asked to
+	 */
+	private static class RecordingListener extends BluetoothEventListener
+	{
+		final List<Integer> scanModes = Collections.synchronizedList(new ArrayList<Integer>());
+		volatile long sleep = 0;
+		volatile CountDownLatch block = null;
+		final CountDownLatch received;
+
+		RecordingListener(int expected)
+		{
+			this.received = new CountDownLatch(expected);
+		}
+
+		@Override
+		public void onScanModeChanged(int scanMode)
+		{
+			try
+			{
+				if (this.sleep > 0)
+				{
+					Thread.sleep(this.sleep);
+				}
+				CountDownLatch block = this.block;
+				if (block != null)
+				{
+					block.await();
+				}
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			this.scanModes.add(scanMode);
+			this.received.countDown();
+		}
+	}
+
+	private static class SlowListener extends RecordingListener
+	{
+		SlowListener(int expected)
+		{
+			super(expected);
+		}
+	}
+
+	private static class OtherSlowListener extends RecordingListener
+	{
+		OtherSlowListener(int expected)
+		{
+			super(expected);
+		}
+	}
+
+	private BluetoothEventBus eventBus;
+
+	@Before
+	public void setUp()
+	{
+		Logger.initialise("BluetoothEventBusTest", new ILogger()
+		{
+			@Override
+			public void onLog(LogEntry logEntry)
+			{
+			}
+
+			@Override
+			public void onLogEmail(String subject, String message, File[] attachFiles)
+			{
+			}
+
+			@Override
+			public File createTempFileForData(String data)
+			{
+				return null;
+			}
+		});
+
+		this.eventBus = new BluetoothEventBus(null);
+		this.eventBus.setLatencyBudget(5);
+	}
+
+	@After
+	public void tearDown()
+	{
+		this.eventBus.clear();
+	}
+
+	/**
+	 * Dispatch scan modes until the listener has been flagged as slow
+	 */
+	private void flagAsSlow(RecordingListener listener, int firstScanMode)
+	{
+		listener.sleep = 8;
+		for (int scanMode = firstScanMode; scanMode < firstScanMode + 3; scanMode++)
+		{
+			this.eventBus.dispatchScanModeChanged(scanMode);
+		}
+		listener.sleep = 0;
+	}
+
+	@Test
+	public void flagsListenersOverTheLatencyBudget()
+	{
+		SlowListener slow = new SlowListener(3);
+		RecordingListener fast = new RecordingListener(3);
+		this.eventBus.subscribe(slow, BluetoothEventBus.EVENT_SCAN_MODE);
+		this.eventBus.subscribe(fast, BluetoothEventBus.EVENT_SCAN_MODE);
+
+		flagAsSlow(slow, 1);
+
+		List<String> slowListeners = this.eventBus.getDispatchMetrics().getSlowListeners();
+		assertEquals(Collections.singletonList(SlowListener.class.getName()), slowListeners);
+		assertEquals(Arrays.asList(1, 2, 3), fast.scanModes);
+
+		this.eventBus.resetDispatchMetrics();
+		assertTrue(this.eventBus.getDispatchMetrics().getSlowListeners().isEmpty());
+	}
+
+	@Test
+	public void isolatedSlowListenerDoesNotDelayTheOthers() throws InterruptedException
+	{
+		SlowListener slow = new SlowListener(8);
+		RecordingListener fast = new RecordingListener(8);
+		this.eventBus.setSlowListenerIsolation(true);
+		this.eventBus.subscribe(slow, BluetoothEventBus.EVENT_SCAN_MODE);
+		this.eventBus.subscribe(fast, BluetoothEventBus.EVENT_SCAN_MODE);
+		flagAsSlow(slow, 1);
+
+		CountDownLatch release = new CountDownLatch(1);
+		slow.block = release;
+		for (int scanMode = 4; scanMode <= 8; scanMode++)
+		{
+			this.eventBus.dispatchScanModeChanged(scanMode);
+		}
+
+		// Delivered synchronously to the fast listener while the slow one is blocked
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), fast.scanModes);
+		assertFalse(slow.received.await(50, TimeUnit.MILLISECONDS));
+
+		release.countDown();
+		assertTrue(slow.received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), slow.scanModes);
+	}
+
+	@Test
+	public void isolatedSlowListenersHaveTheirOwnQueues() throws InterruptedException
+	{
+		SlowListener blocked = new SlowListener(6);
+		OtherSlowListener other = new OtherSlowListener(6);
+		this.eventBus.setSlowListenerIsolation(true);
+		this.eventBus.subscribe(blocked, BluetoothEventBus.EVENT_SCAN_MODE);
+		this.eventBus.subscribe(other, BluetoothEventBus.EVENT_SCAN_MODE);
+		blocked.sleep = 8;
+		flagAsSlow(other, 1);
+		blocked.sleep = 0;
+		assertEquals(2, this.eventBus.getDispatchMetrics().getSlowListeners().size());
+
+		CountDownLatch release = new CountDownLatch(1);
+		blocked.block = release;
+		for (int scanMode = 4; scanMode <= 6; scanMode++)
+		{
+			this.eventBus.dispatchScanModeChanged(scanMode);
+		}
+
+		try
+		{
+			assertTrue(other.received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+			assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), other.scanModes);
+			assertEquals(Arrays.asList(1, 2, 3), blocked.scanModes);
+		}
+		finally
+		{
+			release.countDown();
+		}
+		assertTrue(blocked.received.await(TIMEOUT, TimeUnit.MILLISECONDS));
+		assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), blocked.scanModes);
+	}
+
+	@Test
+	public void pairingCancelWithoutDeviceOnlyReachesSubscribersForAllDevices()
+	{
+		final List<Boolean> allDevices = new ArrayList<>();
+		final List<Boolean> oneDevice = new ArrayList<>();
+		// Held here as the bus only keeps weak references to its listeners
+		BluetoothEventListener allDevicesListener = new BluetoothEventListener()
+		{
+			@Override
+			public boolean onPairingEventOccurred(BluetoothDevice device, boolean requestedOrCancelled, int pairingVariant)
+			{
+				allDevices.add(requestedOrCancelled);
+				return false;
+			}
+		};
+		BluetoothEventListener oneDeviceListener = new BluetoothEventListener()
+		{
+			@Override
+			public boolean onPairingEventOccurred(BluetoothDevice device, boolean requestedOrCancelled, int pairingVariant)
+			{
+				oneDevice.add(requestedOrCancelled);
+				return true;
+			}
+		};
+		this.eventBus.subscribe(allDevicesListener, BluetoothEventBus.EVENT_PAIRING);
+		this.eventBus.subscribe(oneDeviceListener, BluetoothEventBus.EVENT_PAIRING, "00:09:1F:00:00:01", false);
+
+		assertFalse(this.eventBus.dispatchPairingEvent(null, false, -1));
+		assertEquals(Collections.singletonList(false), allDevices);
+		assertTrue(oneDevice.isEmpty());
+	}
+
+	@Test
+	public void replaysTheKnownStateToNewSubscribers()
+	{
+		RecordingListener before = new RecordingListener(1);
+		this.eventBus.subscribe(before, BluetoothEventBus.EVENT_SCAN_MODE);
+		assertTrue(before.scanModes.isEmpty());
+
+		this.eventBus.setStateSnapshot(BluetoothStateSnapshot.EMPTY.withScanMode(23));
+		RecordingListener after = new RecordingListener(2);
+		this.eventBus.subscribe(after, BluetoothEventBus.EVENT_SCAN_MODE);
+		this.eventBus.dispatchScanModeChanged(21);
+
+		assertEquals(Collections.singletonList(21), before.scanModes);
+		assertEquals(Arrays.asList(23, 21), after.scanModes);
+	}
+}
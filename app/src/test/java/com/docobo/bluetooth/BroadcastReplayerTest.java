@@ -0,0 +1,181 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records broadcasts with {@link BroadcastRecorder} and plays them back with {@link BroadcastReplayer} into a target
+ * collecting them, without going through Intents.
+ */
+public class BroadcastReplayerTest
+{
+	private static final String ACTION_STATE_CHANGED = "android.bluetooth.adapter.action.STATE_CHANGED";
+	private static final String ACTION_DISCOVERY_STARTED = "android.bluetooth.adapter.action.DISCOVERY_STARTED";
+	private static final String EXTRA_STATE = "android.bluetooth.adapter.extra.STATE";
+	private static final String EXTRA_PREVIOUS_STATE = "android.bluetooth.adapter.extra.PREVIOUS_STATE";
+
+	private static class CollectingTarget implements BroadcastReplayer.Target
+	{
+		final List<String> actions = new ArrayList<>();
+		final List<Map<String, Object>> extras = new ArrayList<>();
+		int awaitCount = 0;
+
+		@Override
+		public void onBroadcast(String action, Map<String, Object> extras)
+		{
+			this.actions.add(action);
+			this.extras.add(extras);
+		}
+
+		@Override
+		public void awaitHandled()
+		{
+			this.awaitCount++;
+		}
+	}
+
+	private ByteArrayOutputStream recording;
+	private BroadcastRecorder recorder;
+	private CollectingTarget target;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		this.recording = new ByteArrayOutputStream();
+		this.recorder = new BroadcastRecorder(this.recording);
+		this.target = new CollectingTarget();
+	}
+
+	private static Map<String, Object> extras(Object... keysAndValues)
+	{
+		LinkedHashMap<String, Object> extras = new LinkedHashMap<>();
+		for (int index = 0; index < keysAndValues.length; index += 2)
+		{
+			extras.put((String) keysAndValues[index], keysAndValues[index + 1]);
+		}
+		return extras;
+	}
+
+	private int replay(boolean originalTiming) throws IOException, InterruptedException
+	{
+		return replay(this.recording.toByteArray(), originalTiming);
+	}
+
+	private int replay(byte[] recording, boolean originalTiming) throws IOException, InterruptedException
+	{
+		return new BroadcastReplayer(this.target, null).replay(new ByteArrayInputStream(recording), originalTiming);
+	}
+
+	@Test
+	public void roundTripPreservesActionsAndExtras() throws Exception
+	{
+		this.recorder.record(1000, ACTION_STATE_CHANGED, extras(EXTRA_PREVIOUS_STATE, 10, EXTRA_STATE, 11));
+		this.recorder.record(1010, ACTION_DISCOVERY_STARTED, extras());
+		this.recorder.record(1020, ACTION_STATE_CHANGED, extras(EXTRA_PREVIOUS_STATE, 11, EXTRA_STATE, 12));
+		this.recorder.record(1030, "com.docobo.TEST", extras(
+				"short", (short) -2,
+				"long", 1L << 40,
+				"boolean", true,
+				"string", "A&D_UA-651",
+				"bytes", new byte[] { 0x01, (byte) 0xFF }));
+		this.recorder.close();
+		assertEquals(4, this.recorder.getCount());
+
+		assertEquals(4, replay(false));
+		assertEquals(Arrays.asList(ACTION_STATE_CHANGED, ACTION_DISCOVERY_STARTED, ACTION_STATE_CHANGED, "com.docobo.TEST"),
+				this.target.actions);
+		assertEquals(extras(EXTRA_PREVIOUS_STATE, 10, EXTRA_STATE, 11), this.target.extras.get(0));
+		assertTrue(this.target.extras.get(1).isEmpty());
+		assertEquals(extras(EXTRA_PREVIOUS_STATE, 11, EXTRA_STATE, 12), this.target.extras.get(2));
+
+		Map<String, Object> typed = this.target.extras.get(3);
+		assertEquals(Arrays.asList("short", "long", "boolean", "string", "bytes"), new ArrayList<>(typed.keySet()));
+		assertEquals((short) -2, typed.get("short"));
+		assertEquals(1L << 40, typed.get("long"));
+		assertEquals(true, typed.get("boolean"));
+		assertEquals("A&D_UA-651", typed.get("string"));
+		assertArrayEquals(new byte[] { 0x01, (byte) 0xFF }, (byte[]) typed.get("bytes"));
+
+		assertEquals(1, this.target.awaitCount);
+	}
+
+	@Test
+	public void unsupportedExtrasAreSkipped() throws Exception
+	{
+		this.recorder.record(0, ACTION_STATE_CHANGED, extras(EXTRA_STATE, 12, "double", 1.5d, "list", new ArrayList<>()));
+		this.recorder.close();
+
+		assertEquals(1, replay(false));
+		assertEquals(extras(EXTRA_STATE, 12), this.target.extras.get(0));
+		assertFalse(this.target.extras.get(0).containsKey("double"));
+	}
+
+	@Test
+	public void originalTimingKeepsTheSpacing() throws Exception
+	{
+		this.recorder.record(5000, ACTION_DISCOVERY_STARTED, extras());
+		this.recorder.record(5060, ACTION_DISCOVERY_STARTED, extras());
+		this.recorder.close();
+
+		long start = System.nanoTime();
+		assertEquals(2, replay(true));
+		assertTrue((System.nanoTime() - start) / 1000000 >= 60);
+	}
+
+	@Test
+	public void emptyRecording() throws Exception
+	{
+		this.recorder.close();
+
+		assertEquals(0, replay(false));
+		assertTrue(this.target.actions.isEmpty());
+	}
+
+	@Test
+	public void recordingStopsOnceClosed() throws Exception
+	{
+		this.recorder.record(0, ACTION_DISCOVERY_STARTED, extras());
+		this.recorder.close();
+		this.recorder.record(10, ACTION_STATE_CHANGED, extras(EXTRA_STATE, 12));
+
+		assertEquals(1, this.recorder.getCount());
+		assertEquals(1, replay(false));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsAStreamWhichIsNotARecording() throws Exception
+	{
+		replay(new byte[] { 'D', 'B', 'T', 'X', 0, 1 }, false);
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsATruncatedRecording() throws Exception
+	{
+		this.recorder.record(0, ACTION_STATE_CHANGED, extras(EXTRA_PREVIOUS_STATE, 10, EXTRA_STATE, 11));
+		this.recorder.close();
+
+		byte[] recording = this.recording.toByteArray();
+		replay(Arrays.copyOf(recording, recording.length - 3), false);
+	}
+}
@@ -0,0 +1,288 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Duty cycle and back off policy of {@link LeScanScheduler}, driven by a fake clock without a handler.
+ */
+public class LeScanSchedulerTest
+{
+	private static final String DEVICE = "00:09:1F:00:00:01";
+
+	private static class FakeClock implements LeScanScheduler.Clock
+	{
+		long time = 0;
+
+		@Override
+		public long now()
+		{
+			return time;
+		}
+	}
+
+	private static class FakeScanController implements LeScanScheduler.ScanController
+	{
+		boolean leScanEnabled = false;
+		boolean classicDiscoveryEnabled = false;
+		int leScanStarts = 0;
+		int classicDiscoveryStarts = 0;
+
+		@Override
+		public void setLeScanEnabled(boolean enable)
+		{
+			this.leScanEnabled = enable;
+			this.leScanStarts += enable ? 1 : 0;
+		}
+
+		@Override
+		public void setClassicDiscoveryEnabled(boolean enable)
+		{
+			this.classicDiscoveryEnabled = enable;
+			this.classicDiscoveryStarts += enable ? 1 : 0;
+		}
+	}
+
+	private FakeClock clock;
+	private FakeScanController controller;
+	private LeScanScheduler scheduler;
+	private int cyclesReported;
+
+	@Before
+	public void setUp()
+	{
+		this.clock = new FakeClock();
+		this.controller = new FakeScanController();
+		this.scheduler = new LeScanScheduler(this.clock, this.controller, null);
+		this.scheduler.setScanTiming(4000, 10000, 60000);
+		this.scheduler.setBackoffFactor(2f);
+		this.scheduler.setCycleListener(new LeScanScheduler.CycleListener()
+		{
+			@Override
+			public void onCycleComplete(int cycleCount, long nextInterval, float leScanDutyCycle)
+			{
+				cyclesReported = cycleCount;
+			}
+		});
+	}
+
+	/**
+	 * Move the clock to the next tick and run it.
+	 */
+	private void advance()
+	{
+		this.clock.time = this.scheduler.getNextTickTime();
+		this.scheduler.tick();
+	}
+
+	/**
+	 * Run a whole cycle starting from idle, returning the time the LE window opened.
+	 */
+	private long runCycle()
+	{
+		advance();
+		assertTrue(this.controller.leScanEnabled);
+		long windowStart = this.clock.time;
+		advance();
+		assertFalse(this.controller.leScanEnabled);
+		return windowStart;
+	}
+
+	@Test
+	public void scansForTheWindowAtTheStartOfEachInterval()
+	{
+		this.scheduler.setBackoffFactor(1f);
+		this.scheduler.start();
+		assertEquals(0, this.scheduler.getNextTickTime());
+
+		advance();
+		assertTrue(this.controller.leScanEnabled);
+		assertEquals(4000, this.scheduler.getNextTickTime());
+
+		advance();
+		assertFalse(this.controller.leScanEnabled);
+		assertEquals(10000, this.scheduler.getNextTickTime());
+		assertEquals(1, this.cyclesReported);
+
+		assertEquals(10000, runCycle());
+		assertEquals(20000, runCycle());
+	}
+
+	@Test
+	public void backsOffUpToTheMaximumIntervalWhileNothingNewIsFound()
+	{
+		this.scheduler.start();
+
+		assertEquals(0, runCycle());
+		assertEquals(20000, this.scheduler.getCurrentScanInterval());
+		assertEquals(20000, runCycle());
+		assertEquals(40000, this.scheduler.getCurrentScanInterval());
+		assertEquals(60000, runCycle());
+		assertEquals(60000, this.scheduler.getCurrentScanInterval());
+		assertEquals(120000, runCycle());
+		assertEquals(60000, this.scheduler.getCurrentScanInterval());
+		assertEquals(180000, runCycle());
+	}
+
+	@Test
+	public void newDeviceResetsTheInterval()
+	{
+		this.scheduler.start();
+		runCycle();
+		runCycle();
+		assertEquals(40000, this.scheduler.getCurrentScanInterval());
+
+		advance();
+		this.scheduler.onDeviceFound(DEVICE);
+		advance();
+		assertEquals(10000, this.scheduler.getCurrentScanInterval());
+	}
+
+	@Test
+	public void knownDeviceDoesNotResetTheIntervalUntilForgotten()
+	{
+		this.scheduler.setForgetDevicePeriod(100000);
+		this.scheduler.start();
+
+		advance();
+		this.scheduler.onDeviceFound(DEVICE);
+		advance();
+		assertEquals(10000, this.scheduler.getCurrentScanInterval());
+
+		// Seen again within the forget period
+		advance();
+		this.scheduler.onDeviceFound(DEVICE);
+		advance();
+		assertEquals(20000, this.scheduler.getCurrentScanInterval());
+
+		// Not seen for longer than the forget period
+		runCycle();
+		runCycle();
+		advance();
+		assertTrue(this.clock.time > 100000);
+		this.scheduler.onDeviceFound(DEVICE);
+		advance();
+		assertEquals(10000, this.scheduler.getCurrentScanInterval());
+	}
+
+	@Test
+	public void burstScansContinuouslyThenResumesAtTheBaseInterval()
+	{
+		this.scheduler.start();
+		runCycle();
+		runCycle();
+		assertEquals(40000, this.scheduler.getCurrentScanInterval());
+
+		this.clock.time = 30000;
+		this.scheduler.requestBurst(5000);
+		assertEquals(30000, this.scheduler.getNextTickTime());
+
+		advance();
+		assertTrue(this.controller.leScanEnabled);
+		assertEquals(35000, this.scheduler.getNextTickTime());
+
+		// A second request extends the burst without restarting the scan
+		this.clock.time = 32000;
+		this.scheduler.requestBurst(5000);
+		advance();
+		assertTrue(this.controller.leScanEnabled);
+		assertEquals(37000, this.scheduler.getNextTickTime());
+		assertEquals(3, this.controller.leScanStarts);
+
+		advance();
+		assertFalse(this.controller.leScanEnabled);
+		assertEquals(10000, this.scheduler.getCurrentScanInterval());
+		// As if a window had just completed
+		assertEquals(37000 - 4000 + 10000, this.scheduler.getNextTickTime());
+	}
+
+	@Test
+	public void burstInterruptsClassicDiscovery()
+	{
+		this.scheduler.setClassicDiscoveryInterleave(1, 12000);
+		this.scheduler.start();
+		runCycle();
+		assertTrue(this.controller.classicDiscoveryEnabled);
+
+		this.clock.time = 6000;
+		this.scheduler.requestBurst(2000);
+		advance();
+		assertFalse(this.controller.classicDiscoveryEnabled);
+		assertTrue(this.controller.leScanEnabled);
+	}
+
+	@Test
+	public void interleavesClassicDiscoveryEveryGivenNumberOfCycles()
+	{
+		this.scheduler.setBackoffFactor(1f);
+		this.scheduler.setClassicDiscoveryInterleave(2, 12000);
+		this.scheduler.start();
+
+		runCycle();
+		assertFalse(this.controller.classicDiscoveryEnabled);
+		runCycle();
+		assertTrue(this.controller.classicDiscoveryEnabled);
+		assertEquals(14000 + 12000, this.scheduler.getNextTickTime());
+
+		advance();
+		assertFalse(this.controller.classicDiscoveryEnabled);
+		assertFalse(this.controller.leScanEnabled);
+		// The classic discovery overran the interval, so the next window opens straight away
+		assertEquals(26000, this.scheduler.getNextTickTime());
+		assertEquals(1, this.controller.classicDiscoveryStarts);
+	}
+
+	@Test
+	public void reportsTheLeScanDutyCycle()
+	{
+		this.scheduler.setBackoffFactor(1f);
+		this.scheduler.start();
+		runCycle();
+
+		this.clock.time = 10000;
+		assertEquals(0.4f, this.scheduler.getLeScanDutyCycle(), 0.001f);
+
+		advance();
+		this.clock.time = 12000;
+		assertEquals(6000f / 12000f, this.scheduler.getLeScanDutyCycle(), 0.001f);
+	}
+
+	@Test
+	public void stopDisablesScanningAndTicks()
+	{
+		this.scheduler.setClassicDiscoveryInterleave(1, 12000);
+		this.scheduler.start();
+		runCycle();
+		assertTrue(this.controller.classicDiscoveryEnabled);
+
+		this.scheduler.stop();
+		assertFalse(this.scheduler.isRunning());
+		assertFalse(this.controller.classicDiscoveryEnabled);
+		assertFalse(this.controller.leScanEnabled);
+		assertEquals(-1, this.scheduler.getNextTickTime());
+		assertEquals(-1, this.scheduler.tick());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsAWindowLongerThanTheInterval()
+	{
+		this.scheduler.setScanTiming(10000, 5000, 60000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsABackoffFactorBelowOne()
+	{
+		this.scheduler.setBackoffFactor(0.5f);
+	}
+}
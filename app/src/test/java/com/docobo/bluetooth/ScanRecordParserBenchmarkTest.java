@@ -0,0 +1,166 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static com.docobo.bluetooth.ScanRecordParserTest.CUSTOM_SERVICE;
+import static com.docobo.bluetooth.ScanRecordParserTest.name;
+import static com.docobo.bluetooth.ScanRecordParserTest.scanRecord;
+import static com.docobo.bluetooth.ScanRecordParserTest.structure;
+import static com.docobo.bluetooth.ScanRecordParserTest.uuid128;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link ScanRecordParser} with a naive parser which copies every field out of the record, the way
+ * android.bluetooth.le.ScanRecord does.
+ * <p>
+ * Only the relative timing is asserted, the flyweight parser must not be slower than the naive one, so the test does
+ * not depend on the speed of the host.
+ */
+public class ScanRecordParserBenchmarkTest
+{
+	private static final int WARM_UP_ITERATIONS = 50000;
+	private static final int ITERATIONS = 500000;
+
+	/**
+	 * Naive parser, allocating a list of UUIDs, a map of manufacturer data and a name String per record.
+	 */
+	static class NaiveScanRecord
+	{
+		final List<UUID> serviceUuids = new ArrayList<>();
+		final Map<Integer, byte[]> manufacturerData = new HashMap<>();
+		String localName;
+		int flags = -1;
+
+		static NaiveScanRecord parse(byte[] record)
+		{
+			NaiveScanRecord result = new NaiveScanRecord();
+			int position = 0;
+			while (position < record.length)
+			{
+				int length = record[position++] & 0xFF;
+				if (length == 0 || position + length > record.length)
+				{
+					break;
+				}
+				int type = record[position] & 0xFF;
+				byte[] data = new byte[length - 1];
+				System.arraycopy(record, position + 1, data, 0, data.length);
+				position += length;
+
+				switch (type)
+				{
+					case ScanRecordParser.TYPE_FLAGS:
+						result.flags = data[0] & 0xFF;
+						break;
+					case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16:
+					case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_16:
+						for (int offset = 0; offset + 2 <= data.length; offset += 2)
+						{
+							int uuid16 = (data[offset] & 0xFF) | (data[offset + 1] & 0xFF) << 8;
+							result.serviceUuids.add(UUID.fromString(String.format("%08x-0000-1000-8000-00805f9b34fb", uuid16)));
+						}
+						break;
+					case ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_128:
+					case ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_128:
+						for (int offset = 0; offset + 16 <= data.length; offset += 16)
+						{
+							long lsb = 0;
+							long msb = 0;
+							for (int index = 7; index >= 0; index--)
+							{
+								lsb = lsb << 8 | (data[offset + index] & 0xFF);
+								msb = msb << 8 | (data[offset + index + 8] & 0xFF);
+							}
+							result.serviceUuids.add(new UUID(msb, lsb));
+						}
+						break;
+					case ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME:
+					case ScanRecordParser.TYPE_SHORTENED_LOCAL_NAME:
+						result.localName = new String(data, Charset.forName("UTF-8"));
+						break;
+					case ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA:
+						int companyId = (data[0] & 0xFF) | (data[1] & 0xFF) << 8;
+						byte[] payload = new byte[data.length - 2];
+						System.arraycopy(data, 2, payload, 0, payload.length);
+						result.manufacturerData.put(companyId, payload);
+						break;
+				}
+			}
+			return result;
+		}
+	}
+
+	@Test
+	public void flyweightVersusNaiveServiceUuidMatch()
+	{
+		byte[] record = scanRecord(
+				structure(ScanRecordParser.TYPE_FLAGS, 0x06),
+				uuid128(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_128, CUSTOM_SERVICE),
+				structure(ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA, 0x69, 0x00, 0x01, 0x02, 0x03),
+				name(ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME, "A&D_UA-651"));
+
+		ScanRecordParser parser = new ScanRecordParser();
+		long msb = CUSTOM_SERVICE.getMostSignificantBits();
+		long lsb = CUSTOM_SERVICE.getLeastSignificantBits();
+
+		int flyweightMatches = 0;
+		int naiveMatches = 0;
+		for (int iteration = 0; iteration < WARM_UP_ITERATIONS; iteration++)
+		{
+			flyweightMatches += parser.reset(record).hasServiceUuid(msb, lsb) ? 1 : 0;
+			naiveMatches += NaiveScanRecord.parse(record).serviceUuids.contains(CUSTOM_SERVICE) ? 1 : 0;
+		}
+
+		long start = System.nanoTime();
+		for (int iteration = 0; iteration < ITERATIONS; iteration++)
+		{
+			flyweightMatches += parser.reset(record).hasServiceUuid(msb, lsb) ? 1 : 0;
+		}
+		long flyweightNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		for (int iteration = 0; iteration < ITERATIONS; iteration++)
+		{
+			naiveMatches += NaiveScanRecord.parse(record).serviceUuids.contains(CUSTOM_SERVICE) ? 1 : 0;
+		}
+		long naiveNanos = System.nanoTime() - start;
+
+		assertEquals(WARM_UP_ITERATIONS + ITERATIONS, flyweightMatches);
+		assertEquals(naiveMatches, flyweightMatches);
+		assertTrue(String.format("Service UUID match over %d records: flyweight %d ns/record, naive %d ns/record",
+				ITERATIONS, flyweightNanos / ITERATIONS, naiveNanos / ITERATIONS), flyweightNanos <= naiveNanos);
+	}
+
+	@Test
+	public void naiveParserAgreesWithFlyweight()
+	{
+		byte[] record = scanRecord(
+				structure(ScanRecordParser.TYPE_FLAGS, 0x06),
+				structure(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16, 0x10, 0x18),
+				structure(ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA, 0x69, 0x00, 0x01),
+				name(ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME, "UC-352"));
+
+		ScanRecordParser parser = new ScanRecordParser().reset(record);
+		NaiveScanRecord naive = NaiveScanRecord.parse(record);
+
+		assertEquals(naive.flags, parser.getFlags());
+		assertEquals(naive.localName, parser.getLocalName());
+		assertTrue(naive.manufacturerData.containsKey(parser.findManufacturerData()));
+		assertTrue(parser.hasServiceUuid(naive.serviceUuids.get(0)));
+	}
+}
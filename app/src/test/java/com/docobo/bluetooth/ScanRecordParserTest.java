@@ -0,0 +1,225 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScanRecordParserTest
+{
+	static final UUID BLOOD_PRESSURE_SERVICE = UUID.fromString("00001810-0000-1000-8000-00805f9b34fb");
+	static final UUID CUSTOM_SERVICE = UUID.fromString("233bf000-5a34-1b6d-975c-000d5690abe4");
+
+	private ScanRecordParser parser;
+
+	@Before
+	public void setUp()
+	{
+		this.parser = new ScanRecordParser();
+	}
+
+	/**
+	 * Build a legacy 62 byte scan record (advertising data and scan response) padded with zeroes.
+	 */
+	static byte[] scanRecord(byte[]... structures)
+	{
+		byte[] record = new byte[62];
+		int position = 0;
+		for (byte[] structure : structures)
+		{
+			System.arraycopy(structure, 0, record, position, structure.length);
+			position += structure.length;
+		}
+		return record;
+	}
+
+	static byte[] structure(int type, int... data)
+	{
+		byte[] structure = new byte[data.length + 2];
+		structure[0] = (byte) (data.length + 1);
+		structure[1] = (byte) type;
+		for (int index = 0; index < data.length; index++)
+		{
+			structure[index + 2] = (byte) data[index];
+		}
+		return structure;
+	}
+
+	static byte[] name(int type, String name)
+	{
+		byte[] bytes = name.getBytes(Charset.forName("UTF-8"));
+		int[] data = new int[bytes.length];
+		for (int index = 0; index < bytes.length; index++)
+		{
+			data[index] = bytes[index];
+		}
+		return structure(type, data);
+	}
+
+	static byte[] uuid128(int type, UUID uuid)
+	{
+		int[] data = new int[16];
+		long lsb = uuid.getLeastSignificantBits();
+		long msb = uuid.getMostSignificantBits();
+		for (int index = 0; index < 8; index++)
+		{
+			data[index] = (int) (lsb >>> (8 * index));
+			data[index + 8] = (int) (msb >>> (8 * index));
+		}
+		return structure(type, data);
+	}
+
+	@Test
+	public void walksAllStructuresAndStopsAtPadding()
+	{
+		this.parser.reset(scanRecord(
+				structure(ScanRecordParser.TYPE_FLAGS, 0x06),
+				structure(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16, 0x10, 0x18),
+				name(ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME, "A&D_UA-651")));
+
+		assertTrue(this.parser.next());
+		assertEquals(ScanRecordParser.TYPE_FLAGS, this.parser.getType());
+		assertEquals(1, this.parser.getDataLength());
+		assertTrue(this.parser.next());
+		assertEquals(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16, this.parser.getType());
+		assertTrue(this.parser.next());
+		assertEquals(ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME, this.parser.getType());
+		assertFalse(this.parser.next());
+		assertFalse(this.parser.next());
+		assertEquals(3 + 4 + 12, this.parser.getSignificantLength());
+	}
+
+	@Test
+	public void wholeRecordHelpers()
+	{
+		this.parser.reset(scanRecord(
+				structure(ScanRecordParser.TYPE_FLAGS, 0x06),
+				structure(ScanRecordParser.TYPE_TX_POWER_LEVEL, 0xF4),
+				structure(ScanRecordParser.TYPE_APPEARANCE, 0x81, 0x03),
+				structure(ScanRecordParser.TYPE_INCOMPLETE_SERVICE_UUIDS_16, 0x0A, 0x18, 0x10, 0x18),
+				structure(ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA, 0x69, 0x00, 0x01, 0x02),
+				name(ScanRecordParser.TYPE_SHORTENED_LOCAL_NAME, "UA-651")));
+
+		assertEquals(0x06, this.parser.getFlags());
+		assertEquals(-12, this.parser.getTxPowerLevel());
+		assertEquals(0x0381, this.parser.getAppearance());
+		assertTrue(this.parser.hasServiceUuid(BLOOD_PRESSURE_SERVICE));
+		assertFalse(this.parser.hasServiceUuid(CUSTOM_SERVICE));
+		assertEquals(0x0069, this.parser.findManufacturerData());
+		assertEquals(2, this.parser.getPayloadLength());
+		assertEquals(0x01, this.parser.uint8(this.parser.getPayloadOffset()));
+		assertTrue(this.parser.findManufacturerData(0x0069));
+		assertFalse(this.parser.findManufacturerData(0x004C));
+		assertEquals("UA-651", this.parser.getLocalName());
+		assertTrue(this.parser.localNameStartsWith("UA-".getBytes(Charset.forName("UTF-8"))));
+		assertFalse(this.parser.localNameStartsWith("UC-".getBytes(Charset.forName("UTF-8"))));
+	}
+
+	@Test
+	public void matches128BitServiceUuidsAndServiceData()
+	{
+		this.parser.reset(scanRecord(
+				uuid128(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_128, CUSTOM_SERVICE),
+				structure(ScanRecordParser.TYPE_SERVICE_DATA_16, 0x10, 0x18, 0xAA, 0xBB)));
+
+		assertTrue(this.parser.hasServiceUuid(CUSTOM_SERVICE));
+		assertTrue(this.parser.findServiceData(BLOOD_PRESSURE_SERVICE));
+		assertEquals(2, this.parser.getPayloadLength());
+		assertEquals(0xBBAA, this.parser.uint16(this.parser.getPayloadOffset()));
+		assertFalse(this.parser.findServiceData(CUSTOM_SERVICE));
+	}
+
+	@Test
+	public void nullAndEmptyRecords()
+	{
+		this.parser.reset(null);
+		assertFalse(this.parser.next());
+		assertEquals(ScanRecordParser.NOT_PRESENT, this.parser.getFlags());
+		assertNull(this.parser.getLocalName());
+
+		this.parser.reset(new byte[0]);
+		assertFalse(this.parser.next());
+		assertEquals(0, this.parser.getSignificantLength());
+
+		this.parser.reset(new byte[62]);
+		assertFalse(this.parser.next());
+		assertEquals(0, this.parser.getSignificantLength());
+	}
+
+	@Test
+	public void zeroLengthStructureEndsTheRecord()
+	{
+		byte[] record = scanRecord(
+				structure(ScanRecordParser.TYPE_FLAGS, 0x06),
+				new byte[] { 0x00 },
+				structure(ScanRecordParser.TYPE_TX_POWER_LEVEL, 0x00));
+
+		this.parser.reset(record);
+		assertTrue(this.parser.next());
+		assertFalse(this.parser.next());
+		assertEquals(ScanRecordParser.NOT_PRESENT, this.parser.getTxPowerLevel());
+	}
+
+	@Test
+	public void truncatedStructureIsIgnored()
+	{
+		// Name structure claims 10 bytes but the record ends after 3
+		byte[] record = new byte[] { 0x02, 0x01, 0x06, 0x0B, 0x09, 'A', '&', 'D' };
+
+		this.parser.reset(record);
+		assertTrue(this.parser.next());
+		assertEquals(ScanRecordParser.TYPE_FLAGS, this.parser.getType());
+		assertFalse(this.parser.next());
+		assertNull(this.parser.getLocalName());
+		assertEquals(3, this.parser.getSignificantLength());
+	}
+
+	@Test
+	public void malformedStructuresDoNotReadPastTheirData()
+	{
+		byte[] record = scanRecord(
+				// Type only, no data
+				new byte[] { 0x01, (byte) ScanRecordParser.TYPE_FLAGS },
+				new byte[] { 0x01, (byte) ScanRecordParser.TYPE_APPEARANCE },
+				// Manufacturer data too short for a company identifier
+				structure(ScanRecordParser.TYPE_MANUFACTURER_SPECIFIC_DATA, 0x69),
+				// Service data too short for its UUID
+				structure(ScanRecordParser.TYPE_SERVICE_DATA_128, 0x01, 0x02),
+				// 16 bit UUID list with an odd trailing byte
+				structure(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16, 0x10, 0x18, 0x1D));
+
+		this.parser.reset(record);
+		assertEquals(ScanRecordParser.NOT_PRESENT, this.parser.getFlags());
+		assertEquals(ScanRecordParser.NOT_PRESENT, this.parser.getAppearance());
+		assertEquals(ScanRecordParser.NOT_PRESENT, this.parser.findManufacturerData());
+		assertEquals(0, this.parser.getPayloadLength());
+		assertFalse(this.parser.findServiceData(CUSTOM_SERVICE));
+		assertTrue(this.parser.seek(ScanRecordParser.TYPE_COMPLETE_SERVICE_UUIDS_16));
+		assertEquals(1, this.parser.getServiceUuidCount());
+		assertTrue(this.parser.hasServiceUuid(BLOOD_PRESSURE_SERVICE));
+	}
+
+	@Test
+	public void resetReusesTheParser()
+	{
+		this.parser.reset(scanRecord(name(ScanRecordParser.TYPE_COMPLETE_LOCAL_NAME, "UC-352")));
+		assertEquals("UC-352", this.parser.getLocalName());
+
+		this.parser.reset(scanRecord(structure(ScanRecordParser.TYPE_FLAGS, 0x04)));
+		assertNull(this.parser.getLocalName());
+		assertEquals(0x04, this.parser.getFlags());
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ *  Copyright (C) 2019 Docobo Ltd - All Rights Reserved
+ *
+ *  Unauthorized copying of this file, via any medium is strictly prohibited
+ *  Proprietary and confidential
+ */
+
+package com.docobo.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Significant change detection of {@link ScanResultAggregator}. Results are reported by address without a
+ * BluetoothDevice, which cannot be constructed outside a device.
+ */
+public class ScanResultAggregatorTest
+{
+	private static final String ADDRESS = "00:09:1F:00:00:01";
+	private static final int RSSI = -60;
+
+	/** Flags and the 16 bit blood pressure service UUID */
+	private static final byte[] ADVERTISEMENT = {
+			0x02, 0x01, 0x06,
+			0x03, 0x03, 0x10, 0x18 };
+
+	/** The advertisement followed by the complete local name from the scan response */
+	private static final byte[] ADVERTISEMENT_WITH_NAME = {
+			0x02, 0x01, 0x06,
+			0x03, 0x03, 0x10, 0x18,
+			0x07, 0x09, 'U', 'A', '-', '6', '5', '1' };
+
+	private ScanResultAggregator aggregator;
+	private long now;
+
+	@Before
+	public void setUp()
+	{
+		this.aggregator = new ScanResultAggregator();
+		this.now = 1000;
+	}
+
+	private ScanResultAggregator.Entry update(int rssi, byte[] scanRecord)
+	{
+		this.now += 100;
+		return this.aggregator.update(ADDRESS, null, rssi, scanRecord, this.now);
+	}
+
+	private static byte[] manufacturerData(int counter)
+	{
+		return new byte[] {
+				0x02, 0x01, 0x06,
+				0x05, (byte) 0xFF, 0x59, 0x00, (byte) counter, (byte) (counter >> 8) };
+	}
+
+	@Test
+	public void alternatingRecordIsOnlyReportedWhenTheNameFirstAppears()
+	{
+		assertNotNull(update(RSSI, ADVERTISEMENT));
+		assertNull(update(RSSI, ADVERTISEMENT));
+		assertNotNull(update(RSSI, ADVERTISEMENT_WITH_NAME));
+
+		for (int index = 0; index < 10; index++)
+		{
+			assertNull(update(RSSI, ADVERTISEMENT));
+			assertNull(update(RSSI, ADVERTISEMENT_WITH_NAME));
+		}
+	}
+
+	@Test
+	public void rollingManufacturerPayloadIsNotReported()
+	{
+		assertNotNull(update(RSSI, manufacturerData(0)));
+		for (int counter = 1; counter < 20; counter++)
+		{
+			assertNull(update(RSSI, manufacturerData(counter)));
+		}
+	}
+
+	@Test
+	public void newServiceUuidIsReported()
+	{
+		assertNotNull(update(RSSI, ADVERTISEMENT));
+		assertNotNull(update(RSSI, new byte[] { 0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18 }));
+		assertNull(update(RSSI, new byte[] { 0x02, 0x01, 0x06, 0x03, 0x03, 0x0D, 0x18 }));
+	}
+
+	@Test
+	public void rssiChangeOverTheThresholdIsReported()
+	{
+		assertNotNull(update(RSSI, ADVERTISEMENT));
+		assertNull(update(RSSI - 4, ADVERTISEMENT));
+		assertNotNull(update(RSSI - 40, ADVERTISEMENT));
+	}
+
+	@Test
+	public void everyResultIsReportedWhenDisabled()
+	{
+		this.aggregator.setEnabled(false);
+		assertNotNull(update(RSSI, ADVERTISEMENT));
+		assertNotNull(update(RSSI, ADVERTISEMENT));
+	}
+}